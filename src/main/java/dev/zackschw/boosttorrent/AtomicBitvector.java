@@ -0,0 +1,101 @@
+package dev.zackschw.boosttorrent;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free Bitvector, for bitvectors shared by many threads such as the client's own bitfield.
+ * Bits are kept in an AtomicLongArray. Setting and unsetting a bit is a compare-and-set of its word, and reads are
+ * plain acquire loads, so no operation ever takes a lock.
+ * The number of set bits is maintained on every change, so cardinality(), isComplete() and isEmpty() are O(1).
+ * The count is updated right after the bit, so it may briefly lag behind a concurrent change.
+ */
+public class AtomicBitvector extends Bitvector {
+    private final AtomicLongArray words;
+    private final AtomicInteger cardinality;
+
+    /**
+     * Creates an empty (all zeroes) bitfield with number of bits equal to size
+     * @param size number of bits of the bitfield
+     */
+    public AtomicBitvector(int size) {
+        super(size, (long[]) null);
+
+        words = new AtomicLongArray(numWords(size));
+        cardinality = new AtomicInteger(0);
+    }
+
+    /**
+     * Creates a bitfield with the bitmap and number of bits equal to size
+     * @param size number of bits of the bitfield
+     * @param bitmap pre-populated bitfield
+     * @throws IllegalArgumentException if the size does not correspond with the number of bytes in the bitmap
+     */
+    public AtomicBitvector(int size, byte[] bitmap) {
+        this(size);
+
+        Bitvector bits = new Bitvector(size, bitmap);
+        for (int w=0; w < words.length(); w++) {
+            words.set(w, bits.getWord(w));
+        }
+        cardinality.set(bits.cardinality());
+    }
+
+    @Override
+    public void setBit(int bit) {
+        /* Check bounds */
+        if (bit >= getSize() || bit < 0) {
+            throw new IllegalArgumentException("Cannot set bit " + bit + " in bitvector of size " + getSize());
+        }
+
+        int w = bit >>> 6;
+        long mask = 1L << bit;
+        long old;
+        do {
+            old = words.get(w);
+            if ((old & mask) != 0)
+                return;
+        } while (!words.compareAndSet(w, old, old | mask));
+
+        cardinality.incrementAndGet();
+    }
+
+    @Override
+    public void unsetBit(int bit) {
+        /* Check bounds */
+        if (bit >= getSize() || bit < 0) {
+            throw new IllegalArgumentException("Cannot unset bit " + bit + " in bitvector of size " + getSize());
+        }
+
+        int w = bit >>> 6;
+        long mask = 1L << bit;
+        long old;
+        do {
+            old = words.get(w);
+            if ((old & mask) == 0)
+                return;
+        } while (!words.compareAndSet(w, old, old & ~mask));
+
+        cardinality.decrementAndGet();
+    }
+
+    @Override
+    long getWord(int wordIndex) {
+        return words.getAcquire(wordIndex);
+    }
+
+    @Override
+    public int cardinality() {
+        return cardinality.get();
+    }
+
+    @Override
+    public boolean isComplete() {
+        return cardinality.get() == getSize();
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return cardinality.get() == 0;
+    }
+}
@@ -5,21 +5,21 @@ package dev.zackschw.boosttorrent;
  * The first bit is index zero and starts on the far left of the bitvector, and each bit to the right represents an
  * increment of the bit index.
  * The bitvector size is in number of bits and is immutable.
- * All Bitvector operations are thread safe.
+ * Bits are stored 64 to a word, with bit index i at bit (i % 64) of word (i / 64), so scans and set operations work a
+ * word at a time. The wire format of toByteArray() is unaffected by this.
+ * All Bitvector operations are thread safe. Operations spanning many words, or two bitvectors, read a word at a time,
+ * so they are not atomic with respect to concurrent changes.
  */
 public class Bitvector {
     private final int size;
-    private final byte[] bytes;
+    private final long[] words;
 
     /**
      * Creates an empty (all zeroes) bitfield with number of bits equal to size
      * @param size number of bits of the bitfield
      */
     public Bitvector(int size) {
-        this.size = size;
-
-        int numBytes = size/8 + (size % 8 == 0 ? 0 : 1);
-        this.bytes = new byte[numBytes];
+        this(size, new long[numWords(size)]);
     }
 
     /**
@@ -29,12 +29,35 @@ public class Bitvector {
      * @throws IllegalArgumentException if the size does not correspond with the number of bytes in the bitmap
      */
     public Bitvector(int size, byte[] bitmap) {
-        this.size = size;
-        this.bytes = bitmap;
+        this(size, new long[numWords(size)]);
 
         int numBytes = size/8 + (size % 8 == 0? 0 : 1);
         if (bitmap.length != numBytes)
             throw new IllegalArgumentException("Tried to create bitmap of size " + size + " and number of bytes " + bitmap.length);
+
+        /* Byte j holds bits 8j to 8j+7, from its most significant bit down. A word reversed is the big endian
+         * concatenation of its 8 bytes in the same order. */
+        for (int w=0; w < words.length; w++) {
+            long reversed = 0;
+            for (int k=0; k < 8 && w*8 + k < bitmap.length; k++) {
+                reversed |= (bitmap[w*8 + k] & 0xffL) << (56 - 8*k);
+            }
+            words[w] = Long.reverse(reversed);
+        }
+
+        /* Ignore spare bits past the end */
+        if (words.length > 0)
+            words[words.length - 1] &= lastWordMask(size);
+    }
+
+    /**
+     * Creates a bitvector over the given words, for subclasses that keep their bits elsewhere.
+     * @param size number of bits of the bitvector
+     * @param words words holding the bits, or null
+     */
+    Bitvector(int size, long[] words) {
+        this.size = size;
+        this.words = words;
     }
 
     /**
@@ -55,11 +78,8 @@ public class Bitvector {
             throw new IllegalArgumentException("Cannot set bit " + bit + " in bitvector of size " + size);
         }
 
-        int byteIndex = bit / 8;
-        int bitPos = 7 - (bit % 8);
-
         synchronized (this) {
-            bytes[byteIndex] |= 1 << bitPos;
+            words[bit >>> 6] |= 1L << bit;
         }
     }
 
@@ -74,11 +94,8 @@ public class Bitvector {
             throw new IllegalArgumentException("Cannot unset bit " + bit + " in bitvector of size " + size);
         }
 
-        int byteIndex = bit / 8;
-        int bitPos = 7 - (bit % 8);
-
         synchronized (this) {
-            bytes[byteIndex] &= ~(1 << bitPos);
+            words[bit >>> 6] &= ~(1L << bit);
         }
     }
 
@@ -94,21 +111,138 @@ public class Bitvector {
             throw new IllegalArgumentException("Cannot check bit " + bit + " in bitvector of size " + size);
         }
 
-        int byteIndex = bit / 8;
-        int bitPos = 7 - (bit % 8);
+        return (getWord(bit >>> 6) & (1L << bit)) != 0;
+    }
 
-        synchronized (this) {
-            return (bytes[byteIndex] & (1 << bitPos)) != 0;
+    /**
+     * Returns the word holding bits 64*wordIndex to 64*wordIndex+63, with the lowest bit index in the least
+     * significant bit. Bits past the size of the bitvector are always 0.
+     * @param wordIndex index of the word
+     */
+    synchronized long getWord(int wordIndex) {
+        return words[wordIndex];
+    }
+
+    /**
+     * @return the number of words holding the bits
+     */
+    int getNumWords() {
+        return numWords(size);
+    }
+
+    /**
+     * Returns the index of the first bit set to 1 at or after fromIndex.
+     * @param fromIndex zero-indexed bit to start at
+     * @return the bit index, or -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (fromIndex >= size)
+            return -1;
+
+        int w = fromIndex >>> 6;
+        long word = getWord(w) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0)
+                return w*64 + Long.numberOfTrailingZeros(word);
+            if (++w >= getNumWords())
+                return -1;
+            word = getWord(w);
+        }
+    }
+
+    /**
+     * Returns the index of the first bit set to 0 at or after fromIndex.
+     * @param fromIndex zero-indexed bit to start at
+     * @return the bit index, or -1 if there is none
+     */
+    public int nextClearBit(int fromIndex) {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (fromIndex >= size)
+            return -1;
+
+        int w = fromIndex >>> 6;
+        long word = ~getWord(w) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0) {
+                int bit = w*64 + Long.numberOfTrailingZeros(word);
+                return bit < size ? bit : -1;
+            }
+            if (++w >= getNumWords())
+                return -1;
+            word = ~getWord(w);
+        }
+    }
+
+    /**
+     * Returns the index of the first bit at or after fromIndex that is set to 1 in this bitvector, and is not set to
+     * 1 in other. For example, the first piece a peer has that the client lacks.
+     * Bits past the size of other count as not set in other.
+     * @param other bitvector of bits to skip
+     * @param fromIndex zero-indexed bit to start at
+     * @return the bit index, or -1 if there is none
+     */
+    public int nextSetBitNotIn(Bitvector other, int fromIndex) {
+        if (fromIndex < 0)
+            fromIndex = 0;
+        if (fromIndex >= size)
+            return -1;
+
+        int numOtherWords = other.getNumWords();
+        int w = fromIndex >>> 6;
+        long word = (getWord(w) & ~(w < numOtherWords ? other.getWord(w) : 0)) & (-1L << fromIndex);
+        while (true) {
+            if (word != 0)
+                return w*64 + Long.numberOfTrailingZeros(word);
+            if (++w >= getNumWords())
+                return -1;
+            word = getWord(w) & ~(w < numOtherWords ? other.getWord(w) : 0);
         }
     }
 
     /**
-     * fast isSet() method that skips synchronization and bounds checking.
+     * Returns a new bitvector of the bits set to 1 in this bitvector and not set to 1 in other.
+     * Bits past the size of other count as not set in other.
+     * @param other bitvector of bits to clear
+     * @return a bitvector of the same size as this one
      */
-    private boolean fastIsSet(int bit) {
-        int byteIndex = bit/8; // from the left
-        int bitPos = 7 - (bit % 8); // from the right
-        return (bytes[byteIndex] & (1 << bitPos)) != 0;
+    public Bitvector andNot(Bitvector other) {
+        Bitvector result = new Bitvector(size);
+        int numOtherWords = other.getNumWords();
+        for (int w=0; w < result.words.length; w++) {
+            result.words[w] = getWord(w) & ~(w < numOtherWords ? other.getWord(w) : 0);
+        }
+
+        return result;
+    }
+
+    /**
+     * Checks whether any bit is set to 1 in both this bitvector and other.
+     * @param other bitvector to compare with
+     * @return true if the bitvectors share a set bit, otherwise false
+     */
+    public boolean intersects(Bitvector other) {
+        int numCommonWords = Math.min(getNumWords(), other.getNumWords());
+        for (int w=0; w < numCommonWords; w++) {
+            if ((getWord(w) & other.getWord(w)) != 0)
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * @return the number of bits set to 1
+     */
+    public int cardinality() {
+        int count = 0;
+        for (int w=0; w < getNumWords(); w++) {
+            count += Long.bitCount(getWord(w));
+        }
+
+        return count;
     }
 
     /**
@@ -116,22 +250,13 @@ public class Bitvector {
      * @return true if the bitvector is complete, otherwise false
      */
     public boolean isComplete() {
-        int numFullBytes = size/8;
-
-        synchronized (this) {
-            for (int i=0; i < numFullBytes; i++) {
-                if (bytes[i] != (byte) 0xff)
-                    return false;
-            }
-
-            int remaining = size % 8;
-            for (int i=0; i < remaining; i++) {
-                if (!fastIsSet(numFullBytes*8 + i))
-                    return false;
-            }
+        int numWords = getNumWords();
+        for (int w=0; w < numWords - 1; w++) {
+            if (getWord(w) != -1L)
+                return false;
         }
 
-        return true;
+        return numWords == 0 || getWord(numWords - 1) == lastWordMask(size);
     }
 
     /**
@@ -139,20 +264,42 @@ public class Bitvector {
      * @return true if the bitvector is empty, otherwise false
      */
     public boolean isEmpty() {
-        synchronized (this) {
-            for (byte b : bytes) {
-                if (b != 0)
-                    return false;
-            }
+        for (int w=0; w < getNumWords(); w++) {
+            if (getWord(w) != 0)
+                return false;
         }
 
         return true;
     }
 
     /**
-     * Returns the bitvector as a byte array.
+     * Returns the bitvector as a byte array, in the wire format of the BITFIELD message. The array is a copy.
      */
     public byte[] toByteArray() {
+        int numBytes = size/8 + (size % 8 == 0 ? 0 : 1);
+        byte[] bytes = new byte[numBytes];
+
+        for (int w=0; w < getNumWords(); w++) {
+            long reversed = Long.reverse(getWord(w));
+            for (int k=0; k < 8 && w*8 + k < numBytes; k++) {
+                bytes[w*8 + k] = (byte) (reversed >>> (56 - 8*k));
+            }
+        }
+
         return bytes;
     }
+
+    /**
+     * @return the number of words needed to hold size bits
+     */
+    static int numWords(int size) {
+        return (size + 63) >>> 6;
+    }
+
+    /**
+     * @return the mask of the bits of the last word that are within size
+     */
+    static long lastWordMask(int size) {
+        return size % 64 == 0 ? -1L : (1L << size) - 1;
+    }
 }
@@ -0,0 +1,29 @@
+package dev.zackschw.boosttorrent;
+
+/**
+ * A request for a block of a piece, sent to a peer and not yet received.
+ */
+public class BlockRequest {
+    final Piece piece;
+    final int begin;
+    final int length;
+    long sentTime; // System.nanoTime() when the request was sent
+
+    /**
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param length length of the block
+     */
+    public BlockRequest(Piece piece, int begin, int length) {
+        this.piece = piece;
+        this.begin = begin;
+        this.length = length;
+    }
+
+    /**
+     * @return zero-based index of the block in the piece
+     */
+    public int getBlock() {
+        return begin / Piece.BLOCK_LENGTH;
+    }
+}
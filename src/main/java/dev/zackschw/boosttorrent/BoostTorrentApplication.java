@@ -27,14 +27,37 @@ public class BoostTorrentApplication {
         }
 
         byte[] peerID = createPeerID();
-        Storage storage = new Storage(meta);
+        Storage storage = new Storage(meta, Boolean.getBoolean("boost.storage.mmap"));
+
+        /* File priorities, eg -Dboost.priorities=0:skip,3:high */
+        String priorities = System.getProperty("boost.priorities");
+        if (priorities != null) {
+            for (String entry : priorities.split(",")) {
+                String[] filePriority = entry.split(":");
+                storage.setFilePriority(Integer.parseInt(filePriority[0].trim()),
+                        Priority.valueOf(filePriority[1].trim().toUpperCase()));
+            }
+        }
+
         try {
             storage.createFiles();
         } catch (IOException e) {
             throw new RuntimeException("Error creating files: " + e);
         }
 
-        PeerCoordinator coordinator = new PeerCoordinator(peerID, meta, storage);
+        DiskWriter diskWriter = new DiskWriter(storage,
+                Integer.getInteger("boost.disk.queue", 16),
+                Integer.getInteger("boost.disk.writers", 1),
+                Integer.getInteger("boost.disk.fsyncPieces", 64));
+        PeerCoordinator coordinator = new PeerCoordinator(peerID, meta, storage, diskWriter,
+                Long.getLong("boost.cache.bytes", PieceCache.DEFAULT_CAPACITY),
+                Boolean.getBoolean("boost.pieces.onDisk"));
+        coordinator.setEventLoops(Integer.getInteger("boost.net.loops", Runtime.getRuntime().availableProcessors()));
+        coordinator.setZeroCopyUploads(Boolean.parseBoolean(System.getProperty("boost.net.zeroCopy", "true")));
+        coordinator.setThreadFactory(PeerThreads.forMode(System.getProperty("boost.threads", PeerThreads.PLATFORM)));
+
+        /* Write out the pieces received and save the fast-resume record on exit */
+        Runtime.getRuntime().addShutdownHook(new Thread(coordinator::stop));
 
         /* Run */
         try {
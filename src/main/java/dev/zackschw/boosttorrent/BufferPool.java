@@ -0,0 +1,77 @@
+package dev.zackschw.boosttorrent;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct piece buffers, used to assemble pieces received from peers without allocating a buffer per piece.
+ * Buffers are cut from slabs of SLAB_PIECES pieces of direct memory. Slabs are allocated as needed and never freed, so
+ * once the pool holds as many buffers as there are pieces in flight, no more memory is allocated.
+ * Each buffer can hold one piece of the torrent, and is split into blocks of Piece.BLOCK_LENGTH bytes by Piece.
+ */
+public class BufferPool {
+    private final int bufferLength;
+    private final ArrayDeque<ByteBuffer> free;
+    private int numBuffers;
+
+    /**
+     * Creates an empty BufferPool.
+     * @param bufferLength length of each buffer, ie the piece length of the torrent
+     */
+    public BufferPool(int bufferLength) {
+        this.bufferLength = bufferLength;
+
+        free = new ArrayDeque<>();
+        numBuffers = 0;
+    }
+
+    /**
+     * Takes a buffer from the pool, allocating a new slab if the pool is empty.
+     * @return a cleared buffer of bufferLength bytes
+     */
+    public synchronized ByteBuffer acquire() {
+        if (free.isEmpty()) {
+            allocateSlab();
+        }
+
+        ByteBuffer buffer = free.pop();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Returns a buffer taken by acquire() to the pool. The buffer must no longer be used by the caller.
+     * @param buffer the buffer to return
+     */
+    public synchronized void release(ByteBuffer buffer) {
+        free.push(buffer);
+    }
+
+    /**
+     * @return the number of buffers allocated by the pool, in use or not
+     */
+    public synchronized int getNumBuffers() {
+        return numBuffers;
+    }
+
+    /**
+     * @return the number of buffers in the pool that are not in use
+     */
+    public synchronized int getNumFree() {
+        return free.size();
+    }
+
+    private void allocateSlab() {
+        int slabPieces = (int) Math.max(1, Math.min(SLAB_PIECES, Integer.MAX_VALUE / bufferLength));
+        ByteBuffer slab = ByteBuffer.allocateDirect(slabPieces * bufferLength);
+
+        for (int i=0; i < slabPieces; i++) {
+            slab.limit((i+1) * bufferLength);
+            slab.position(i * bufferLength);
+            free.push(slab.slice());
+        }
+        numBuffers += slabPieces;
+    }
+
+    private static final int SLAB_PIECES = 4;
+}
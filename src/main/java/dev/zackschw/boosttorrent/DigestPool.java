@@ -0,0 +1,63 @@
+package dev.zackschw.boosttorrent;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of SHA-1 digests, used to hash pieces as their blocks arrive without creating a digest per piece.
+ * Digests are created as needed and never freed, so once the pool holds as many digests as there are pieces in
+ * flight, no more are created.
+ */
+public class DigestPool {
+    private final ArrayDeque<MessageDigest> free;
+    private int numDigests;
+
+    /**
+     * Creates an empty DigestPool.
+     */
+    public DigestPool() {
+        free = new ArrayDeque<>();
+        numDigests = 0;
+    }
+
+    /**
+     * Takes a digest from the pool, creating a new one if the pool is empty.
+     * @return a reset SHA-1 digest
+     */
+    public synchronized MessageDigest acquire() {
+        if (free.isEmpty()) {
+            numDigests++;
+            return newDigest();
+        }
+
+        return free.pop();
+    }
+
+    /**
+     * Returns a digest taken by acquire() to the pool, resetting it. The digest must no longer be used by the caller.
+     * @param digest the digest to return
+     */
+    public synchronized void release(MessageDigest digest) {
+        digest.reset();
+        free.push(digest);
+    }
+
+    /**
+     * @return the number of digests created by the pool, in use or not
+     */
+    public synchronized int getNumDigests() {
+        return numDigests;
+    }
+
+    /**
+     * @return a new SHA-1 digest
+     */
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+}
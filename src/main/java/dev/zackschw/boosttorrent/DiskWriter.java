@@ -0,0 +1,363 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes finished pieces to storage off the peer threads.
+ * Pieces are accepted into a bounded queue that is drained by writer threads. Each writer takes every queued piece
+ * at once, and writes runs of adjacent pieces as single sequential writes. Storage is forced to disk, and the
+ * fast-resume record saved, every fsyncPieces pieces, always by a writer thread, including when the pieces counted
+ * were written block by block and only submitted to be counted.
+ * A piece is readable through readBlock() as soon as it is accepted, so the client may announce it right away.
+ * When the queue is full, submitting a piece blocks, which stops the submitting peer thread from reading its socket
+ * until the disk catches up.
+ * A write that fails, eg with the disk full, is logged, and its pieces are handed to the callback to be downloaded
+ * again, so the writers keep draining the queue.
+ */
+public class DiskWriter {
+    private final Storage storage;
+    private final BlockingQueue<Piece> queue;
+    private final Map<Integer, Piece> pending; // pieces accepted but not yet written, by index
+    private final Thread[] writers;
+    private final int fsyncPieces;
+
+    private int piecesSinceFsync;
+    private boolean saveDue; // fsyncPieces pieces were written since the last save
+    private int submitting; // threads in submit() that got past the check of stop
+    private volatile boolean stop;
+    private volatile Callback callback; // told of pieces that failed to be written, or null
+
+    /**
+     * Callback of a piece failing to be written.
+     */
+    public interface Callback {
+        /**
+         * Called on a writer thread when writing the piece to storage failed, before the piece is released.
+         * @param piece the piece that was not written
+         */
+        void onWriteFailed(Piece piece);
+    }
+
+    /**
+     * Creates a DiskWriter with default queue capacity, one writer thread, and no forced syncing.
+     * @param storage storage to write pieces to
+     */
+    public DiskWriter(Storage storage) {
+        this(storage, DEFAULT_QUEUE_CAPACITY, 1, 0);
+    }
+
+    /**
+     * Creates a DiskWriter.
+     * @param storage storage to write pieces to
+     * @param queueCapacity number of pieces that may wait to be written before submitting blocks
+     * @param numWriters number of writer threads
+     * @param fsyncPieces number of pieces written between forcing storage to disk, or 0 to leave it to the OS
+     */
+    public DiskWriter(Storage storage, int queueCapacity, int numWriters, int fsyncPieces) {
+        this.storage = storage;
+        this.fsyncPieces = fsyncPieces;
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        pending = new ConcurrentHashMap<>();
+        writers = new Thread[numWriters];
+        piecesSinceFsync = 0;
+        saveDue = false;
+        submitting = 0;
+        stop = false;
+    }
+
+    /**
+     * Sets the callback told of pieces that failed to be written. Must be called before runWriters().
+     * @param callback the callback
+     */
+    public void setCallback(Callback callback) {
+        this.callback = callback;
+    }
+
+    /**
+     * Starts the writer threads.
+     */
+    public void runWriters() {
+        for (int i=0; i < writers.length; i++) {
+            writers[i] = new Thread(this::writePieces);
+            writers[i].start();
+        }
+    }
+
+    /**
+     * Stops the writer threads once every accepted piece is written, then forces storage to disk and saves the
+     * fast-resume record. Pieces submitted while the writers were stopping, or all pieces if the writers were never
+     * started, are written on the calling thread. Pieces submitted after this are rejected.
+     * Writers are not interrupted, since interrupting a thread in the middle of file I/O closes the file.
+     */
+    public void stop() {
+        synchronized (this) {
+            stop = true;
+        }
+
+        try {
+            for (Thread writer : writers) {
+                if (writer != null)
+                    writer.join();
+            }
+
+            /* Write what was accepted as the writers stopped, until no submit() is still putting a piece */
+            List<Piece> batch = new ArrayList<>();
+            ByteBuffer runBuffer = null;
+            while (true) {
+                queue.drainTo(batch);
+                if (!batch.isEmpty()) {
+                    runBuffer = writeBatch(batch, runBuffer);
+                    batch.clear();
+                    continue;
+                }
+
+                synchronized (this) {
+                    if (submitting == 0 && queue.isEmpty())
+                        break;
+                    wait(POLL_MILLIS);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+
+        saveFastResume();
+    }
+
+    /**
+     * Accepts a finished piece to be written to storage. Blocks while the queue is full.
+     * A piece whose blocks were written to storage as they arrived is not queued, only counted as written.
+     * @param piece the finished piece received from peers, with correct hash
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     * @throws IllegalStateException if the piece must be queued and the disk writer is stopped
+     */
+    public void submit(Piece piece) throws InterruptedException {
+        if (piece.isOnDisk()) {
+            storage.onPieceWritten(piece.index);
+            onWritten(1);
+            return;
+        }
+
+        synchronized (this) {
+            if (stop)
+                throw new IllegalStateException("DiskWriter: Stopped, piece " + piece.index + " not accepted");
+            submitting++;
+        }
+
+        pending.put(piece.index, piece);
+        try {
+            queue.put(piece);
+        } catch (InterruptedException e) {
+            pending.remove(piece.index);
+            throw e;
+        } finally {
+            synchronized (this) {
+                submitting--;
+                notifyAll();
+            }
+        }
+    }
+
+    /**
+     * @return the number of pieces waiting to be written
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Reads the requested block, from the accepted piece if it has not been written to storage yet.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the requested block
+     * @return byte array of requested length representing the block specified by piece index and begin offset.
+     */
+    public byte[] readBlock(int piece, int begin, int length) {
+        byte[] block = new byte[length];
+
+        readBlock(piece, begin, length, block);
+
+        return block;
+    }
+
+    /**
+     * Reads the requested block into the start of the given array, from the accepted piece if it has not been
+     * written to storage yet.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the requested block
+     * @param block array of at least length bytes to read the block into
+     */
+    public void readBlock(int piece, int begin, int length, byte[] block) {
+        Piece p = pending.get(piece);
+        if (p != null) {
+            /* The piece's buffer goes back to the pool once written, so make sure it is still pending */
+            synchronized (p) {
+                if (pending.get(piece) == p) {
+                    p.getBlock(begin, length).get(block, 0, length);
+                    return;
+                }
+            }
+        }
+
+        storage.readBlock(piece, begin, length, block);
+    }
+
+    private void writePieces() {
+        List<Piece> batch = new ArrayList<>();
+        ByteBuffer runBuffer = null;
+
+        while (true) {
+            /* Wait for a piece, then take everything else queued with it */
+            Piece first;
+            try {
+                first = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (first == null) {
+                saveIfDue();
+
+                /* Stop once everything accepted is written */
+                if (stop)
+                    break;
+                continue;
+            }
+            batch.add(first);
+            queue.drainTo(batch);
+
+            runBuffer = writeBatch(batch, runBuffer);
+            batch.clear();
+            saveIfDue();
+        }
+    }
+
+    /**
+     * Writes a batch of pieces, each run of adjacent pieces at once.
+     * @param batch the pieces, in any order, which is sorted
+     * @param runBuffer buffer to copy runs of more than one piece into, or null to allocate one if needed
+     * @return the run buffer, to reuse for the next batch
+     */
+    private ByteBuffer writeBatch(List<Piece> batch, ByteBuffer runBuffer) {
+        batch.sort((a, b) -> Integer.compare(a.index, b.index));
+
+        int runStart = 0;
+        int runLength = batch.get(0).length;
+        for (int i=1; i <= batch.size(); i++) {
+            if (i < batch.size() && batch.get(i).index == batch.get(i-1).index + 1
+                    && runLength + batch.get(i).length <= MAX_RUN_LENGTH) {
+                runLength += batch.get(i).length;
+                continue;
+            }
+
+            if (runBuffer == null && i - runStart > 1)
+                runBuffer = ByteBuffer.allocateDirect(MAX_RUN_LENGTH);
+            writeRun(batch.subList(runStart, i), runBuffer);
+
+            if (i < batch.size()) {
+                runStart = i;
+                runLength = batch.get(i).length;
+            }
+        }
+
+        onWritten(batch.size());
+        return runBuffer;
+    }
+
+    /**
+     * Counts pieces written, and once fsyncPieces pieces have been written since the last save, has the next writer
+     * thread to come by force storage to disk and save the fast-resume record, see saveIfDue(). The pieces counted may
+     * be written on any thread, so the save is never done here.
+     */
+    private void onWritten(int numPieces) {
+        if (fsyncPieces <= 0)
+            return;
+
+        synchronized (this) {
+            piecesSinceFsync += numPieces;
+            if (piecesSinceFsync >= fsyncPieces) {
+                piecesSinceFsync = 0;
+                saveDue = true;
+            }
+        }
+    }
+
+    /**
+     * Forces storage to disk and saves the fast-resume record, if fsyncPieces pieces were written since the last
+     * save. Called on the writer threads, after each batch and each empty poll.
+     */
+    private void saveIfDue() {
+        synchronized (this) {
+            if (!saveDue)
+                return;
+            saveDue = false;
+        }
+
+        saveFastResume();
+    }
+
+    private void saveFastResume() {
+        try {
+            storage.saveFastResume();
+        } catch (IOException | RuntimeException e) {
+            System.out.println("DiskWriter: Saving fast resume failed: " + e);
+        }
+    }
+
+    /**
+     * Writes a run of adjacent pieces to storage. Runs of more than one piece are copied together and written at once.
+     * If the write fails, the pieces are handed to the callback to be downloaded again.
+     * @param run the pieces, in order of index
+     * @param runBuffer buffer with room for all the pieces to copy them into
+     */
+    private void writeRun(List<Piece> run, ByteBuffer runBuffer) {
+        boolean failed = false;
+        try {
+            if (run.size() == 1) {
+                storage.writePiece(run.get(0));
+            } else {
+                runBuffer.clear();
+                for (Piece p : run) {
+                    runBuffer.put(p.bytes.duplicate());
+                }
+                runBuffer.flip();
+                storage.writePieces(run.get(0).index, run.get(run.size()-1).index, runBuffer);
+            }
+        } catch (RuntimeException e) {
+            System.out.println("DiskWriter: Writing pieces " + run.get(0).index + "-" + run.get(run.size()-1).index +
+                    " failed: " + e);
+            failed = true;
+        }
+
+        /* Only now may reads go to storage, and the buffers go back to their pool */
+        for (Piece p : run) {
+            synchronized (p) {
+                pending.remove(p.index);
+            }
+
+            Callback callback = this.callback;
+            if (failed && callback != null) {
+                try {
+                    callback.onWriteFailed(p);
+                } catch (RuntimeException e) {
+                    System.out.println("DiskWriter: Callback of piece " + p.index + " failed: " + e);
+                }
+            }
+            p.release();
+        }
+    }
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final int MAX_RUN_LENGTH = 1<<23; // 8 MiB
+    private static final long POLL_MILLIS = 100;
+}
@@ -0,0 +1,168 @@
+package dev.zackschw.boosttorrent;
+
+import dev.zackschw.boosttorrent.bencode.BDecoder;
+import dev.zackschw.boosttorrent.bencode.BEncoder;
+import dev.zackschw.boosttorrent.bencode.BValue;
+import dev.zackschw.boosttorrent.bencode.BencodeException;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fast-resume record of the pieces of a torrent that are on disk, saved next to the data.
+ * The record holds the info hash, the bitfield of pieces written to disk, and the length and last modified time of
+ * every file when the record was saved. A file whose length or modified time no longer match has changed since, and
+ * only its pieces need their hashes checked again.
+ * Pieces that were being downloaded straight to disk are recorded with the bitmap of their blocks written so far, so
+ * the download of each can continue where it stopped.
+ */
+public class FastResume {
+    private final byte[] infoHash;
+    private final byte[] bitfield;
+    private final long[] fileLengths;
+    private final long[] fileModifiedTimes;
+    private final Map<Integer, byte[]> partialPieces; // block bitmap of each partially written piece, by index
+
+    /**
+     * Creates a fast-resume record.
+     * @param infoHash info hash of the torrent
+     * @param bitfield bitfield of the pieces written to disk
+     * @param fileLengths length of each file
+     * @param fileModifiedTimes last modified time of each file, in milliseconds since the epoch
+     */
+    public FastResume(byte[] infoHash, byte[] bitfield, long[] fileLengths, long[] fileModifiedTimes) {
+        this(infoHash, bitfield, fileLengths, fileModifiedTimes, new HashMap<>());
+    }
+
+    /**
+     * Creates a fast-resume record with partially written pieces.
+     * @param infoHash info hash of the torrent
+     * @param bitfield bitfield of the pieces written to disk
+     * @param fileLengths length of each file
+     * @param fileModifiedTimes last modified time of each file, in milliseconds since the epoch
+     * @param partialPieces bitmap of the blocks written to disk of each partially written piece, by index
+     */
+    public FastResume(byte[] infoHash, byte[] bitfield, long[] fileLengths, long[] fileModifiedTimes,
+                      Map<Integer, byte[]> partialPieces) {
+        this.infoHash = infoHash;
+        this.bitfield = bitfield;
+        this.fileLengths = fileLengths;
+        this.fileModifiedTimes = fileModifiedTimes;
+        this.partialPieces = partialPieces;
+    }
+
+    /**
+     * Reads the fast-resume record at path.
+     * @param path path of the record
+     * @return the record, or null if there is none
+     * @throws IOException if an I/O error occurs reading the record
+     * @throws BencodeException if the record is malformed
+     */
+    public static FastResume read(String path) throws IOException, BencodeException {
+        File f = new File(path);
+        if (!f.exists())
+            return null;
+
+        Map<String, BValue> m;
+        try (BDecoder be = new BDecoder(new FileInputStream(f))) {
+            m = be.readDict().getMap();
+        }
+
+        byte[] infoHash = getRequiredValue(m, "info hash").getBytes();
+        byte[] bitfield = getRequiredValue(m, "bitfield").getBytes();
+        List<BValue> files = getRequiredValue(m, "files").getList();
+
+        long[] fileLengths = new long[files.size()];
+        long[] fileModifiedTimes = new long[files.size()];
+        for (int i=0; i < files.size(); i++) {
+            Map<String, BValue> file = files.get(i).getMap();
+            fileLengths[i] = getRequiredValue(file, "length").getLong();
+            fileModifiedTimes[i] = getRequiredValue(file, "mtime").getLong();
+        }
+
+        /* Records saved before partial pieces were kept have none */
+        Map<Integer, byte[]> partialPieces = new HashMap<>();
+        BValue partial = m.get("partial");
+        if (partial != null) {
+            for (BValue piece : partial.getList()) {
+                Map<String, BValue> p = piece.getMap();
+                partialPieces.put((int) getRequiredValue(p, "piece").getLong(), getRequiredValue(p, "blocks").getBytes());
+            }
+        }
+
+        return new FastResume(infoHash, bitfield, fileLengths, fileModifiedTimes, partialPieces);
+    }
+
+    /**
+     * Writes the record to path. The record is written to a temporary file first and then moved over path, so a
+     * crash while saving never leaves a partial record behind.
+     * @param path path of the record
+     * @throws IOException if an I/O error occurs writing the record
+     */
+    public void write(String path) throws IOException {
+        List<Map<String, Object>> files = new ArrayList<>(fileLengths.length);
+        for (int i=0; i < fileLengths.length; i++) {
+            Map<String, Object> file = new HashMap<>();
+            file.put("length", fileLengths[i]);
+            file.put("mtime", fileModifiedTimes[i]);
+            files.add(file);
+        }
+
+        List<Map<String, Object>> partial = new ArrayList<>(partialPieces.size());
+        for (Map.Entry<Integer, byte[]> e : partialPieces.entrySet()) {
+            Map<String, Object> piece = new HashMap<>();
+            piece.put("piece", (long) e.getKey());
+            piece.put("blocks", e.getValue());
+            partial.add(piece);
+        }
+
+        Map<String, Object> m = new HashMap<>();
+        m.put("info hash", infoHash);
+        m.put("bitfield", bitfield);
+        m.put("files", files);
+        m.put("partial", partial);
+
+        File tmp = new File(path + ".tmp");
+        try (OutputStream out = new FileOutputStream(tmp)) {
+            BEncoder.write(m, out);
+        }
+        Files.move(tmp.toPath(), new File(path).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static BValue getRequiredValue(Map<String, BValue> m, String key) throws BencodeException {
+        BValue val = m.get(key);
+        if (val == null)
+            throw new BencodeException("Missing fast resume key " + key);
+
+        return val;
+    }
+
+    public byte[] getInfoHash() {
+        return infoHash;
+    }
+
+    public byte[] getBitfield() {
+        return bitfield;
+    }
+
+    public long[] getFileLengths() {
+        return fileLengths;
+    }
+
+    public long[] getFileModifiedTimes() {
+        return fileModifiedTimes;
+    }
+
+    public Map<Integer, byte[]> getPartialPieces() {
+        return partialPieces;
+    }
+}
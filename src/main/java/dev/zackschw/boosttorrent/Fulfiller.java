@@ -2,23 +2,36 @@ package dev.zackschw.boosttorrent;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class Fulfiller {
     private final PeerCoordinator coordinator;
+    private final MetadataInfo meta;
+    private final PieceCache pieceCache;
     private final Storage storage;
 
     private Thread thread;
     private final List<Request> requests;
     private final List<Peer> unchokedPeers;
-    private boolean stop;
+    private final ReentrantLock requestLock; // waited on for requests, not a monitor so a virtual thread is not pinned
+    private final Condition requested;
+    private volatile boolean stop;
+    private volatile boolean zeroCopy; // send blocks straight from storage where the connection allows
 
-    public Fulfiller(PeerCoordinator coordinator, Storage storage) {
+    public Fulfiller(PeerCoordinator coordinator, MetadataInfo meta, PieceCache pieceCache, Storage storage) {
         this.coordinator = coordinator;
+        this.meta = meta;
+        this.pieceCache = pieceCache;
         this.storage = storage;
 
         requests = new ArrayList<>();
         unchokedPeers = new ArrayList<>(4);
+        requestLock = new ReentrantLock();
+        requested = requestLock.newCondition();
         stop = false;
+        zeroCopy = true;
     }
 
     private static class Request {
@@ -54,7 +67,15 @@ public class Fulfiller {
      * Starts a new thread to send pieces to peers.
      */
     public void runFulfiller() {
-        thread = new Thread(this::sendPiecesToPeers);
+        runFulfiller(PeerThreads.platform());
+    }
+
+    /**
+     * Starts a new thread from the factory to send pieces to peers.
+     * @param threadFactory factory of the thread, see PeerThreads
+     */
+    public void runFulfiller(ThreadFactory threadFactory) {
+        thread = threadFactory.newThread(this::sendPiecesToPeers);
         thread.start();
     }
 
@@ -63,22 +84,33 @@ public class Fulfiller {
      */
     public void stop() {
         stop = true;
-        thread.interrupt();
+        signalRequested();
+    }
+
+    /**
+     * Sets whether blocks are sent straight from storage to the connections run by a PeerEngine, with
+     * FileChannel.transferTo(). Blocks are read and copied out otherwise, as they always are for pieces not yet on
+     * disk, pieces in skipped files, and connections on streams. On by default.
+     * @param zeroCopy true to send blocks straight from storage where possible
+     */
+    public void setZeroCopy(boolean zeroCopy) {
+        this.zeroCopy = zeroCopy;
     }
 
     /**
-     * Adds request received from peer to fulfiller.
+     * Adds request received from peer to fulfiller, unless it is not for a block within a piece of the torrent.
      */
     public void onReceivedRequest(int index, int begin, int len, Peer peer) {
+        if (!isValidRequest(index, begin, len))
+            return;
+
         Request req = new Request(index, begin, len, peer);
 
         synchronized (requests) {
             requests.add(req);
         }
 
-        synchronized (this) {
-            notifyAll();
-        }
+        signalRequested();
     }
 
     /**
@@ -88,6 +120,8 @@ public class Fulfiller {
         synchronized (unchokedPeers) {
             unchokedPeers.add(peer);
         }
+
+        signalRequested();
     }
 
     public void onReceivedCancel(int index, int begin, int len, Peer peer) {
@@ -96,6 +130,11 @@ public class Fulfiller {
         synchronized (requests) {
             requests.remove(req);
         }
+
+        /* The block may already be queued to send */
+        PeerConnectionOut cout = peer.getPeerConnectionOut();
+        if (cout != null)
+            cout.cancelPiece(index, begin);
     }
 
     /**
@@ -113,36 +152,96 @@ public class Fulfiller {
     }
 
     private void sendPiecesToPeers() {
+        List<Request> toSend = new ArrayList<>();
+
         while (!stop) {
             /* Wait for requests to come in */
-            while (requests.size() == 0) {
-                synchronized (this) {
-                    try {
-                        wait();
-                    } catch (InterruptedException ignore) {
-                        Thread.currentThread().interrupt();
-                    }
+            requestLock.lock();
+            try {
+                while (!stop && !hasRequestToSend()) {
+                    requested.await();
                 }
+            } catch (InterruptedException e) {
+                break;
+            } finally {
+                requestLock.unlock();
             }
-            
+
             if (stop)
                 break;
 
+            /* Take the first request from each unchoked peer */
             synchronized (unchokedPeers) {
-                for (Peer p : unchokedPeers) {
-                    /* Get first request from this peer and send the block */
-                    synchronized (requests) {
+                synchronized (requests) {
+                    for (Peer p : unchokedPeers) {
                         for (Request r : requests) {
                             if (r.peer == p) {
-                                byte[] block = storage.readBlock(r.index, r.begin, r.len);
-                                p.getPeerConnectionOut().sendPiece(r.index, r.begin, block);
-                                p.getState().incrementUploaded(r.len);
+                                toSend.add(r);
                                 break;
                             }
                         }
                     }
+                    requests.removeAll(toSend);
+                }
+            }
+
+            /* Read and send the blocks holding no lock, since both may block on I/O */
+            for (Request r : toSend) {
+                /* The peer may have disconnected since */
+                PeerConnectionOut cout = r.peer.getPeerConnectionOut();
+                PeerState state = r.peer.getState();
+                if (cout == null || state == null)
+                    continue;
+
+                /* One failed request must not stop uploads to every peer */
+                try {
+                    if (!zeroCopy || !storage.canTransferBlock(r.index)
+                            || !cout.sendPieceFromStorage(r.index, r.begin, r.len, storage)) {
+                        byte[] block = pieceCache.readBlock(r.index, r.begin, r.len);
+                        cout.sendPiece(r.index, r.begin, block);
+                    }
+                    state.incrementUploaded(r.len);
+                } catch (RuntimeException e) {
+                    System.out.println("Fulfiller: Sending block " + r.begin + " of piece " + r.index + " failed: " + e);
                 }
             }
+            toSend.clear();
+        }
+    }
+
+    /**
+     * Returns true if the request is for a block of at most BLOCK_LENGTH bytes that lies within a piece of the torrent.
+     */
+    private boolean isValidRequest(int index, int begin, int len) {
+        return index >= 0 && index < meta.getNumPieces() && begin >= 0 && len > 0 && len <= Piece.BLOCK_LENGTH
+                && (long) begin + len <= meta.getPieceLength(index);
+    }
+
+    /**
+     * Wakes the fulfiller thread to look for requests to fulfill.
+     */
+    private void signalRequested() {
+        requestLock.lock();
+        try {
+            requested.signalAll();
+        } finally {
+            requestLock.unlock();
         }
     }
+
+    /**
+     * Returns true if any unchoked peer has a request to fulfill.
+     */
+    private boolean hasRequestToSend() {
+        synchronized (unchokedPeers) {
+            synchronized (requests) {
+                for (Request r : requests) {
+                    if (unchokedPeers.contains(r.peer))
+                        return true;
+                }
+            }
+        }
+
+        return false;
+    }
 }
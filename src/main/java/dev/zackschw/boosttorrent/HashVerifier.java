@@ -0,0 +1,194 @@
+package dev.zackschw.boosttorrent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checks the hashes of finished pieces off the peer threads.
+ * Pieces with every block received are submitted into a bounded queue with a callback, and worker threads, one per
+ * core by default, check their hashes and call the callbacks. A peer thread that submits a piece goes straight back
+ * to reading its socket, unless the queue is full, in which case it blocks until the workers catch up.
+ * Before the queue fills up, isBehind() tells the coordinator to stop starting new pieces, so the pieces already
+ * received can be verified first.
+ */
+public class HashVerifier {
+    private final Storage storage;
+    private final BlockingQueue<Job> queue;
+    private final int queueCapacity;
+    private final Thread[] workers;
+
+    private long numVerified;
+    private long numFailed;
+    private long verifiedBytes;
+    private long verifyNanos; // time spent checking hashes, summed over all workers
+    private volatile boolean stop;
+
+    /**
+     * Callback of a piece's hash check.
+     */
+    public interface Callback {
+        /**
+         * Called on a worker thread once the hash of the piece is checked.
+         * @param piece the piece checked
+         * @param passed true if the hash matches the hash from the meta file, otherwise false
+         */
+        void onVerified(Piece piece, boolean passed);
+    }
+
+    /**
+     * Creates a HashVerifier with default queue capacity and one worker thread per core.
+     * @param storage storage to read pieces on disk back from
+     */
+    public HashVerifier(Storage storage) {
+        this(storage, DEFAULT_QUEUE_CAPACITY, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a HashVerifier.
+     * @param storage storage to read pieces on disk back from
+     * @param queueCapacity number of pieces that may wait to be checked before submitting blocks
+     * @param numWorkers number of worker threads
+     */
+    public HashVerifier(Storage storage, int queueCapacity, int numWorkers) {
+        this.storage = storage;
+        this.queueCapacity = queueCapacity;
+
+        queue = new ArrayBlockingQueue<>(queueCapacity);
+        workers = new Thread[numWorkers];
+        stop = false;
+    }
+
+    /**
+     * Starts the worker threads.
+     */
+    public void runWorkers() {
+        for (int i=0; i < workers.length; i++) {
+            workers[i] = new Thread(this::verifyPieces);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Stops the worker threads once every submitted piece is checked.
+     */
+    public void stop() {
+        stop = true;
+
+        try {
+            for (Thread worker : workers) {
+                if (worker != null)
+                    worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Submits a piece with every block received to have its hash checked. Blocks while the queue is full.
+     * @param piece the piece to check
+     * @param callback called with the result once the piece is checked
+     * @throws InterruptedException if interrupted while waiting for space in the queue
+     */
+    public void submit(Piece piece, Callback callback) throws InterruptedException {
+        queue.put(new Job(piece, callback));
+    }
+
+    /**
+     * Checks the hash of a piece with every block received on the calling thread. Only the blocks that were not
+     * hashed as they arrived are hashed now, read back from storage for pieces on disk.
+     * @param piece the piece to check
+     * @return true if the hash matches the hash from the meta file, otherwise false
+     */
+    public boolean checkHash(Piece piece) {
+        return piece.isOnDisk() ? piece.checkHash(storage) : piece.checkHash();
+    }
+
+    /**
+     * Returns true if verification is falling behind, ie the queue is at least half full, and no new pieces should be
+     * started until it catches up.
+     */
+    public boolean isBehind() {
+        return queue.size() * 2 >= queueCapacity;
+    }
+
+    /**
+     * @return the number of pieces waiting to be checked
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * @return the number of pieces checked, passed or failed
+     */
+    public synchronized long getNumVerified() {
+        return numVerified;
+    }
+
+    /**
+     * @return the number of pieces that failed their hash check
+     */
+    public synchronized long getNumFailed() {
+        return numFailed;
+    }
+
+    /**
+     * @return the bytes of pieces checked per second spent checking, or 0 if no piece was checked
+     */
+    public synchronized double getThroughput() {
+        return verifyNanos == 0 ? 0 : verifiedBytes * 1e9 / verifyNanos;
+    }
+
+    private void verifyPieces() {
+        while (true) {
+            Job job;
+            try {
+                job = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (job == null) {
+                /* Stop once everything submitted is checked */
+                if (stop)
+                    break;
+                continue;
+            }
+
+            long start = System.nanoTime();
+            boolean passed = checkHash(job.piece);
+            long elapsed = System.nanoTime() - start;
+
+            synchronized (this) {
+                numVerified++;
+                if (!passed)
+                    numFailed++;
+                verifiedBytes += job.piece.length;
+                verifyNanos += elapsed;
+            }
+
+            try {
+                job.callback.onVerified(job.piece, passed);
+            } catch (RuntimeException e) {
+                System.out.println("HashVerifier: Callback of piece " + job.piece.index + " failed: " + e);
+            }
+        }
+    }
+
+    /**
+     * Piece submitted to be checked, with its callback.
+     */
+    private static class Job {
+        final Piece piece;
+        final Callback callback;
+
+        Job(Piece piece, Callback callback) {
+            this.piece = piece;
+            this.callback = callback;
+        }
+    }
+
+    private static final int DEFAULT_QUEUE_CAPACITY = 16;
+    private static final long POLL_MILLIS = 100;
+}
@@ -2,9 +2,11 @@ package dev.zackschw.boosttorrent;
 
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
- * Object representing a message. Messages are sent to an output stream depending on their type.
+ * Object representing a message. Messages are sent to an output stream depending on their type, or put into a buffer
+ * by the put methods, which write the same bytes.
  */
 public class Message {
     final static byte CHOKE = 0;
@@ -141,4 +143,73 @@ public class Message {
         dout.writeInt(begin);
         dout.writeInt(length);
     }
-}
\ No newline at end of file
+
+    /**
+     * Puts a Choke, Unchoke, Interested or Not Interested message, which have no payload.
+     * @param buf buffer with at least 5 bytes remaining
+     * @param id the type of the message
+     */
+    public static void putNoPayload(ByteBuffer buf, byte id) {
+        //<len=1><id>
+        buf.putInt(1);
+        buf.put(id);
+    }
+
+    /**
+     * Puts a Have message.
+     * @param buf buffer with at least 9 bytes remaining
+     * @param pieceIndex zero-based index of a piece that has just been successfully downloaded and verified via hash
+     */
+    public static void putHave(ByteBuffer buf, int pieceIndex) {
+        //<len=5><id=4><piece index>
+        buf.putInt(5);
+        buf.put(HAVE);
+        buf.putInt(pieceIndex);
+    }
+
+    /**
+     * Puts a Bitfield message.
+     * @param buf buffer with at least 5 + bitfield.length bytes remaining
+     * @param bitfield bitfield representing the pieces that have been successfully downloaded
+     */
+    public static void putBitfield(ByteBuffer buf, byte[] bitfield) {
+        //<len=1+bitfield.length><id=5><bitfield>
+        buf.putInt(1 + bitfield.length);
+        buf.put(BITFIELD);
+        buf.put(bitfield);
+    }
+
+    /**
+     * Puts a Request or Cancel message.
+     * @param buf buffer with at least 17 bytes remaining
+     * @param id REQUEST or CANCEL
+     * @param index the zero-based piece index
+     * @param begin the zero-based byte offset within the piece
+     * @param length the requested length
+     */
+    public static void putBlockMessage(ByteBuffer buf, byte id, int index, int begin, int length) {
+        //<len=13><id><index><begin><length>
+        buf.putInt(13);
+        buf.put(id);
+        buf.putInt(index);
+        buf.putInt(begin);
+        buf.putInt(length);
+    }
+
+    /**
+     * Puts the header of a Piece message, to be followed by the block.
+     * @param buf buffer with at least PIECE_HEADER_LENGTH bytes remaining
+     * @param index the zero-based piece index
+     * @param begin the zero-based byte offset within the piece
+     * @param blockLength the length of the block that follows
+     */
+    public static void putPieceHeader(ByteBuffer buf, int index, int begin, int blockLength) {
+        //<len=9+block.length><id=7><index><begin>
+        buf.putInt(9 + blockLength);
+        buf.put(PIECE);
+        buf.putInt(index);
+        buf.putInt(begin);
+    }
+
+    final static int PIECE_HEADER_LENGTH = 13;
+}
@@ -0,0 +1,282 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Decodes the messages received from a peer, framed by their length prefix, and hands each to the peer's PeerState.
+ * Bytes are read into one buffer per connection, as many as there is room for, and complete messages are parsed in
+ * place: fields are read at their offsets, and the block of a PIECE message is handed over as a slice of the buffer.
+ * The block of an unwanted PIECE message is skipped as it arrives instead of being buffered. Decoding allocates
+ * nothing but the bitfield the state keeps, and the buffer only grows for a message longer than it.
+ * Used by PeerConnectionIn over a stream, with a heap buffer, and by PeerChannel over a non-blocking channel, with a
+ * direct buffer.
+ */
+class MessageDecoder {
+    private final boolean direct;
+
+    private ByteBuffer buffer; // bytes read and not yet decoded from start to its position, ready to read more into
+    private ByteBuffer view; // shares the buffer's bytes, limited to a payload to hand it over
+    private int start; // offset into the buffer of the first byte not yet decoded
+    private int needed; // bytes from start the next message needs to be decoded, when it is incomplete
+    private int skipRemaining; // bytes of an unwanted block still to be skipped as they arrive
+    private volatile boolean stopped;
+
+    /**
+     * Creates a MessageDecoder with a buffer of default length.
+     * @param direct true for a direct buffer, to read from channels, false for a heap buffer, to read from streams
+     */
+    MessageDecoder(boolean direct) {
+        this(DEFAULT_BUFFER_LENGTH, direct);
+    }
+
+    /**
+     * Creates a MessageDecoder.
+     * @param bufferLength initial length of the buffer
+     * @param direct true for a direct buffer, to read from channels, false for a heap buffer, to read from streams
+     */
+    MessageDecoder(int bufferLength, boolean direct) {
+        this.direct = direct;
+
+        setBuffer(allocate(bufferLength));
+        start = 0;
+        needed = 0;
+        skipRemaining = 0;
+        stopped = false;
+    }
+
+    /**
+     * Reads as many bytes from the channel as there is room for.
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if an I/O error occurs reading
+     */
+    int read(ReadableByteChannel channel) throws IOException {
+        prepareRead();
+        return channel.read(buffer);
+    }
+
+    /**
+     * Reads as many bytes from the stream as there is room for, blocking until at least one is available. Only for a
+     * decoder with a heap buffer.
+     * @return the number of bytes read, or -1 at the end of the stream
+     * @throws IOException if an I/O error occurs reading
+     */
+    int read(InputStream in) throws IOException {
+        prepareRead();
+
+        int n = in.read(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        if (n > 0)
+            buffer.position(buffer.position() + n);
+        return n;
+    }
+
+    /**
+     * Decodes the peer's handshake, once it is read whole.
+     * @param meta the meta info of the torrent
+     * @return the 20-byte peerID of the peer, or null if the handshake is not read whole yet
+     * @throws IOException if the handshake is invalid
+     */
+    byte[] decodeHandshake(MetadataInfo meta) throws IOException {
+        if (buffer.position() - start < Peer.HANDSHAKE_LENGTH) {
+            needed = Peer.HANDSHAKE_LENGTH;
+            return null;
+        }
+
+        slice(start, start + Peer.HANDSHAKE_LENGTH);
+        start += Peer.HANDSHAKE_LENGTH;
+        return Peer.readHandshake(view, meta);
+    }
+
+    /**
+     * Decodes every complete message read, handing each to the state, until the decoder is stopped.
+     * @param state the state of the peer
+     * @throws IOException if the peer sent an invalid message
+     */
+    void decode(PeerState state) throws IOException {
+        while (!stopped) {
+            int available = buffer.position() - start;
+
+            /* Skip what arrived of an unwanted block */
+            if (skipRemaining > 0) {
+                int n = Math.min(skipRemaining, available);
+                start += n;
+                skipRemaining -= n;
+                if (skipRemaining > 0)
+                    return;
+                continue;
+            }
+
+            /* Read length */
+            if (available < 4) {
+                needed = 4;
+                return;
+            }
+            int len = buffer.getInt(start);
+            if (len < 0 || len > MAX_MESSAGE_LENGTH) {
+                throw new IOException("Received unexpected length of message " + len);
+            } else if (len == 0) {
+                // keep alive message
+                start += 4;
+                continue;
+            }
+
+            /* Read type */
+            if (available < 5) {
+                needed = 5;
+                return;
+            }
+            byte id = buffer.get(start + 4);
+
+            if (id == Message.PIECE) {
+                /* Whether the block is wanted is known from the header, so an unwanted block is never buffered */
+                requireLength(len, 9);
+                if (available < 4 + 9) {
+                    needed = 4 + 9;
+                    return;
+                }
+                int index = buffer.getInt(start + 5);
+                int begin = buffer.getInt(start + 9);
+                int length = len-9;
+
+                Piece piece = state.getActivePiece(index);
+                if (piece == null || !piece.isValidBlock(begin, length)) {
+                    start += 4 + 9;
+                    skipRemaining = length;
+                    state.incrementDownloaded(length);
+                    state.onPieceMessage(index, null, begin, null, length);
+                    continue;
+                }
+
+                /* Hand the block over in place, the piece copies it in unless another peer sent it first */
+                if (available < 4 + len) {
+                    needed = 4 + len;
+                    return;
+                }
+                slice(start + 4 + 9, start + 4 + len);
+                start += 4 + len;
+                state.incrementDownloaded(length);
+                state.onPieceMessage(index, piece, begin, view, length);
+                continue;
+            }
+
+            /* Wait for the whole message */
+            if (available < 4 + len) {
+                needed = 4 + len;
+                return;
+            }
+            int payload = start + 5;
+            start += 4 + len;
+            decodeMessage(state, id, payload, len);
+        }
+    }
+
+    /**
+     * Stops decode() before the next message, eg on disconnecting.
+     */
+    void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return the length of the buffer
+     */
+    int getBufferLength() {
+        return buffer.capacity();
+    }
+
+    /**
+     * Reads the rest of a message, other than PIECE, from the buffer and alters state based on its type.
+     * @param state the state of the peer
+     * @param id the type of the message
+     * @param payload offset into the buffer of the message's payload
+     * @param len length of the message, including its type
+     */
+    private void decodeMessage(PeerState state, byte id, int payload, int len) throws IOException {
+        switch (id) {
+            case Message.CHOKE:
+                state.onChokeMessage(true);
+                break;
+            case Message.UNCHOKE:
+                state.onChokeMessage(false);
+                break;
+            case Message.INTERESTED:
+                state.onInterestMessage(true);
+                break;
+            case Message.NOTINTERESTED:
+                state.onInterestMessage(false);
+                break;
+            case Message.HAVE:
+                requireLength(len, 5);
+                state.onHaveMessage(buffer.getInt(payload));
+                break;
+            case Message.BITFIELD:
+                byte[] bitmap = new byte[len-1];
+                slice(payload, payload + len-1);
+                view.get(bitmap);
+                state.onBitfieldMessage(bitmap);
+                break;
+            case Message.REQUEST:
+                requireLength(len, 13);
+                state.onRequestMessage(buffer.getInt(payload), buffer.getInt(payload + 4), buffer.getInt(payload + 8));
+                break;
+            case Message.CANCEL:
+                requireLength(len, 13);
+                state.onCancelMessage(buffer.getInt(payload), buffer.getInt(payload + 4), buffer.getInt(payload + 8));
+                break;
+            default:
+                throw new IOException("Received unexpected message type " + id);
+        }
+    }
+
+    /**
+     * Makes room to read into: the buffer starts over once everything read is decoded, and a partly read message is
+     * moved to the front when the rest of it would not fit or there is little room left. The buffer grows if the
+     * message is longer than it.
+     */
+    private void prepareRead() {
+        if (start == buffer.position()) {
+            buffer.clear();
+            start = 0;
+        } else if (start + needed > buffer.capacity() || buffer.remaining() < MIN_READ) {
+            buffer.flip();
+            buffer.position(start);
+            buffer.compact();
+            start = 0;
+        }
+
+        if (needed > buffer.capacity()) {
+            ByteBuffer larger = allocate(Math.max(buffer.capacity() * 2, needed));
+            buffer.flip();
+            larger.put(buffer);
+            setBuffer(larger);
+        }
+    }
+
+    /**
+     * Limits the view to bytes from offset from to offset to of the buffer.
+     */
+    private void slice(int from, int to) {
+        view.limit(to);
+        view.position(from);
+    }
+
+    private void setBuffer(ByteBuffer buffer) {
+        this.buffer = buffer;
+        view = buffer.duplicate();
+    }
+
+    private ByteBuffer allocate(int length) {
+        return direct ? ByteBuffer.allocateDirect(length) : ByteBuffer.allocate(length);
+    }
+
+    private static void requireLength(int len, int minLength) throws IOException {
+        if (len < minLength)
+            throw new IOException("Received truncated message of length " + len);
+    }
+
+    private static final int DEFAULT_BUFFER_LENGTH = 1<<15; // 32 KiB, room for two whole PIECE messages
+    private static final int MIN_READ = 1<<12; // 4 KiB
+    private static final int MAX_MESSAGE_LENGTH = 1<<21; // 2 MiB, room for the bitfield of any sane torrent
+}
@@ -26,6 +26,7 @@ public class MetadataInfo {
     private final byte[][] pieceHashes; // byte array of HASH_LENGTH byte arrays, each entry in outer array is one piece
     private final String name; // filename
     private final List<MetaFile> files; // Single-file mode if list length is 1, multi-file mode if >1
+    private final long[] fileOffsets; // start offset of each file in the torrent, followed by the total length
 
     MetadataInfo(byte[] infoHash,
                     String announce,
@@ -41,6 +42,7 @@ public class MetadataInfo {
         this.pieceHashes = pieceHashes;
         this.name = name;
         this.files = files;
+        this.fileOffsets = getFileOffsets(files);
     }
 
     /**
@@ -72,6 +74,7 @@ public class MetadataInfo {
         this.pieceHashes = getHashArray(infoMap, 20);
         this.name = getRequiredValue(infoMap, "name").getString();
         this.files = getMetaFiles(infoMap);
+        this.fileOffsets = getFileOffsets(files);
     }
 
     private BValue getRequiredValue(Map<String, BValue> m, String key) throws BencodeException {
@@ -129,6 +132,15 @@ public class MetadataInfo {
         return returnList;
     }
 
+    private long[] getFileOffsets(List<MetaFile> files) {
+        long[] offsets = new long[files.size() + 1];
+        for (int i=0; i < files.size(); i++) {
+            offsets[i+1] = offsets[i] + files.get(i).getLength();
+        }
+
+        return offsets;
+    }
+
     private byte[][] getHashArray(Map<String, BValue> infoMap, int lenHash) throws BencodeException {
         byte[] allHashes = getRequiredValue(infoMap, "pieces").getBytes();
         byte[][] returnArray = new byte[allHashes.length / lenHash][];
@@ -173,15 +185,83 @@ public class MetadataInfo {
     }
 
     public long getTotalFileBytes() {
-        long totalFileBytes = 0;
-        for (MetaFile file : files)
-            totalFileBytes += file.getLength();
+        return fileOffsets[files.size()];
+    }
+
+    /**
+     * Returns the offset into the torrent where the file begins.
+     * @param file index of the file, or the number of files to get the total length of the torrent
+     */
+    public long getFileOffset(int file) {
+        return fileOffsets[file];
+    }
 
-        return totalFileBytes;
+    /**
+     * Returns the index of the file holding the byte at the given offset into the torrent. Empty files never hold a
+     * byte and are skipped.
+     * @param offset offset into the torrent
+     * @return the file index, or -1 if the offset is outside the torrent
+     */
+    public int getFileIndex(long offset) {
+        return getFileIndex(offset, 0, files.size() - 1);
+    }
+
+    /**
+     * Returns the index of the file holding the byte at the given offset into the torrent, searching only the files
+     * from first to last (inclusive).
+     * @param offset offset into the torrent
+     * @param first index of the first file to search
+     * @param last index of the last file to search
+     * @return the file index, or -1 if the offset is outside the searched files
+     */
+    public int getFileIndex(long offset, int first, int last) {
+        if (offset < fileOffsets[first] || offset >= fileOffsets[last+1])
+            return -1;
+
+        /* Find the last file that begins at or before the offset */
+        int lo = first;
+        int hi = last;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (fileOffsets[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+
+        return lo;
     }
 
     public int getLastPieceLength() {
-        return (int) (getTotalFileBytes() - (pieceHashes.length-1)*pieceLength);
+        return (int) (getTotalFileBytes() - (long) (pieceHashes.length-1) * pieceLength);
+    }
+
+    /**
+     * Returns the length of the piece, which is the piece length for all pieces but the last.
+     * @param index zero-based index of the piece
+     */
+    public int getPieceLength(int index) {
+        return index == pieceHashes.length - 1 ? getLastPieceLength() : pieceLength;
+    }
+
+    /**
+     * Returns the offset into the torrent where the piece begins.
+     * @param index zero-based index of the piece
+     */
+    public long getPieceOffset(int index) {
+        return (long) index * pieceLength;
+    }
+
+    /**
+     * Returns the index of the piece holding the byte at the given offset into the torrent.
+     * @param offset offset into the torrent
+     * @return the piece index, or -1 if the offset is outside the torrent
+     */
+    public int getPieceIndex(long offset) {
+        if (offset < 0 || offset >= getTotalFileBytes())
+            return -1;
+
+        return (int) (offset / pieceLength);
     }
 
     private byte[] hash(byte[] input) {
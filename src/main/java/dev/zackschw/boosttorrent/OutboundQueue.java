@@ -0,0 +1,395 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * The messages waiting to be sent to one peer.
+ * Control messages, ie every message but PIECE, are encoded as they are queued into one reusable buffer. PIECE
+ * messages are queued as their blocks, and encoded only when copied out. fill() copies as many queued bytes as fit
+ * into a buffer to write to the peer, so whatever was queued since the last write goes out in as few writes as
+ * possible.
+ * A PIECE message may instead be queued as a block in storage, for a connection that can take it straight from the
+ * files with transfer(): fill() copies out its header and stops, and transfer() sends the block.
+ * Control messages go out ahead of every queued PIECE, but never in the middle of one, so a CHOKE or CANCEL is not
+ * held up behind megabytes of blocks. The bytes of queued blocks are bounded: queueing a block waits while the
+ * bound is reached, which stops the uploading thread until the peer takes what it was sent. Control messages are
+ * never held up, since they are small and queued by threads that must not block.
+ */
+class OutboundQueue {
+    private final int maxPieceBytes;
+    private final ReentrantLock lock; // not a monitor, so a virtual thread waiting for room is not pinned
+    private final Condition drained; // signalled whenever blocks are copied out
+    private final Deque<QueuedPiece> pieces;
+
+    private ByteBuffer control; // control messages queued, in order, from 0 to its position
+    private QueuedPiece current; // piece partly copied out, finished before anything else is
+    private int currentOffset; // bytes of the current piece's block already copied out
+    private long pieceBytes; // bytes of blocks queued and not yet copied out
+    private boolean closed;
+
+    /**
+     * Creates an OutboundQueue with a default bound on the bytes of queued blocks.
+     */
+    OutboundQueue() {
+        this(DEFAULT_MAX_PIECE_BYTES);
+    }
+
+    /**
+     * Creates an OutboundQueue.
+     * @param maxPieceBytes number of bytes of blocks that may be queued before queueing more waits. A block is always
+     *                      accepted into an empty queue, whatever its length.
+     */
+    OutboundQueue(int maxPieceBytes) {
+        this.maxPieceBytes = maxPieceBytes;
+
+        lock = new ReentrantLock();
+        drained = lock.newCondition();
+        pieces = new ArrayDeque<>();
+        control = ByteBuffer.allocate(INITIAL_CONTROL_LENGTH);
+        current = null;
+        pieceBytes = 0;
+        closed = false;
+    }
+
+    /**
+     * Queues a message with no payload, ie CHOKE, UNCHOKE, INTERESTED or NOTINTERESTED.
+     * @return true if the queue was empty before, otherwise false
+     */
+    boolean putNoPayload(byte id) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            Message.putNoPayload(reserve(5), id);
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a HAVE message.
+     * @return true if the queue was empty before, otherwise false
+     */
+    boolean putHave(int piece) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            Message.putHave(reserve(9), piece);
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a BITFIELD message.
+     * @return true if the queue was empty before, otherwise false
+     */
+    boolean putBitfield(byte[] bitmap) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            Message.putBitfield(reserve(5 + bitmap.length), bitmap);
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a REQUEST or CANCEL message.
+     * @return true if the queue was empty before, otherwise false
+     */
+    boolean putBlockMessage(byte id, int piece, int begin, int length) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            Message.putBlockMessage(reserve(17), id, piece, begin, length);
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues bytes that are already encoded, eg the handshake, as a control message.
+     * @return true if the queue was empty before, otherwise false
+     */
+    boolean putBytes(byte[] bytes) {
+        lock.lock();
+        try {
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            reserve(bytes.length).put(bytes);
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Queues a PIECE message, waiting while the bytes of queued blocks are at the bound. Must not be called by the
+     * thread that drains the queue.
+     * @param piece the zero-based piece index
+     * @param begin the zero-based byte offset within the piece
+     * @param block the block, which must not be changed until it is copied out
+     * @return true if the queue was empty before, otherwise false, including if it was closed
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    boolean putPiece(int piece, int begin, byte[] block) throws InterruptedException {
+        return putPiece(new QueuedPiece(piece, begin, block.length, block, null));
+    }
+
+    /**
+     * Queues a PIECE message whose block is to be sent straight from storage with transfer(), waiting while the bytes
+     * of queued blocks are at the bound. Must not be called by the thread that drains the queue.
+     * @param piece the zero-based piece index
+     * @param begin the zero-based byte offset within the piece
+     * @param length length of the block
+     * @param storage storage holding the block, for which canTransferBlock() is true
+     * @return true if the queue was empty before, otherwise false, including if it was closed
+     * @throws InterruptedException if interrupted while waiting for room
+     */
+    boolean putPieceFromStorage(int piece, int begin, int length, Storage storage) throws InterruptedException {
+        return putPiece(new QueuedPiece(piece, begin, length, null, storage));
+    }
+
+    private boolean putPiece(QueuedPiece p) throws InterruptedException {
+        lock.lock();
+        try {
+            while (!closed && pieceBytes > 0 && pieceBytes + p.length > maxPieceBytes) {
+                drained.await();
+            }
+            if (closed)
+                return false;
+
+            boolean wasEmpty = isEmptyLocked();
+            pieces.add(p);
+            pieceBytes += p.length;
+            return wasEmpty;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes a queued PIECE message that has not started to be copied out, eg on the peer cancelling its request.
+     * @return true if the message was removed, otherwise false
+     */
+    boolean removePiece(int piece, int begin) {
+        lock.lock();
+        try {
+            Iterator<QueuedPiece> it = pieces.iterator();
+            while (it.hasNext()) {
+                QueuedPiece p = it.next();
+                if (p.index == piece && p.begin == begin) {
+                    it.remove();
+                    pieceBytes -= p.length;
+                    drained.signalAll();
+                    return true;
+                }
+            }
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Copies as many queued bytes as fit into the buffer, in the order they are to be sent: the rest of a piece
+     * partly copied out, then control messages, then pieces. Stops after the header of a piece queued with
+     * putPieceFromStorage(), whose block is then sent with transfer().
+     * @param dst buffer to copy into, from its position, which is advanced past the bytes copied
+     * @return true if any bytes were copied, otherwise false
+     */
+    boolean fill(ByteBuffer dst) {
+        lock.lock();
+        try {
+            int start = dst.position();
+            long pieceBytesBefore = pieceBytes;
+
+            while (dst.hasRemaining()) {
+                /* Finish the piece being copied out */
+                if (current != null) {
+                    if (current.block == null)
+                        break;
+
+                    int n = Math.min(dst.remaining(), current.length - currentOffset);
+                    dst.put(current.block, currentOffset, n);
+                    currentOffset += n;
+                    pieceBytes -= n;
+                    if (currentOffset < current.length)
+                        break;
+                    current = null;
+                }
+
+                /* Control messages go ahead of the pieces */
+                if (control.position() > 0) {
+                    ByteBuffer queued = control.duplicate();
+                    queued.flip();
+                    int n = Math.min(dst.remaining(), queued.remaining());
+                    queued.limit(n);
+                    dst.put(queued);
+
+                    control.flip();
+                    control.position(n);
+                    control.compact();
+                    if (control.position() > 0)
+                        break;
+                }
+
+                /* Start the next piece, with its whole header */
+                if (pieces.isEmpty() || dst.remaining() < Message.PIECE_HEADER_LENGTH)
+                    break;
+                current = pieces.poll();
+                currentOffset = 0;
+                Message.putPieceHeader(dst, current.index, current.begin, current.length);
+            }
+
+            if (pieceBytes != pieceBytesBefore)
+                drained.signalAll();
+            return dst.position() > start;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Sends the rest of the block of the piece being sent straight from storage to the channel, once fill() stopped
+     * after the header of a piece queued with putPieceFromStorage(). The bytes copied out by fill() must be written
+     * first. The queue is not locked while transferring, so other threads can queue messages meanwhile.
+     * @param target channel to send to, eg a non-blocking socket
+     * @return the number of bytes sent, 0 if the channel took none, or -1 if there is no block to send from storage
+     * @throws IOException if an I/O error occurs reading storage or writing the channel
+     */
+    long transfer(WritableByteChannel target) throws IOException {
+        QueuedPiece p;
+        int offset;
+        lock.lock();
+        try {
+            p = current;
+            offset = currentOffset;
+            if (p == null || p.block != null)
+                return -1;
+        } finally {
+            lock.unlock();
+        }
+
+        /* Only the draining thread moves current on, so it is still this piece unless the queue was closed */
+        long n = p.storage.transferBlock(p.index, p.begin, p.length, offset, target);
+
+        lock.lock();
+        try {
+            if (current == p && n > 0) {
+                currentOffset += n;
+                pieceBytes -= n;
+                if (currentOffset == p.length)
+                    current = null;
+                drained.signalAll();
+            }
+            return n;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if nothing is queued.
+     */
+    boolean isEmpty() {
+        lock.lock();
+        try {
+            return isEmptyLocked();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes of blocks queued and not yet copied out
+     */
+    long getPieceBytes() {
+        lock.lock();
+        try {
+            return pieceBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops everything queued, and ignores blocks queued from now on, waking any thread waiting for room.
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            pieces.clear();
+            current = null;
+            pieceBytes = 0;
+            control.clear();
+            drained.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isEmptyLocked() {
+        return control.position() == 0 && current == null && pieces.isEmpty();
+    }
+
+    /**
+     * Makes room for a control message of the given length, growing the control buffer if needed. Must hold the lock.
+     * @return the control buffer, to put the message into
+     */
+    private ByteBuffer reserve(int length) {
+        if (control.remaining() < length) {
+            ByteBuffer larger = ByteBuffer.allocate(Math.max(control.capacity() * 2, control.position() + length));
+            control.flip();
+            larger.put(control);
+            control = larger;
+        }
+
+        return control;
+    }
+
+    private static class QueuedPiece {
+        final int index;
+        final int begin;
+        final int length;
+        final byte[] block; // or null to send from storage
+        final Storage storage; // storage to send the block from, or null
+
+        QueuedPiece(int index, int begin, int length, byte[] block, Storage storage) {
+            this.index = index;
+            this.begin = begin;
+            this.length = length;
+            this.block = block;
+            this.storage = storage;
+        }
+    }
+
+    private static final int INITIAL_CONTROL_LENGTH = 256;
+    private static final int DEFAULT_MAX_PIECE_BYTES = 16 * Piece.BLOCK_LENGTH; // 256 KiB
+}
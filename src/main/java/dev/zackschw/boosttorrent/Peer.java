@@ -6,6 +6,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.Arrays;
 
@@ -14,6 +16,8 @@ public class Peer {
     private final byte[] myPeerID;
 
     private Socket sock;
+    private SocketChannel channel; // channel of a peer accepted by a PeerEngine, or null
+    private PeerChannel connection; // connection run by a PeerEngine, or null if run by runConnection()
     private PeerAddress peerAddress;
     private DataInputStream din;
     private DataOutputStream dout;
@@ -49,6 +53,18 @@ public class Peer {
         this.myPeerID = myPeerID;
     }
 
+    /**
+     * Creates a peer connected through a non-blocking channel, to be run by a PeerEngine.
+     * @param channel the already connected channel of the peer
+     * @param meta the meta info of the torrent
+     * @param myPeerID the client's own 20-byte peerID
+     */
+    public Peer(SocketChannel channel, MetadataInfo meta, byte[] myPeerID) {
+        this.channel = channel;
+        this.meta = meta;
+        this.myPeerID = myPeerID;
+    }
+
 
     PeerState getState() {
         return state;
@@ -66,15 +82,39 @@ public class Peer {
         return peerID;
     }
 
+    /**
+     * @return the address to connect to, or null if the peer connected to the client
+     */
+    PeerAddress getPeerAddress() {
+        return peerAddress;
+    }
+
+    /**
+     * @return the channel the peer connected to the client through, or null
+     */
+    SocketChannel getChannel() {
+        return channel;
+    }
+
     /**
      * Closes the socket.
      */
     public void disconnect() {
+        /* Wake any thread waiting to queue a block for the peer */
+        if (cout != null)
+            cout.close();
+
+        if (connection != null) {
+            connection.close();
+            return;
+        }
+
         if (cin != null)
             cin.disconnect();
 
         try {
-            sock.close();
+            if (sock != null)
+                sock.close();
         } catch (IOException ignored) {
         }
     }
@@ -121,63 +161,114 @@ public class Peer {
     }
 
 
+    /**
+     * Starts the connection run by a PeerEngine once the peer's handshake is received, the same way runConnection()
+     * does once handshaking is done. Called on the connection's event loop.
+     * @param coordinator the peer coordinator used for callbacks
+     * @param connection the connection to the peer
+     * @param peerID the peer's 20-byte peerID, from its handshake
+     * @param myBitfield the client's bitfield of pieces
+     */
+    void onHandshake(PeerCoordinator coordinator, PeerChannel connection, byte[] peerID, Bitvector myBitfield) {
+        this.connection = connection;
+        this.peerID = peerID;
+
+        cout = new PeerConnectionOut(this, connection);
+        state = new PeerState(this, null, cout, meta, coordinator, connection::offload);
+
+        coordinator.onConnected(this);
+
+        /* Send first messages */
+        if (myBitfield != null && !myBitfield.isEmpty()) {
+            cout.sendBitfield(myBitfield.toByteArray());
+        }
+    }
+
+
     /**
      * Initiate handshake with the peer
      * @throws IOException if an I/O error occurs writing to the output stream
      */
     private void sendHandshake() throws IOException {
+        dout.write(createHandshake(meta, myPeerID));
+        dout.flush();
+    }
+
+    /**
+     * Set peerID after verifying integrity of received handshake
+     * @throws IOException if an I/O error occurs reading from the input stream
+     */
+    private void recvHandshake() throws IOException {
+        byte[] handshake = new byte[HANDSHAKE_LENGTH];
+        din.readFully(handshake);
+
+        peerID = readHandshake(ByteBuffer.wrap(handshake), meta);
+    }
+
+    /**
+     * Creates the client's handshake.
+     * @param meta the meta info of the torrent
+     * @param myPeerID the client's own 20-byte peerID
+     * @return the HANDSHAKE_LENGTH bytes of the handshake
+     */
+    static byte[] createHandshake(MetadataInfo meta, byte[] myPeerID) {
+        ByteBuffer handshake = ByteBuffer.allocate(HANDSHAKE_LENGTH);
+
         //pstrlen -> send byte 19
-        dout.write(19);
+        handshake.put((byte) PSTR.length());
 
         //pstr -> send string "BitTorrent protocol"
-        dout.write("BitTorrent protocol".getBytes(StandardCharsets.UTF_8));
+        handshake.put(PSTR.getBytes(StandardCharsets.UTF_8));
 
         //reserved -> send 8 empty bytes
-        byte[] reserved = new byte[8];
-        dout.write(reserved);
+        handshake.put(new byte[8]);
 
         //info_hash -> send hash from MetadataInfo
-        dout.write(meta.getInfoHash());
+        handshake.put(meta.getInfoHash());
 
         //peer_id -> send peer ID
-        dout.write(myPeerID);
+        handshake.put(myPeerID);
 
-        dout.flush();
+        return handshake.array();
     }
 
     /**
-     * Set peerID after verifying integrity of received handshake
-     * @throws IOException if an I/O error occurs reading from the input stream
+     * Verifies the integrity of a handshake received from a peer.
+     * @param handshake buffer holding at least the HANDSHAKE_LENGTH bytes of the handshake from its position, which
+     *                  is advanced past them
+     * @param meta the meta info of the torrent
+     * @return the 20-byte peerID of the peer
+     * @throws IOException if the handshake is invalid
      */
-    private void recvHandshake() throws IOException {
+    static byte[] readHandshake(ByteBuffer handshake, MetadataInfo meta) throws IOException {
         /* Verify that pstrlen is 19 */
-        int pstrlen = din.readInt();
-        if (pstrlen != 19) {
+        int pstrlen = handshake.get() & 0xFF;
+        if (pstrlen != PSTR.length()) {
             throw new IOException("Handshake pstrlen is invalid. Expected: 19. Received: " + pstrlen);
-        };
+        }
 
         /* Verify that pstr is "BitTorrent protocol" */
-        byte[] pstrBytes = new byte[19];
-        din.readFully(pstrBytes);
+        byte[] pstrBytes = new byte[PSTR.length()];
+        handshake.get(pstrBytes);
         String pstr = new String(pstrBytes, StandardCharsets.UTF_8);
-        if (!pstr.equals("BitTorrent protocol")) {
+        if (!pstr.equals(PSTR)) {
             throw new IOException("Handshake pstr is invalid. Expected: \"BitTorrent protocol\". Received: " + pstr);
-        };
+        }
 
-        /* Read reserved bytes */
-        byte[] reserved = new byte[8];
-        din.readFully(reserved);
+        /* Skip reserved bytes */
+        handshake.position(handshake.position() + 8);
 
         /* Verify that the info hash value matches what was expected */
         byte[] info_hash = new byte[20];
-        din.readFully(info_hash);
+        handshake.get(info_hash);
         if (!Arrays.equals(meta.getInfoHash(), info_hash)) {
             throw new IOException("Handshake info hash is invalid. Expected: " + Arrays.toString(meta.getInfoHash()) + ". Received: " + Arrays.toString(info_hash));
-        };
+        }
 
         /* Read peer id */
-        peerID = new byte[20];
-        din.readFully(peerID);
+        byte[] peerID = new byte[20];
+        handshake.get(peerID);
+        return peerID;
     }
 
 
@@ -204,6 +295,28 @@ public class Peer {
         return state == null ? 0 : state.getUploaded();
     }
 
+    /**
+     * Gets the number of block requests sent to this peer and not yet received
+     */
+    public int getRequestQueueDepth() {
+        return state == null ? 0 : state.getQueueDepth();
+    }
+
+    /**
+     * Gets the number of block requests the client keeps outstanding at this peer, sized from its download rate and
+     * round-trip time. A queue depth below the window means the client had nothing more to request from the peer.
+     */
+    public int getRequestWindowSize() {
+        return state == null ? 0 : state.getRequestWindow().getSize();
+    }
+
+    /**
+     * Gets the smoothed round-trip time of a block request to this peer in milliseconds
+     */
+    public double getBlockRtt() {
+        return state == null ? 0 : state.getRequestWindow().getSmoothedRtt();
+    }
+
     /**
      * Resets the statistics of this peer's uploaded to and downloaded from bytes. Used for unchoking algorithm.
      */
@@ -237,5 +350,7 @@ public class Peer {
     }
 
 
-    private static final int SO_TIMEOUT = 120000; // 2 min
+    static final int SO_TIMEOUT = 120000; // 2 min
+    static final int HANDSHAKE_LENGTH = 68;
+    private static final String PSTR = "BitTorrent protocol";
 }
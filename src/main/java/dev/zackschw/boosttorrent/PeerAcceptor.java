@@ -3,6 +3,7 @@ package dev.zackschw.boosttorrent;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * Accepts new peers
@@ -29,9 +30,19 @@ public class PeerAcceptor {
      * @throws IOException if the socket cannot bound to a port.
      */
     public int runListener() throws IOException {
+        return runListener(PeerThreads.platform());
+    }
+
+    /**
+     * Opens a server socket to listen for connections in a new thread from the factory.
+     * @param threadFactory factory of the listening thread, see PeerThreads
+     * @return the port the server socket is listening on.
+     * @throws IOException if the socket cannot bound to a port.
+     */
+    public int runListener(ThreadFactory threadFactory) throws IOException {
         sock = new ServerSocket(0);
 
-        Thread t = new Thread(this::listenForPeers);
+        Thread t = threadFactory.newThread(this::listenForPeers);
         t.start();
 
 
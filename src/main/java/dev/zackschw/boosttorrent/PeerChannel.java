@@ -0,0 +1,306 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A non-blocking connection to a peer, run by a PeerEventLoop.
+ * The connection goes from connecting, to handshaking, to exchanging messages. Bytes received are read into the
+ * direct buffer of a MessageDecoder, which hands each complete message to the peer's PeerState in place.
+ * Messages are queued on the connection's OutboundQueue, and written in batches through the loop's write buffer
+ * whenever the channel can take them, so no thread ever blocks on the socket. Blocks queued from storage are
+ * transferred from their files to the channel by the OS, between the batches. Messages queued on the loop's thread,
+ * ie in answer to messages received, are written together after the next select.
+ * Work that may block on the disk is handed to the engine's disk threads with offload(). While they do not accept it,
+ * the connection stops reading from the peer, so the peer is slowed down instead of the loop.
+ * Everything but onQueued() and close() runs on the loop's thread.
+ */
+class PeerChannel {
+    private final PeerEngine engine;
+    private final PeerEventLoop loop;
+    private final SocketChannel channel;
+    private final Peer peer;
+    private final PeerCoordinator coordinator;
+    private final MetadataInfo meta;
+    private final byte[] myPeerID;
+    private final Bitvector myBitfield;
+    private final OutboundQueue outbound; // messages waiting to be written
+    private final MessageDecoder decoder; // decodes the bytes received
+    private final AtomicBoolean closed;
+    private final Queue<Runnable> backlog; // disk work the engine did not accept yet, in order
+
+    private SelectionKey key;
+    private ByteBuffer unwritten; // bytes copied out of the queue the channel did not take yet, or null
+    private boolean handshaken;
+    private long lastReceived; // from System.currentTimeMillis()
+
+    /**
+     * Creates a PeerChannel, not yet registered with its loop.
+     * @param engine the engine running the connection
+     * @param loop the loop to run the connection
+     * @param channel the non-blocking channel, connected or connecting
+     * @param peer the peer at the other end
+     * @param coordinator the peer coordinator used for callbacks
+     * @param meta the meta info of the torrent
+     * @param myPeerID the client's own 20-byte peerID
+     * @param myBitfield the client's bitfield of pieces
+     */
+    PeerChannel(PeerEngine engine, PeerEventLoop loop, SocketChannel channel, Peer peer, PeerCoordinator coordinator, MetadataInfo meta,
+                byte[] myPeerID, Bitvector myBitfield) {
+        this.engine = engine;
+        this.loop = loop;
+        this.channel = channel;
+        this.peer = peer;
+        this.coordinator = coordinator;
+        this.meta = meta;
+        this.myPeerID = myPeerID;
+        this.myBitfield = myBitfield;
+
+        outbound = new OutboundQueue();
+        decoder = new MessageDecoder(true);
+        closed = new AtomicBoolean(false);
+        backlog = new ArrayDeque<>();
+        handshaken = false;
+        lastReceived = System.currentTimeMillis();
+    }
+
+    /**
+     * Registers the channel with the loop's selector, and sends the handshake once connected.
+     * @param connecting true if the channel has not finished connecting yet
+     * @throws IOException if an I/O error occurs registering the channel
+     */
+    void register(boolean connecting) throws IOException {
+        key = channel.register(loop.getSelector(), connecting ? SelectionKey.OP_CONNECT : SelectionKey.OP_READ, this);
+
+        if (!connecting)
+            onConnected();
+    }
+
+    /**
+     * @return the queue of messages to write to the peer
+     */
+    OutboundQueue getOutboundQueue() {
+        return outbound;
+    }
+
+    /**
+     * @return the loop running the connection
+     */
+    PeerEventLoop getLoop() {
+        return loop;
+    }
+
+    /**
+     * Runs work that may block on the disk, such as writing a block to storage, on the engine's disk threads, in the
+     * order it is handed over. If they do not accept it, the connection stops reading from the peer until they do,
+     * see onDrained().
+     * @param task the work to run
+     */
+    void offload(Runnable task) {
+        if (backlog.isEmpty() && engine.tryExecute(task))
+            return;
+
+        backlog.add(task);
+        if (backlog.size() == 1) {
+            setReadInterest(false);
+            engine.onStalled(this);
+        }
+    }
+
+    /**
+     * On the engine's disk threads having room for more work. Hands over the work waiting, and reads from the peer
+     * again once all of it is accepted. The work of a closed connection is still handed over, since its blocks are
+     * already claimed.
+     */
+    void onDrained() {
+        Runnable task;
+        while ((task = backlog.peek()) != null) {
+            if (!engine.tryExecute(task)) {
+                engine.onStalled(this);
+                return;
+            }
+            backlog.remove();
+        }
+
+        if (!closed.get() && key.isValid()) {
+            /* Nothing could be received while stalled, so do not time the peer out for it */
+            lastReceived = System.currentTimeMillis();
+            setReadInterest(true);
+        }
+    }
+
+    /**
+     * On a message being queued. May be called from any thread.
+     * On the loop's thread the queue is written once the channel is next selected as writable, after the messages
+     * received so far are handled. Other threads have the loop write it, if it was empty and so nobody is yet.
+     * @param wasEmpty true if the queue was empty before the message
+     */
+    void onQueued(boolean wasEmpty) {
+        if (loop.inLoop()) {
+            try {
+                if (key.isValid())
+                    key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            } catch (CancelledKeyException ignore) {
+            }
+        } else if (wasEmpty) {
+            loop.execute(this::flush);
+        }
+    }
+
+    /**
+     * Closes the channel and tells the coordinator the peer is gone. May be called from any thread, and more than once.
+     */
+    void close() {
+        if (!closed.compareAndSet(false, true))
+            return;
+
+        decoder.stop();
+        try {
+            channel.close();
+        } catch (IOException ignore) {
+        }
+        outbound.close();
+
+        coordinator.onDisconnected(peer);
+    }
+
+    /**
+     * Returns true once the connection is closed.
+     */
+    boolean isClosed() {
+        return closed.get();
+    }
+
+    /**
+     * On the channel being ready to finish connecting.
+     * @throws IOException if the connection failed
+     */
+    void onConnectable() throws IOException {
+        if (channel.finishConnect())
+            onConnected();
+    }
+
+    /**
+     * On the channel having bytes to read. Reads what is available, and handles every complete message.
+     * @throws IOException if the connection failed or the peer sent something invalid
+     */
+    void onReadable() throws IOException {
+        int n = decoder.read(channel);
+        if (n < 0) {
+            close();
+            return;
+        }
+        lastReceived = System.currentTimeMillis();
+
+        if (!handshaken) {
+            byte[] peerID = decoder.decodeHandshake(meta);
+            if (peerID == null)
+                return;
+            handshaken = true;
+            peer.onHandshake(coordinator, this, peerID, myBitfield);
+        }
+        decoder.decode(peer.getState());
+    }
+
+    /**
+     * On the channel being ready to write. Writes the queued messages in batches until the channel takes no more.
+     * @throws IOException if the connection failed
+     */
+    void onWritable() throws IOException {
+        /* Finish the batch the channel did not take last time */
+        if (unwritten != null && unwritten.hasRemaining()) {
+            channel.write(unwritten);
+            if (unwritten.hasRemaining()) {
+                setWriteInterest(true);
+                return;
+            }
+        }
+
+        ByteBuffer batch = loop.getWriteBuffer();
+        while (true) {
+            batch.clear();
+            if (outbound.fill(batch)) {
+                batch.flip();
+                channel.write(batch);
+                if (batch.hasRemaining()) {
+                    /* The loop's buffer is shared by its connections, so keep the rest for the next time */
+                    if (unwritten == null || unwritten.capacity() < batch.remaining())
+                        unwritten = ByteBuffer.allocate(batch.capacity());
+                    unwritten.clear();
+                    unwritten.put(batch);
+                    unwritten.flip();
+                    setWriteInterest(true);
+                    return;
+                }
+                continue;
+            }
+
+            /* The queue stopped at a block to send straight from storage */
+            long n = outbound.transfer(channel);
+            if (n == 0) {
+                setWriteInterest(true);
+                return;
+            } else if (n < 0) {
+                break;
+            }
+        }
+
+        /* Only wait for the channel to be writable while there is something to write */
+        setWriteInterest(false);
+    }
+
+    /**
+     * Closes the connection if nothing was received from the peer for Peer.SO_TIMEOUT, unless it is not reading while
+     * its disk work waits.
+     * @param now the current time, from System.currentTimeMillis()
+     */
+    void checkTimeout(long now) {
+        if (backlog.isEmpty() && now - lastReceived > Peer.SO_TIMEOUT)
+            close();
+    }
+
+    private void onConnected() {
+        lastReceived = System.currentTimeMillis();
+        key.interestOps(SelectionKey.OP_READ);
+
+        onQueued(outbound.putBytes(Peer.createHandshake(meta, myPeerID)));
+    }
+
+    private void setReadInterest(boolean read) {
+        try {
+            if (read)
+                key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+            else
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        } catch (CancelledKeyException ignore) {
+        }
+    }
+
+    private void setWriteInterest(boolean write) {
+        if (write)
+            key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+        else
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    /**
+     * Writes the queued messages right away, rather than after the next select.
+     */
+    private void flush() {
+        if (closed.get() || !key.isValid())
+            return;
+
+        try {
+            onWritable();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+}
@@ -1,114 +1,180 @@
 package dev.zackschw.boosttorrent;
 
-import java.io.DataOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Sends messages to a peer through an OutboundQueue, so messages queued together go out in one write.
+ * On a stream, the thread that sends a message writes everything queued in batches, unless another thread is already
+ * writing, which then writes it too. The thread reading the peer's messages defers its writes with deferFlushes(),
+ * so all the messages it sends in answer to one message, eg a run of REQUESTs on being unchoked, go out at once when
+ * it calls flush().
+ * On a connection run by a PeerEngine, the connection's event loop does all the writing, and blocks can be sent
+ * straight from storage to its socket.
+ */
 public class PeerConnectionOut {
     private final Peer peer;
-    private final DataOutputStream dout;
-    private final Object sendLock;
+    private final OutboundQueue queue;
+    private final OutputStream out; // stream to write batches to, or null if the connection writes them
+    private final PeerChannel connection; // connection writing the queue, or null
+    private final ReentrantLock flushLock; // held by the thread writing to the stream, not a monitor so as not to pin
+    private final byte[] batch; // reused to copy queued messages into and write them to the stream
 
-    PeerConnectionOut (Peer peer, DataOutputStream dout) {
+    private volatile Thread deferring; // thread whose messages are written by flush() rather than on sending
+
+    PeerConnectionOut (Peer peer, OutputStream out) {
+        this.peer = peer;
+        this.out = out;
+
+        queue = new OutboundQueue();
+        connection = null;
+        flushLock = new ReentrantLock();
+        batch = new byte[BATCH_LENGTH];
+    }
+
+    /**
+     * Creates a PeerConnectionOut that queues each message on a connection run by a PeerEngine, so sending never
+     * blocks on the socket.
+     * @param peer the peer to send to
+     * @param connection the connection to the peer
+     */
+    PeerConnectionOut (Peer peer, PeerChannel connection) {
         this.peer = peer;
-        this.dout = dout;
+        this.connection = connection;
 
-        sendLock = new Object();
+        queue = connection.getOutboundQueue();
+        out = null;
+        flushLock = null;
+        batch = null;
     }
 
     void sendChoke() {
-        synchronized (sendLock) {
-            try {
-                Message.sendChoke(dout);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putNoPayload(Message.CHOKE));
     }
 
     void sendUnchoke() {
-        synchronized (sendLock) {
-            try {
-                Message.sendUnchoke(dout);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putNoPayload(Message.UNCHOKE));
     }
 
     void sendInterested() {
-        synchronized (sendLock) {
-            try {
-                Message.sendInterested(dout);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putNoPayload(Message.INTERESTED));
     }
 
     void sendNotInterested() {
-        synchronized (sendLock) {
-            try {
-                Message.sendNotInterested(dout);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putNoPayload(Message.NOTINTERESTED));
     }
 
     void sendHave(int piece) {
-        synchronized (sendLock) {
-            try {
-                Message.sendHave(dout, piece);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putHave(piece));
     }
 
     void sendBitfield(byte[] bitmap) {
-        synchronized (sendLock) {
-            try {
-                Message.sendBitfield(dout, bitmap);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putBitfield(bitmap));
     }
-    
+
     void sendRequest(int piece, int begin, int length) {
-        synchronized (sendLock) {
-            try {
-                Message.sendRequest(dout, piece, begin, length);
-            } catch (IOException e) {
-                disconnect();
-            }
-        }
+        onQueued(queue.putBlockMessage(Message.REQUEST, piece, begin, length));
     }
 
+    /**
+     * Queues a PIECE message, waiting while the blocks already queued for the peer are at their bound.
+     */
     void sendPiece(int piece, int begin, byte[] block) {
-        synchronized (sendLock) {
-            try {
-                Message.sendPiece(dout, piece, begin, block);
-            } catch (IOException e) {
-                disconnect();
-            }
+        try {
+            onQueued(queue.putPiece(piece, begin, block));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
     }
 
+    /**
+     * Queues a PIECE message whose block is sent straight from storage, without copying it through the JVM, on a
+     * connection run by a PeerEngine. Waits while the blocks already queued for the peer are at their bound.
+     * @param storage storage holding the block, for which canTransferBlock() is true
+     * @return true if the message was queued, or false on a stream, where the block must be read and sent with
+     *         sendPiece() instead
+     */
+    boolean sendPieceFromStorage(int piece, int begin, int length, Storage storage) {
+        if (connection == null)
+            return false;
+
+        try {
+            onQueued(queue.putPieceFromStorage(piece, begin, length, storage));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return true;
+    }
+
     void sendCancel(int piece, int begin, int length) {
-        synchronized (sendLock) {
+        onQueued(queue.putBlockMessage(Message.CANCEL, piece, begin, length));
+    }
+
+    /**
+     * Drops a PIECE message that is queued and not yet being sent, eg on the peer cancelling its request.
+     * @return true if the message was dropped, otherwise false
+     */
+    boolean cancelPiece(int piece, int begin) {
+        return queue.removePiece(piece, begin);
+    }
+
+    /**
+     * Makes the messages sent by the calling thread wait for flush(), rather than being written on sending.
+     */
+    void deferFlushes() {
+        deferring = Thread.currentThread();
+    }
+
+    /**
+     * Writes everything queued to the stream, unless another thread is writing, which then writes it too.
+     * Does nothing on a connection run by a PeerEngine, whose event loop writes instead.
+     */
+    void flush() {
+        if (out == null)
+            return;
+
+        while (flushLock.tryLock()) {
             try {
-                Message.sendCancel(dout, piece, begin, length);
+                ByteBuffer buf = ByteBuffer.wrap(batch);
+                while (queue.fill(buf)) {
+                    out.write(batch, 0, buf.position());
+                    buf.clear();
+                }
             } catch (IOException e) {
                 disconnect();
+                return;
+            } finally {
+                flushLock.unlock();
             }
+
+            /* Messages queued just before the lock was released are written by this thread */
+            if (queue.isEmpty())
+                return;
         }
     }
 
+    /**
+     * Drops everything queued, and wakes any thread waiting to queue a block.
+     */
+    void close() {
+        queue.close();
+    }
+
+    private void onQueued(boolean wasEmpty) {
+        if (connection != null)
+            connection.onQueued(wasEmpty);
+        else if (Thread.currentThread() != deferring)
+            flush();
+    }
+
     /**
      * Called when we are disconnecting from this peer.
      */
     void disconnect() {
         peer.disconnect();
     }
+
+    private static final int BATCH_LENGTH = 1<<16; // 64 KiB
 }
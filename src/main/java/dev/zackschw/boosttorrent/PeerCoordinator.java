@@ -3,43 +3,116 @@ package dev.zackschw.boosttorrent;
 import dev.zackschw.boosttorrent.tracker.TrackerCoordinator;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PeerCoordinator {
     private final byte[] myPeerID;
     private final MetadataInfo meta;
     private final Storage storage;
+    private final DiskWriter diskWriter;
+    private final HashVerifier hashVerifier;
+    private final PieceCache pieceCache;
+    private final BufferPool bufferPool;
+    private final DigestPool digestPool;
+    private final PiecePicker piecePicker;
+    private final boolean piecesOnDisk; // blocks are written to storage as they are received
     private final PeerAcceptor peerAcceptor;
+    private PeerEngine peerEngine; // runs the connections when there are event loops, otherwise null
+    private int numEventLoops;
+    private ThreadFactory threadFactory; // creates the threads blocking on peer I/O, see PeerThreads
     private final TrackerCoordinator tracker;
     private final Fulfiller fulfiller;
     private final Thread unchoker;
     private int listenerPort;
     private long uploaded;
     private long downloaded;
-    private long left;
+    private final AtomicLong left; // updated by the hash verifier workers and the disk writers
 
     private final List<PeerAddress> potentialPeers;
     private final List<Peer> peers;
-    private final List<Integer> outstandingPieces;
+    private final Map<Integer, Piece> activePieces; // pieces being requested from peers, by index
+    private final long[] deadlines; // time each piece is needed by when streaming, from System.nanoTime(), or 0
+    private final Object pieceWaiters; // notified whenever a piece is finished, for readers waiting on pieces
 
     private static final int MAX_WANTED_PEERS = 30;
     private static final int MAX_PEERS = 50;
+    private static final long STREAM_AHEAD = 30_000_000_000L; // 30 s of playback
+    private static final int MIN_STREAM_PIECES = 4;
+    private static final long RACE_TIME = 5_000_000_000L; // 5 s
+    private static final int MAX_RACE_REQUESTS = 3;
 
     public PeerCoordinator(byte[] myPeerID, MetadataInfo meta, Storage storage) {
+        this(myPeerID, meta, storage, new DiskWriter(storage), PieceCache.DEFAULT_CAPACITY);
+    }
+
+    public PeerCoordinator(byte[] myPeerID, MetadataInfo meta, Storage storage, DiskWriter diskWriter, long cacheCapacity) {
+        this(myPeerID, meta, storage, diskWriter, cacheCapacity, false);
+    }
+
+    /**
+     * Creates a PeerCoordinator.
+     * With pieces on disk, every block received is written to its place in storage right away instead of assembling
+     * the piece in memory, and the piece's hash is checked by reading it back once its last block is written. Memory
+     * then only grows with the blocks in flight, not with the pieces being downloaded, and the pieces left partially
+     * written before a restart are continued.
+     * @param myPeerID the client's 20-byte peer id
+     * @param meta torrent metadata info
+     * @param storage storage of the torrent, with its files created
+     * @param diskWriter writer of finished pieces
+     * @param cacheCapacity capacity in bytes of the cache of pieces read for uploading
+     * @param piecesOnDisk true to write blocks to storage as they are received
+     */
+    public PeerCoordinator(byte[] myPeerID, MetadataInfo meta, Storage storage, DiskWriter diskWriter, long cacheCapacity,
+                           boolean piecesOnDisk) {
         this.myPeerID = myPeerID;
         this.meta = meta;
         this.storage = storage;
+        this.diskWriter = diskWriter;
+        this.piecesOnDisk = piecesOnDisk;
+        diskWriter.setCallback(this::onWriteFailed);
+
+        hashVerifier = new HashVerifier(storage);
+        threadFactory = PeerThreads.platform();
 
         peerAcceptor = new PeerAcceptor(this, meta, myPeerID);
         tracker = new TrackerCoordinator(meta, this);
-        fulfiller = new Fulfiller(this, storage);
+        bufferPool = new BufferPool(meta.getPieceLength());
+        digestPool = new DigestPool();
+        pieceCache = new PieceCache(meta, storage.getMyBitfield(), diskWriter, cacheCapacity);
+        fulfiller = new Fulfiller(this, meta, pieceCache, storage);
         unchoker = new Thread(this::unchokePeerTask);
         peers = new ArrayList<>(MAX_PEERS);
         potentialPeers = new ArrayList<>();
-        outstandingPieces = new ArrayList<>();
-        left = meta.getTotalFileBytes();
+        piecePicker = new PiecePicker(meta.getNumPieces(), storage.getMyBitfield(), storage.getPiecePriorities());
+        activePieces = new HashMap<>();
+        deadlines = new long[meta.getNumPieces()];
+        pieceWaiters = new Object();
+
+        /* Only the wanted pieces not restored from storage are left */
+        long wantedBytes = 0;
+        for (int i=0; i < meta.getNumPieces(); i++) {
+            if (piecePicker.getPriority(i) != Priority.SKIP && !havePiece(i))
+                wantedBytes += meta.getPieceLength(i);
+        }
+        left = new AtomicLong(wantedBytes);
+
+        /* Continue the pieces left partially written before a restart */
+        if (piecesOnDisk) {
+            synchronized (activePieces) {
+                for (int index : storage.getPartialPieces()) {
+                    Bitvector blocks = storage.getPartialBlocks(index);
+                    if (blocks != null && !havePiece(index) && piecePicker.takePiece(index))
+                        startPiece(index).restoreBlocks(blocks);
+                }
+            }
+        }
     }
 
     /**
@@ -49,10 +122,12 @@ public class PeerCoordinator {
      */
     public void initiateConnections() throws IOException {
         /* Start listener */
-        listenerPort = peerAcceptor.runListener();
+        runListener();
 
-        /* Start fulfiller */
-        fulfiller.runFulfiller();
+        /* Start disk writers, hash verifiers and fulfiller */
+        diskWriter.runWriters();
+        hashVerifier.runWorkers();
+        fulfiller.runFulfiller(threadFactory);
 
         /* Query tracker */
         List<PeerAddress> received = tracker.sendStarted();
@@ -73,8 +148,77 @@ public class PeerCoordinator {
     }
 
     /**
-     * Runs peer connection in a new thread. Peer will be added to list of active peers upon successful handshake,
-     * via onConnected().
+     * Stops the download: stops accepting connections, disconnects every peer, and stops the fulfiller and unchoker.
+     * The pieces already received are checked and written, then the fast-resume record is saved and the files are
+     * closed, so a restart continues from them without rechecking.
+     */
+    public void stop() {
+        /* Stop accepting connections and disconnect peers */
+        if (peerEngine != null)
+            peerEngine.stop();
+        else if (listenerPort != 0)
+            peerAcceptor.disconnect();
+        for (Peer p : getConnectedPeers())
+            p.disconnect();
+
+        fulfiller.stop();
+        unchoker.interrupt();
+
+        /* Check and write the pieces received, then save the fast-resume record and close the files */
+        hashVerifier.stop();
+        diskWriter.stop();
+        storage.closeAll();
+    }
+
+    /**
+     * Binds to a port to listen for connections. With event loops, the peer engine is started to run the connections
+     * and accept new ones, otherwise a PeerAcceptor accepts them.
+     * @return the port the client is listening for connections on
+     * @throws IOException if I/O error occurs binding to a port to listen for connections
+     */
+    public int runListener() throws IOException {
+        if (numEventLoops > 0) {
+            peerEngine = new PeerEngine(this, meta, myPeerID, numEventLoops);
+            peerEngine.start();
+            listenerPort = peerEngine.listen();
+        } else {
+            listenerPort = peerAcceptor.runListener(threadFactory);
+        }
+
+        return listenerPort;
+    }
+
+    /**
+     * Sets the number of event loops to run peer connections on, see PeerEngine. With no event loops, the default,
+     * each connection runs in a thread of its own. The application runs one loop per core. Must be called before runListener() or initiateConnections().
+     * @param numEventLoops number of event loops, or 0 for a thread per peer
+     */
+    public void setEventLoops(int numEventLoops) {
+        this.numEventLoops = numEventLoops;
+    }
+
+    /**
+     * Sets whether blocks are uploaded straight from storage to the connections run by the peer engine, see
+     * Fulfiller.setZeroCopy(). On by default.
+     * @param zeroCopy true to upload blocks straight from storage where possible
+     */
+    public void setZeroCopyUploads(boolean zeroCopy) {
+        fulfiller.setZeroCopy(zeroCopy);
+    }
+
+    /**
+     * Sets the factory of the threads that block on peer I/O: the thread of each connection without event loops, the
+     * PeerAcceptor's listener, and the Fulfiller. Platform threads by default, see PeerThreads for virtual threads.
+     * Must be called before runListener() or initiateConnections().
+     * @param threadFactory factory of the threads
+     */
+    public void setThreadFactory(ThreadFactory threadFactory) {
+        this.threadFactory = threadFactory;
+    }
+
+    /**
+     * Runs peer connection on the peer engine, or in a new thread without one. Peer will be added to list of active
+     * peers upon successful handshake, via onConnected().
      * @return true if the client attempted to add the peer, false if the client is already connected to MAX_PEERS peers
      */
     public boolean addPeer(Peer peer) {
@@ -83,8 +227,12 @@ public class PeerCoordinator {
             return false;
         }
 
+        if (peerEngine != null) {
+            return peerEngine.addPeer(peer, storage.getMyBitfield());
+        }
+
         /* Run connection in a new thread */
-        Thread t = new Thread(() -> peer.runConnection(this, storage.getMyBitfield()));
+        Thread t = threadFactory.newThread(() -> peer.runConnection(this, storage.getMyBitfield()));
         t.start();
         return true;
     }
@@ -131,7 +279,8 @@ public class PeerCoordinator {
     }
 
     /**
-     * Returns true if the client is interested in any piece of the bitvector, otherwise false
+     * Returns true if the client is interested in any piece of the bitvector, ie a piece the client does not have and
+     * does not skip, otherwise false
      * @param bitvector peer's bitvector to check for interest for
      */
     public boolean wantAnyPiece(Bitvector bitvector) {
@@ -139,12 +288,9 @@ public class PeerCoordinator {
         if (myBitfield == null)
             return true;
 
-        int size = bitvector.getSize();
-
-        for (int i=0; i < size; i++) {
-            if (!myBitfield.isSet(i) && bitvector.isSet(i)) {
+        for (int i = bitvector.nextSetBitNotIn(myBitfield, 0); i != -1; i = bitvector.nextSetBitNotIn(myBitfield, i + 1)) {
+            if (i < meta.getNumPieces() && piecePicker.getPriority(i) != Priority.SKIP)
                 return true;
-            }
         }
 
         return false;
@@ -166,26 +312,218 @@ public class PeerCoordinator {
     }
 
     /**
-     * Writes finished piece to storage and sends Have message to all peers
+     * Hands finished piece to the disk writer and sends Have message to all peers.
+     * The piece is announced as soon as the disk writer accepts it, since it can be read back from then on.
+     * Blocks while the disk writer's queue is full.
      */
     public void onFinishedPiece(Piece piece) {
-        /* Write to storage */
-        storage.writePiece(piece);
+        synchronized (activePieces) {
+            activePieces.remove(piece.index, piece);
+        }
 
-        /* Remove from outstanding pieces */
-        synchronized (outstandingPieces) {
-            outstandingPieces.remove(Integer.valueOf(piece.index));
+        /* Write to storage */
+        try {
+            diskWriter.submit(piece);
+        } catch (InterruptedException e) {
+            /* Not accepted, so it is downloaded again */
+            Thread.currentThread().interrupt();
+            onFailedPiece(piece);
+            return;
+        } catch (IllegalStateException e) {
+            /* The disk writer is stopped, so the piece is downloaded again after a restart */
+            onFailedPiece(piece);
+            return;
         }
+        storage.getMyBitfield().setBit(piece.index);
+        notifyPieceWaiters();
 
-        /* Send have to all peers */
-        synchronized (peers) {
-            for (Peer p : peers) {
-                p.sendHave(piece.index);
-            }
+        /* Send have to all peers, outside the lock since sending may block on a peer's socket */
+        for (Peer p : getConnectedPeers()) {
+            p.sendHave(piece.index);
         }
 
         /* Update statistics */
-        left -= piece.length;
+        left.addAndGet(-piece.length);
+    }
+
+    /**
+     * On a finished piece failing to be written to storage, eg with the disk full. The piece was announced when it was
+     * accepted, but is no longer counted as had, and is picked to be downloaded again. Called on a disk writer thread,
+     * which releases the piece.
+     * @param piece the piece that was not written
+     */
+    public void onWriteFailed(Piece piece) {
+        storage.getMyBitfield().unsetBit(piece.index);
+        storage.onPieceFailed(piece.index);
+        piecePicker.onPieceAbandoned(piece.index);
+
+        /* Update statistics */
+        left.addAndGet(piece.length);
+    }
+
+    /**
+     * Drops a block request that will not be answered, eg after a choke, disconnect or cancel, so the block can be
+     * requested again. A piece that is left with no requests and no received blocks is given up on, so it can be picked
+     * again, and its buffer is returned to the pool.
+     * @param request the request sent to a peer
+     */
+    public void onRequestDropped(BlockRequest request) {
+        Piece piece = request.piece;
+        synchronized (activePieces) {
+            piece.onRequestDropped(request.getBlock());
+            if (!piece.isIdle() || activePieces.get(piece.index) != piece)
+                return;
+
+            activePieces.remove(piece.index);
+        }
+
+        piecePicker.onPieceAbandoned(piece.index);
+        piece.release();
+    }
+
+    /**
+     * Stores a block received from a peer in its piece, unless the block was already received from another peer.
+     * The block is copied into the piece, or for pieces on disk written to storage.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param block array holding the block
+     * @param length length of the block
+     * @return the number of blocks of the piece stored including this one, or -1 if the block was not needed
+     */
+    public int putBlock(Piece piece, int begin, byte[] block, int length) {
+        return putBlock(piece, begin, ByteBuffer.wrap(block, 0, length));
+    }
+
+    /**
+     * Stores a block received from a peer in its piece, unless the block was already received from another peer.
+     * The block is copied into the piece, or for pieces on disk written to storage, straight from the buffer it was
+     * received into.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param block buffer holding the block between its position and limit. Its position and limit are not changed.
+     * @return the number of blocks of the piece stored including this one, or -1 if the block was not needed
+     */
+    public int putBlock(Piece piece, int begin, ByteBuffer block) {
+        if (!piece.isOnDisk())
+            return piece.putBlock(begin, block);
+
+        if (!piece.claimBlock(begin))
+            return -1;
+        return writeClaimedBlock(piece, begin, block);
+    }
+
+    /**
+     * Writes a block of a piece on disk to storage, after it was claimed with Piece.claimBlock(). Lets the block be
+     * claimed on one thread, so the request is settled right away, and written on another.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param block buffer holding the block between its position and limit. Its position and limit are not changed.
+     * @return the number of blocks of the piece written including this one, or -1 if the piece was released
+     */
+    public int writeClaimedBlock(Piece piece, int begin, ByteBuffer block) {
+        storage.writeBlock(piece.index, begin, block);
+        return piece.onBlockWritten(begin, block);
+    }
+
+    /**
+     * Checks the hash of a piece with every block stored on the calling thread. Only the blocks that were not hashed
+     * as they arrived are hashed now, read back from storage for pieces on disk.
+     * @param piece piece to check
+     * @return true if the hash matches the hash from the meta file, otherwise false
+     */
+    public boolean checkHash(Piece piece) {
+        return hashVerifier.checkHash(piece);
+    }
+
+    /**
+     * Submits a piece with every block stored to have its hash checked by the hash verifier, off the calling thread.
+     * Once checked, the piece is finished if its hash matches, otherwise given up on, see onFinishedPiece() and
+     * onFailedPiece(). Blocks while the hash verifier's queue is full.
+     * @param piece piece to check
+     * @param callback called after the piece is finished or given up on, eg to disconnect the peer that sent it
+     */
+    public void verifyPiece(Piece piece, HashVerifier.Callback callback) {
+        try {
+            hashVerifier.submit(piece, (p, passed) -> {
+                if (passed)
+                    onFinishedPiece(p);
+                else
+                    onFailedPiece(p);
+                callback.onVerified(p, passed);
+            });
+        } catch (InterruptedException e) {
+            /* Download the piece again */
+            onFailedPiece(piece);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Gives up on a piece that failed its hash check, so it can be requested again.
+     * @param piece piece whose hash did not match
+     */
+    public void onFailedPiece(Piece piece) {
+        synchronized (activePieces) {
+            activePieces.remove(piece.index, piece);
+        }
+        storage.onPieceFailed(piece.index);
+
+        piecePicker.onPieceAbandoned(piece.index);
+        piece.release();
+    }
+
+    /**
+     * On receive a block that was requested from more than one peer in endgame, cancels the block's request to the
+     * other peers.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param length length of the block
+     * @param from state of the peer the block was received from
+     */
+    public void onReceivedBlock(Piece piece, int begin, int length, PeerState from) {
+        if (piece.getNumRequests(begin / Piece.BLOCK_LENGTH) == 0)
+            return;
+
+        /* Cancel outside the lock on the peers, since sending may block on a peer's socket */
+        for (Peer p : getConnectedPeers()) {
+            PeerState state = p.getState();
+            if (state != null && state != from)
+                state.cancelRequest(piece, begin, length);
+        }
+    }
+
+    /**
+     * Returns the piece being requested from peers with the given index, to record a block received from any peer.
+     * @param index zero-based index of the piece
+     * @return the piece, or null if the piece is not being requested
+     */
+    public Piece getActivePiece(int index) {
+        synchronized (activePieces) {
+            return activePieces.get(index);
+        }
+    }
+    /**
+     * On receive a peer's BITFIELD message, counts its pieces as available.
+     * @param peerBitfield the peer's bitfield
+     */
+    public void onPeerBitfield(Bitvector peerBitfield) {
+        piecePicker.addPeerBitfield(peerBitfield);
+    }
+
+    /**
+     * On receive a peer's HAVE message for a piece it did not have before, counts the piece as available.
+     * @param index zero-based index of the piece
+     */
+    public void onPeerHave(int index) {
+        piecePicker.incrementAvailability(index);
+    }
+
+    /**
+     * On a peer disconnecting, stops counting its pieces as available.
+     * @param peerBitfield the peer's bitfield
+     */
+    public void onPeerGone(Bitvector peerBitfield) {
+        piecePicker.removePeerBitfield(peerBitfield);
     }
 
     /**
@@ -211,6 +549,15 @@ public class PeerCoordinator {
         }
     }
 
+    /**
+     * Returns a copy of the connected peers, to send to them without holding the lock on the peers while a send blocks.
+     */
+    private List<Peer> getConnectedPeers() {
+        synchronized (peers) {
+            return new ArrayList<>(peers);
+        }
+    }
+
     /**
      * On disconnect, remove from active peers add a new peer if needed
      */
@@ -219,6 +566,10 @@ public class PeerCoordinator {
             peers.remove(peer);
         }
 
+        if (peer.getState() != null) {
+            peer.getState().onDisconnected();
+        }
+
         if (!peer.getAmChoking()) {
             fulfiller.clearRequestsFromPeer(peer);
         }
@@ -235,24 +586,317 @@ public class PeerCoordinator {
     }
 
     /**
-     * Returns a new piece index to request that the client does not have, and that the peer does have.
-     * @param peerBitfield the bitfield of the peer to send the requests to.
-     * @return the piece index, or -1 if no such piece exists
+     * Returns the next block to request from a peer, out of the pieces the peer has.
+     * Blocks of pieces already being requested are preferred, starting with the pieces that have the most blocks
+     * received, so pieces are finished one after another rather than many at once. Otherwise the rarest new piece among
+     * connected peers is started, see PiecePicker, unless hash verification is falling behind.
+     * In endgame, when every block is already being requested, a block requested from other peers is requested again,
+     * preferring the block with the fewest requests. The other requests are cancelled when the block arrives.
+     * @param peerBitfield the bitfield of the peer to send the request to
+     * @param requester the state of the peer to send the request to
+     * @return the request, or null if there is no block to request from the peer
      */
-    public int getNextPieceToRequest(Bitvector peerBitfield) {
-        Bitvector myBitfield = storage.getMyBitfield();
+    public BlockRequest getNextBlockToRequest(Bitvector peerBitfield, PeerState requester) {
+        synchronized (activePieces) {
+            /* When streaming, the pieces ahead of the playhead come first */
+            BlockRequest streamed = getNextStreamingBlock(peerBitfield, requester);
+            if (streamed != null)
+                return streamed;
+
+            /* Continue the piece with the most progress */
+            Piece next = null;
+            int nextBlock = -1;
+            for (Piece p : activePieces.values()) {
+                if (!hasPiece(peerBitfield, p.index))
+                    continue;
+
+                int block = p.nextUnrequestedBlock();
+                if (block != -1 && (next == null || p.getNumReceivedBlocks() > next.getNumReceivedBlocks())) {
+                    next = p;
+                    nextBlock = block;
+                }
+            }
 
-        /* Find a piece that has not been requested yet and that the peer has */
-        synchronized (outstandingPieces) {
-            for (int i = 0; i < myBitfield.getSize(); i++) {
-                if (!myBitfield.isSet(i) && peerBitfield.isSet(i) && !outstandingPieces.contains(i)) {
-                    outstandingPieces.add(i);
-                    return i;
+            /* Start a new piece, unless the pieces already received are waiting to be verified */
+            if (next == null && !hashVerifier.isBehind()) {
+                int index = piecePicker.pickPiece(peerBitfield);
+                if (index != -1) {
+                    next = startPiece(index);
+                    nextBlock = 0;
                 }
             }
+
+            /* Endgame, request the block with the fewest requests that this peer was not asked for */
+            if (next == null && isEndgame()) {
+                int fewest = Integer.MAX_VALUE;
+                for (Piece p : activePieces.values()) {
+                    if (!hasPiece(peerBitfield, p.index))
+                        continue;
+
+                    int block = getLeastRequestedBlock(p, requester, fewest);
+                    if (block != -1) {
+                        next = p;
+                        nextBlock = block;
+                        fewest = p.getNumRequests(block);
+                    }
+                }
+            }
+
+            if (next == null)
+                return null;
+
+            return request(next, nextBlock);
+        }
+    }
+
+    /**
+     * Returns the next block to request from a peer out of the streaming window, in order. Blocks of a piece whose
+     * deadline is less than RACE_TIME away are raced, ie requested from up to MAX_RACE_REQUESTS peers at once.
+     * Must hold the lock of activePieces.
+     * @return the request, or null if not streaming or there is no block in the window to request from the peer
+     */
+    private BlockRequest getNextStreamingBlock(Bitvector peerBitfield, PeerState requester) {
+        int first = piecePicker.getStreamFirst();
+        int last = piecePicker.getStreamLast();
+        long now = System.nanoTime();
+
+        for (int index = first; index != -1 && index <= last; index++) {
+            if (!hasPiece(peerBitfield, index))
+                continue;
+
+            Piece p = activePieces.get(index);
+            if (p == null) {
+                /* The piece is had, or was just finished */
+                if (!piecePicker.takePiece(index))
+                    continue;
+                p = startPiece(index);
+            }
+
+            int block = p.nextUnrequestedBlock();
+            if (block == -1 && deadlines[index] != 0 && deadlines[index] - now < RACE_TIME)
+                block = getLeastRequestedBlock(p, requester, MAX_RACE_REQUESTS);
+            if (block != -1)
+                return request(p, block);
+        }
+
+        return null;
+    }
+
+    /**
+     * Returns the block of the piece with the fewest requests, that has not been received and that the peer has not
+     * been asked for. Must hold the lock of activePieces.
+     * @param limit only blocks with fewer than limit requests are returned
+     * @return the block, or -1 if there is none
+     */
+    private int getLeastRequestedBlock(Piece piece, PeerState requester, int limit) {
+        int least = -1;
+        for (int block=0; block < piece.getNumBlocks(); block++) {
+            int numRequests = piece.getNumRequests(block);
+            if (numRequests < limit && !piece.isBlockReceived(block * Piece.BLOCK_LENGTH) &&
+                    !requester.isRequested(piece, block * Piece.BLOCK_LENGTH)) {
+                least = block;
+                limit = numRequests;
+            }
+        }
+
+        return least;
+    }
+
+    /**
+     * Creates a piece picked for requesting. Must hold the lock of activePieces.
+     */
+    private Piece startPiece(int index) {
+        Piece piece = piecesOnDisk ? Piece.createOnDisk(index, meta.getPieceLength(index), meta.getPieceHash(index), digestPool)
+                : new Piece(index, meta.getPieceLength(index), meta.getPieceHash(index), bufferPool, digestPool);
+        activePieces.put(index, piece);
+        return piece;
+    }
+
+    /**
+     * Counts a request for a block. Must hold the lock of activePieces.
+     */
+    private static BlockRequest request(Piece piece, int block) {
+        piece.onRequested(block);
+        return new BlockRequest(piece, block * Piece.BLOCK_LENGTH, piece.getBlockLength(block));
+    }
+
+    /**
+     * Starts streaming from the playhead, or moves the playhead. The pieces covering STREAM_AHEAD of playback from the
+     * playhead, and at least MIN_STREAM_PIECES pieces, are requested before any other piece, in order.
+     * Each piece in the window gets a deadline of when playback reaches it, and as the deadline approaches the blocks
+     * still missing are requested from several peers at once.
+     * @param offset offset of the playhead into the torrent
+     * @param bytesPerSecond rate at which playback consumes the torrent
+     * @throws IllegalArgumentException if the rate is not positive
+     */
+    public void setPlayhead(long offset, long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Playback rate must be positive, was " + bytesPerSecond);
+
+        int first = meta.getPieceIndex(offset);
+        if (first == -1) {
+            stopStreaming();
+            return;
+        }
+
+        /* Window of pieces ahead of the playhead */
+        double aheadBytes = (double) bytesPerSecond * STREAM_AHEAD / 1e9;
+        long lastOffset = (long) Math.min(offset + aheadBytes, meta.getTotalFileBytes() - 1);
+        int last = Math.min(meta.getNumPieces() - 1, Math.max(meta.getPieceIndex(lastOffset), first + MIN_STREAM_PIECES - 1));
+
+        long now = System.nanoTime();
+        synchronized (activePieces) {
+            Arrays.fill(deadlines, 0);
+            for (int index = first; index <= last; index++) {
+                long ahead = Math.max(0, meta.getPieceOffset(index) - offset);
+                deadlines[index] = now + (long) (ahead * 1e9 / bytesPerSecond);
+            }
+
+            piecePicker.setStreamWindow(first, last);
+        }
+    }
+
+    /**
+     * Sets the deadline of a piece, overriding the deadline given by the playhead. The piece is raced once the
+     * deadline is less than RACE_TIME away, if it is in the streaming window.
+     * @param index zero-based index of the piece
+     * @param deadline time when the piece is needed, from System.nanoTime(), or 0 for no deadline
+     */
+    public void setPieceDeadline(int index, long deadline) {
+        synchronized (activePieces) {
+            deadlines[index] = deadline;
+        }
+    }
+
+    /**
+     * @param index zero-based index of the piece
+     * @return the time when the piece is needed, from System.nanoTime(), or 0 if the piece has no deadline
+     */
+    public long getPieceDeadline(int index) {
+        synchronized (activePieces) {
+            return deadlines[index];
+        }
+    }
+
+    /**
+     * Opens a channel reading a file of the torrent, that downloads the file as it is read. Reads of pieces the client
+     * does not have block until the pieces are finished, and move the streaming playhead to them.
+     * Use Channels.newInputStream() for an InputStream view.
+     * @param file index of the file in the torrent
+     * @param bytesPerSecond rate at which the file is expected to be read, for the piece deadlines
+     * @return the channel, positioned at the start of the file
+     * @throws IllegalArgumentException if the file is skipped
+     */
+    public TorrentFileChannel openFile(int file, long bytesPerSecond) {
+        if (storage.getFilePriority(file) == Priority.SKIP)
+            throw new IllegalArgumentException("File " + file + " is skipped");
+
+        return new TorrentFileChannel(this, meta, file, bytesPerSecond);
+    }
+
+    /**
+     * Reads a block of a piece the client has, from the disk writer if the piece has not been written yet, otherwise
+     * from storage.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the block
+     * @param block array of at least length bytes to read the block into
+     */
+    public void readBlock(int piece, int begin, int length, byte[] block) {
+        diskWriter.readBlock(piece, begin, length, block);
+    }
+
+    /**
+     * Waits until the client has the piece, ie the piece passed its hash check and was accepted for writing.
+     * @param index zero-based index of the piece
+     * @param timeoutMillis longest time to wait
+     * @return true if the client has the piece, false if the timeout elapsed first
+     * @throws InterruptedException if the thread is interrupted while waiting
+     */
+    public boolean waitForPiece(int index, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (pieceWaiters) {
+            while (!havePiece(index)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                pieceWaiters.wait(remaining);
+            }
         }
 
-        return -1;
+        return true;
+    }
+
+    /**
+     * Wakes all threads in waitForPiece() to check their pieces again.
+     */
+    void notifyPieceWaiters() {
+        synchronized (pieceWaiters) {
+            pieceWaiters.notifyAll();
+        }
+    }
+
+    /**
+     * Stops streaming, all pieces are requested rarest first.
+     */
+    public void stopStreaming() {
+        synchronized (activePieces) {
+            Arrays.fill(deadlines, 0);
+            piecePicker.clearStreamWindow();
+        }
+    }
+
+    /**
+     * Returns true if the download is in endgame, ie every piece that connected peers have is being requested.
+     */
+    public boolean isEndgame() {
+        return piecePicker.getNumRequestable() == 0;
+    }
+
+    private static boolean hasPiece(Bitvector peerBitfield, int index) {
+        return index < peerBitfield.getSize() && peerBitfield.isSet(index);
+    }
+
+    /**
+     * @return the pool of buffers to assemble pieces received from peers in
+     */
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return the hash verifier, for its queue depth and throughput
+     */
+    public HashVerifier getHashVerifier() {
+        return hashVerifier;
+    }
+
+    /**
+     * @return the pool of digests to hash pieces received from peers with
+     */
+    public DigestPool getDigestPool() {
+        return digestPool;
+    }
+
+    /**
+     * @return the cache of pieces read for uploading, for its statistics
+     */
+    public PieceCache getPieceCache() {
+        return pieceCache;
+    }
+
+    /**
+     * @return the piece picker, for its availability counts
+     */
+    public PiecePicker getPiecePicker() {
+        return piecePicker;
+    }
+
+    /**
+     * @return the engine running the peer connections, or null if each runs in a thread of its own
+     */
+    public PeerEngine getPeerEngine() {
+        return peerEngine;
     }
 
     /**
@@ -284,10 +928,10 @@ public class PeerCoordinator {
     }
 
     /**
-     * @return the total number of bytes left to download until all pieces are complete
+     * @return the total number of bytes left to download until all wanted pieces are complete
      */
     public long getLeft() {
-        return left;
+        return left.get();
     }
 
     /**
@@ -0,0 +1,276 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Queue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs peer connections on a fixed number of event loops instead of a thread per peer.
+ * Each loop is one thread with a selector, see PeerEventLoop. Peers are spread over the loops in turn, and each
+ * connection is connected, handshaked, framed and written without blocking, see PeerChannel. Incoming connections are
+ * accepted by the first loop, and handed to the coordinator like the ones PeerAcceptor accepts.
+ * The PeerState callbacks run on the loops, except for the work that may block on the disk: writing blocks of pieces
+ * on disk to storage, and submitting pieces to the HashVerifier, which in turn submits them to the DiskWriter. That
+ * work is handed to a small pool of disk threads with a bounded queue, see PeerChannel.offload(). While the queue is
+ * full, a connection with work to hand over stops reading from its peer until the queue drains, so a slow disk slows
+ * down the peers sending to it instead of holding up every connection of the loop.
+ */
+public class PeerEngine {
+    private final PeerCoordinator coordinator;
+    private final MetadataInfo meta;
+    private final byte[] myPeerID;
+    private final PeerEventLoop[] loops;
+    private final AtomicInteger nextLoop;
+    private final ThreadPoolExecutor diskExecutor; // runs the disk work of the connections
+    private final Queue<PeerChannel> stalled; // connections waiting for room in the disk executor's queue
+
+    private ServerSocketChannel server;
+    private volatile boolean stop;
+
+    /**
+     * Creates a PeerEngine with one event loop per core.
+     * @param coordinator the peer coordinator used for callbacks
+     * @param meta the meta info of the torrent
+     * @param myPeerID the client's own 20-byte peerID
+     * @throws IOException if a selector cannot be opened
+     */
+    public PeerEngine(PeerCoordinator coordinator, MetadataInfo meta, byte[] myPeerID) throws IOException {
+        this(coordinator, meta, myPeerID, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Creates a PeerEngine.
+     * @param coordinator the peer coordinator used for callbacks
+     * @param meta the meta info of the torrent
+     * @param myPeerID the client's own 20-byte peerID
+     * @param numLoops number of event loops, ie threads, to run connections on
+     * @throws IOException if a selector cannot be opened
+     */
+    public PeerEngine(PeerCoordinator coordinator, MetadataInfo meta, byte[] myPeerID, int numLoops) throws IOException {
+        this.coordinator = coordinator;
+        this.meta = meta;
+        this.myPeerID = myPeerID;
+
+        loops = new PeerEventLoop[numLoops];
+        for (int i=0; i < numLoops; i++) {
+            loops[i] = new PeerEventLoop("peer-loop-" + i);
+        }
+        nextLoop = new AtomicInteger();
+        stalled = new ConcurrentLinkedQueue<>();
+        AtomicInteger nextDiskThread = new AtomicInteger();
+        diskExecutor = new ThreadPoolExecutor(DISK_THREADS, DISK_THREADS, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(DISK_QUEUE_CAPACITY),
+                r -> new Thread(r, "peer-disk-" + nextDiskThread.getAndIncrement())) {
+            @Override
+            protected void afterExecute(Runnable r, Throwable t) {
+                if (t != null)
+                    System.out.println("PeerEngine: Disk work failed: " + t);
+                wakeStalled();
+            }
+        };
+        stop = false;
+    }
+
+    /**
+     * Starts the event loops.
+     */
+    public void start() {
+        for (PeerEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * Stops accepting connections, closes every connection, and stops the event loops. Then waits for the disk work
+     * already handed over to finish.
+     */
+    public void stop() {
+        stop = true;
+
+        try {
+            if (server != null)
+                server.close();
+        } catch (IOException ignore) {
+        }
+        for (PeerEventLoop loop : loops) {
+            loop.stop();
+        }
+
+        diskExecutor.shutdown();
+        try {
+            if (!diskExecutor.awaitTermination(STOP_WAIT_SECONDS, TimeUnit.SECONDS))
+                System.out.println("PeerEngine: Disk work did not finish");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Opens a server channel to accept connections on the first event loop.
+     * @return the port the server channel is listening on.
+     * @throws IOException if the channel cannot be bound to a port.
+     */
+    public int listen() throws IOException {
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(0));
+        server.configureBlocking(false);
+
+        loops[0].execute(() -> {
+            try {
+                server.register(loops[0].getSelector(), SelectionKey.OP_ACCEPT, (Runnable) this::acceptPeers);
+            } catch (IOException e) {
+                System.out.println("Could not accept connections: " + e);
+            }
+        });
+
+        return getLocalPort();
+    }
+
+    /**
+     * Returns the port the server channel is listening on.
+     */
+    public int getLocalPort() {
+        return server.socket().getLocalPort();
+    }
+
+    /**
+     * Runs a peer's connection on the next event loop, connecting to it first unless it connected to the client.
+     * The coordinator is told of the peer via onConnected() once handshaked, and onDisconnected() once the connection
+     * is closed or fails.
+     * @param peer the peer, created with either a PeerAddress or a SocketChannel
+     * @param myBitfield the client's bitfield of pieces
+     * @return true if the connection was started, false if the engine is stopped
+     */
+    public boolean addPeer(Peer peer, Bitvector myBitfield) {
+        if (stop)
+            return false;
+
+        PeerEventLoop loop = loops[Math.floorMod(nextLoop.getAndIncrement(), loops.length)];
+        loop.execute(() -> openConnection(loop, peer, myBitfield));
+        return true;
+    }
+
+    /**
+     * @return the number of connections running, including ones still connecting or handshaking
+     */
+    public int getNumConnections() {
+        int connections = 0;
+        for (PeerEventLoop loop : loops) {
+            connections += loop.getNumChannels();
+        }
+
+        /* The listener is registered with the first loop */
+        return server != null && server.isOpen() ? Math.max(0, connections - 1) : connections;
+    }
+
+    /**
+     * @return the number of event loops
+     */
+    public int getNumLoops() {
+        return loops.length;
+    }
+
+    /**
+     * Hands work that may block on the disk to the disk threads, unless their queue is full.
+     * @param task the work to run
+     * @return true if the work was accepted, false if the queue is full or the engine is stopped
+     */
+    boolean tryExecute(Runnable task) {
+        try {
+            diskExecutor.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * On a connection having work the disk threads did not accept. Its onDrained() is run on its loop once the disk
+     * threads finish some of their work.
+     * @param connection the connection waiting to hand over its work
+     */
+    void onStalled(PeerChannel connection) {
+        if (stop)
+            return;
+
+        stalled.add(connection);
+
+        /* The queue may have drained before the connection was added */
+        if (diskExecutor.getQueue().remainingCapacity() > 0)
+            wakeStalled();
+    }
+
+    /**
+     * Has every stalled connection try to hand over its work again. Those that still cannot are stalled again.
+     */
+    private void wakeStalled() {
+        PeerChannel connection;
+        while ((connection = stalled.poll()) != null) {
+            connection.getLoop().executeLater(connection::onDrained);
+        }
+    }
+
+    /**
+     * Opens the peer's connection on its event loop.
+     */
+    private void openConnection(PeerEventLoop loop, Peer peer, Bitvector myBitfield) {
+        SocketChannel channel = peer.getChannel();
+        boolean connecting = false;
+        try {
+            if (channel == null) {
+                PeerAddress address = peer.getPeerAddress();
+                channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                connecting = !channel.connect(new InetSocketAddress(address.getAddress(), address.getPort()));
+            } else {
+                channel.configureBlocking(false);
+            }
+        } catch (IOException e) {
+            try {
+                if (channel != null)
+                    channel.close();
+            } catch (IOException ignore) {
+            }
+            coordinator.onDisconnected(peer);
+            return;
+        }
+
+        PeerChannel connection = new PeerChannel(this, loop, channel, peer, coordinator, meta, myPeerID, myBitfield);
+        try {
+            connection.register(connecting);
+        } catch (IOException e) {
+            connection.close();
+        }
+    }
+
+    /**
+     * Accepts every pending connection. Runs on the first event loop whenever the server channel is selected.
+     */
+    private void acceptPeers() {
+        try {
+            SocketChannel channel;
+            while ((channel = server.accept()) != null) {
+                /* Add to peers */
+                Peer peer = new Peer(channel, meta, myPeerID);
+                if (!coordinator.addPeer(peer)) {
+                    channel.close();
+                }
+            }
+        } catch (IOException ignored) {
+            // probably finished downloading and closing the channel
+        }
+    }
+
+    private static final int DISK_THREADS = 4;
+    private static final int DISK_QUEUE_CAPACITY = 64; // blocks and pieces waiting for the disk threads
+    private static final long STOP_WAIT_SECONDS = 30;
+}
@@ -0,0 +1,188 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * One thread running the non-blocking connections registered with its selector, see PeerEngine.
+ * The connections of a loop are only touched by its thread, other threads hand work to it with execute(). A key is
+ * attached either the PeerChannel of its connection, or a Runnable run whenever the key is selected.
+ * Connections that have received nothing for Peer.SO_TIMEOUT are closed, like the socket timeout of runConnection().
+ */
+class PeerEventLoop {
+    private final Selector selector;
+    private final Queue<Runnable> tasks; // work handed to the loop by other threads
+    private final Thread thread;
+    private final ByteBuffer writeBuffer; // batches of queued messages are copied into it to be written
+
+    private volatile boolean stop;
+
+    /**
+     * Creates a PeerEventLoop, not yet running.
+     * @param name name of the loop's thread
+     * @throws IOException if the selector cannot be opened
+     */
+    PeerEventLoop(String name) throws IOException {
+        selector = Selector.open();
+        tasks = new ConcurrentLinkedQueue<>();
+        thread = new Thread(this::runLoop, name);
+        writeBuffer = ByteBuffer.allocateDirect(WRITE_BUFFER_LENGTH);
+        stop = false;
+    }
+
+    /**
+     * Starts the loop's thread.
+     */
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Stops the loop, closing every connection registered with it, and waits for its thread to finish.
+     */
+    void stop() {
+        stop = true;
+        selector.wakeup();
+
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Runs the task on the loop's thread, right away if called on it, otherwise at the next wakeup of the loop.
+     */
+    void execute(Runnable task) {
+        if (inLoop()) {
+            task.run();
+        } else {
+            tasks.add(task);
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs the task on the loop's thread at the next wakeup of the loop, even if called on it.
+     */
+    void executeLater(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Returns true if called on the loop's thread.
+     */
+    boolean inLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * @return the selector of the loop, for connections to register with on the loop's thread
+     */
+    Selector getSelector() {
+        return selector;
+    }
+
+    /**
+     * @return the buffer the connections of the loop copy their queued messages into to write them, shared by all of
+     * them, so only for use on the loop's thread
+     */
+    ByteBuffer getWriteBuffer() {
+        return writeBuffer;
+    }
+
+    /**
+     * @return the number of channels registered with the loop, including any listener
+     */
+    int getNumChannels() {
+        return selector.keys().size();
+    }
+
+    private void runLoop() {
+        long lastTimeoutCheck = System.currentTimeMillis();
+
+        try {
+            while (!stop) {
+                selector.select(SELECT_MILLIS);
+
+                /* Run the work handed over by other threads */
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runTask(task);
+                }
+
+                /* Handle ready channels */
+                Iterator<SelectionKey> selected = selector.selectedKeys().iterator();
+                while (selected.hasNext()) {
+                    SelectionKey key = selected.next();
+                    selected.remove();
+                    onSelected(key);
+                }
+
+                /* Close connections that went quiet */
+                long now = System.currentTimeMillis();
+                if (now - lastTimeoutCheck >= SELECT_MILLIS) {
+                    lastTimeoutCheck = now;
+                    for (SelectionKey key : selector.keys()) {
+                        if (key.attachment() instanceof PeerChannel)
+                            ((PeerChannel) key.attachment()).checkTimeout(now);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            System.out.println("Event loop failed: " + e);
+        } finally {
+            for (SelectionKey key : selector.keys()) {
+                if (key.attachment() instanceof PeerChannel)
+                    ((PeerChannel) key.attachment()).close();
+            }
+            try {
+                selector.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void onSelected(SelectionKey key) {
+        Object attachment = key.attachment();
+        if (attachment instanceof Runnable) {
+            runTask((Runnable) attachment);
+            return;
+        }
+
+        PeerChannel connection = (PeerChannel) attachment;
+        try {
+            if (key.isValid() && key.isConnectable())
+                connection.onConnectable();
+            if (key.isValid() && key.isReadable())
+                connection.onReadable();
+            if (key.isValid() && key.isWritable())
+                connection.onWritable();
+        } catch (IOException | CancelledKeyException e) {
+            connection.close();
+        } catch (RuntimeException e) {
+            /* A bug in one connection must not take down every other connection of the loop */
+            System.out.println("Fatal exception: " + e);
+            connection.close();
+        }
+    }
+
+    private void runTask(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            System.out.println("Fatal exception: " + e);
+        }
+    }
+
+    private static final long SELECT_MILLIS = 1000;
+    private static final int WRITE_BUFFER_LENGTH = 1<<16; // 64 KiB
+}
@@ -1,7 +1,10 @@
 package dev.zackschw.boosttorrent;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class PeerState {
     private final Peer peer;
@@ -9,6 +12,7 @@ public class PeerState {
     private final PeerConnectionOut cout;
     private final MetadataInfo meta;
     private final PeerCoordinator coordinator;
+    private final Executor offload; // runs the work that may block on the disk, or null to run it in place
 
     private boolean amChoking; // the client is choking the peer
     private boolean peerChoking; // the peer is choking the client
@@ -20,23 +24,36 @@ public class PeerState {
 
     private Bitvector bitfield; // the peer's bitfield
 
-    private final List<Piece> workingPieces; // the pieces the client is requesting from this peer
-    private boolean resendRequests; // resend requests after being choked and then unchoked
+    private final List<BlockRequest> requests; // the blocks requested from this peer and not yet received
+    private final RequestWindow window; // how many requests to keep outstanding
+    private final ReentrantLock interestLock; // held while sending, so not a monitor, which would pin a virtual thread
 
     PeerState(Peer peer, PeerConnectionIn cin, PeerConnectionOut cout, MetadataInfo meta, PeerCoordinator coordinator) {
+        this(peer, cin, cout, meta, coordinator, null);
+    }
+
+    /**
+     * Creates a PeerState whose blocks are written to storage and pieces submitted to be checked by the given executor,
+     * eg off the event loop of a PeerChannel.
+     * @param offload runs the work that may block on the disk, or null to run it on the calling thread
+     */
+    PeerState(Peer peer, PeerConnectionIn cin, PeerConnectionOut cout, MetadataInfo meta, PeerCoordinator coordinator,
+              Executor offload) {
         this.peer = peer;
         this.cin = cin;
         this.cout = cout;
         this.meta = meta;
         this.coordinator = coordinator;
+        this.offload = offload;
 
         amChoking = true;
         peerChoking = true;
         amInterested = false;
         peerInterested = false;
 
-        workingPieces = new ArrayList<>(2);
-        resendRequests = false;
+        requests = new ArrayList<>();
+        window = new RequestWindow();
+        interestLock = new ReentrantLock();
     }
 
     /**
@@ -45,12 +62,13 @@ public class PeerState {
     void onChokeMessage(boolean choking) {
         peerChoking = choking;
 
+        /* A choking peer discards the requests it was sent, so other peers can be asked for the blocks */
         if (peerChoking) {
-            resendRequests = true;
+            dropRequests();
         }
 
         if (!peerChoking && amInterested) {
-            startRequesting();
+            fillRequests();
         }
     }
 
@@ -76,11 +94,16 @@ public class PeerState {
         }
 
         /* Sanity check */
-        if (piece <= meta.getNumPieces() && piece >= 0) {
-            bitfield.setBit(piece);
+        if (piece < bitfield.getSize() && piece >= 0) {
+            if (!bitfield.isSet(piece)) {
+                bitfield.setBit(piece);
+                coordinator.onPeerHave(piece);
+            }
             /* If we do not have the piece yet then we are now interested in the peer */
             if (!amInterested && !coordinator.havePiece(piece))
                 setAmInterested(true);
+            else if (amInterested && !peerChoking)
+                fillRequests();
         } else {
             peer.disconnect();
         }
@@ -94,12 +117,14 @@ public class PeerState {
             if (meta.getNumPieces() == 0) {
                 /* If we don't know the number of pieces, liberally accept the bitfield */
                 bitfield = new Bitvector(bitmap.length * 8, bitmap);
+                coordinator.onPeerBitfield(bitfield);
                 /* Set initial interested status */
                 setAmInterested(coordinator.wantAnyPiece(bitfield));
             } else {
                 /* If we do know the number of pieces, ensure it is correct */
                 if (meta.getNumPieces() / 8 + (meta.getNumPieces() % 8 == 0 ? 0 : 1) == bitmap.length) {
                     bitfield = new Bitvector(meta.getNumPieces(), bitmap);
+                    coordinator.onPeerBitfield(bitfield);
                     /* Set initial interested status */
                     setAmInterested(coordinator.wantAnyPiece(bitfield));
                 } else {
@@ -130,59 +155,154 @@ public class PeerState {
 
     /**
      * On receive PIECE message
+     * @param index index of the piece the block belongs to
+     * @param piece the piece being requested that the block belongs to, or null if the block is not one the client is
+     *              requesting
+     * @param begin offset of the block into the piece
+     * @param block buffer holding the block between its position and limit, or null if piece is null
+     * @param length length of the block
      */
-    void onPieceMessage(Piece piece, int begin) {
+    void onPieceMessage(int index, Piece piece, int begin, ByteBuffer block, int length) {
+        BlockRequest request = removeRequest(index, begin);
+        if (request != null) {
+            request.piece.onRequestDropped(request.getBlock());
+
+            long now = System.nanoTime();
+            window.onBlockReceived(length, now - request.sentTime, now);
+        }
+
         if (piece == null) {
+            /* A block can still arrive after its piece was finished, or after its request was cancelled */
+            if (request != null || coordinator.isEndgame() ||
+                    (index >= 0 && index < meta.getNumPieces() && coordinator.havePiece(index)))
+                return;
+
             System.out.println("Received unexpected piece.");
             peer.disconnect();
             return;
         }
 
-        piece.onReceivedBlock(begin);
+        if (offload != null && piece.isOnDisk()) {
+            /* Claim the block here, and write a copy of it to storage off this thread */
+            if (piece.claimBlock(begin)) {
+                coordinator.onReceivedBlock(piece, begin, length, this);
+                ByteBuffer copy = ByteBuffer.allocate(length).put(block.duplicate()).flip();
+                offload.execute(() -> {
+                    if (coordinator.writeClaimedBlock(piece, begin, copy) == piece.getNumBlocks())
+                        verifyPiece(piece);
+                });
+            }
 
-        // TODO when to start requesting next piece?
-        if (!peerChoking && piece.getNumReceivedBlocks() == piece.length*3/4)
-            requestNextPiece();
+            if (!peerChoking)
+                fillRequests();
+            return;
+        }
 
-        if (piece.receivedAllBlocks()) {
-            /* Remove from working pieces */
-            synchronized (workingPieces) {
-                workingPieces.remove(piece);
-            }
+        /* Record the block against the piece, whichever peer it was requested from */
+        int received = coordinator.putBlock(piece, begin, block);
+        if (received != -1) {
+            /* Cancel the block at any other peers it was requested from in endgame */
+            coordinator.onReceivedBlock(piece, begin, length, this);
+        }
 
-            /* Check hash */
-            if (piece.checkHash()) {
-                coordinator.onFinishedPiece(piece);
-            } else {
-                /* Disconnect on bad hash */
-                peer.disconnect();
-            }
+        if (!peerChoking)
+            fillRequests();
+
+        if (received == piece.getNumBlocks()) {
+            if (offload != null)
+                offload.execute(() -> verifyPiece(piece));
+            else
+                verifyPiece(piece);
         }
     }
 
     /**
-     * Returns the Piece object that the client is requesting from this peer, specified by the piece index.
+     * Submits a piece with every block stored to have its hash checked off this thread, disconnecting the peer on a bad
+     * hash.
+     */
+    private void verifyPiece(Piece piece) {
+        coordinator.verifyPiece(piece, (p, passed) -> {
+            if (!passed)
+                peer.disconnect();
+        });
+    }
+
+    /**
+     * Returns the piece with the given index that the client is requesting, from this peer or any other.
      * @param index zero-based index of the piece
      * @return the piece object, or null if it does not exist
      */
-    Piece getWorkingPiece(int index) {
-        synchronized (workingPieces) {
-            for (Piece p: workingPieces) {
-                if (p.index == index) {
-                    return p;
-                }
+    Piece getActivePiece(int index) {
+        return coordinator.getActivePiece(index);
+    }
+
+
+    /**
+     * On disconnect, gives up the blocks the client was requesting from this peer, and stops counting the peer's
+     * pieces as available
+     */
+    void onDisconnected() {
+        dropRequests();
+
+        if (bitfield != null) {
+            coordinator.onPeerGone(bitfield);
+        }
+    }
+
+    /**
+     * Returns true if the block was requested from this peer and has not been received.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     */
+    boolean isRequested(Piece piece, int begin) {
+        synchronized (requests) {
+            for (BlockRequest r : requests) {
+                if (r.piece == piece && r.begin == begin)
+                    return true;
             }
         }
 
-        return null;
+        return false;
     }
 
+    /**
+     * Sends CANCEL for a block if it was requested from this peer, eg after the block was received from another peer
+     * in endgame.
+     * @param piece piece the block belongs to
+     * @param begin offset of the block into the piece
+     * @param length length of the block
+     */
+    void cancelRequest(Piece piece, int begin, int length) {
+        BlockRequest cancelled = null;
+        synchronized (requests) {
+            for (BlockRequest r : requests) {
+                if (r.piece == piece && r.begin == begin) {
+                    cancelled = r;
+                    requests.remove(r);
+                    break;
+                }
+            }
+        }
+
+        if (cancelled != null) {
+            cout.sendCancel(piece.index, begin, length);
+            coordinator.onRequestDropped(cancelled);
+        }
+    }
 
     /**
      * On completed a piece, send HAVE to this peer
      */
     void onHaveFinishedPiece(int piece) {
-        /* TODO send cancels for any outstanding requests */
+        /* Cancel any requests still outstanding for the piece */
+        List<BlockRequest> cancelled = new ArrayList<>();
+        synchronized (requests) {
+            requests.removeIf(r -> r.piece.index == piece && cancelled.add(r));
+        }
+        for (BlockRequest r : cancelled) {
+            cout.sendCancel(piece, r.begin, r.length);
+            coordinator.onRequestDropped(r);
+        }
 
         /* Send Have */
         cout.sendHave(piece);
@@ -193,63 +313,66 @@ public class PeerState {
 
 
     /**
-     * Starts requesting from a peer. Client must be unchoked before calling.
+     * Sends requests for blocks given by the coordinator until the request window is full, see RequestWindow.
+     * Should only be called when the client is unchoked.
      */
-    private void startRequesting() {
-        /* Resend requests if unchoked after being choked */
-        if (resendRequests) {
-            synchronized (workingPieces) {
-                for (Piece piece: workingPieces) {
-                    /* Send all outstanding requests except last request */
-                    int lastOff = piece.length - Piece.BLOCK_LENGTH;
-                    for (int begin=0; begin < lastOff; begin += Piece.BLOCK_LENGTH) {
-                        if (!piece.isBlockReceived(begin))
-                            cout.sendRequest(piece.index, begin, Piece.BLOCK_LENGTH);
-                    }
-
-                    /* Send outstanding last request */
-                    int lastLen = piece.index == meta.getNumPieces() - 1 ?
-                            meta.getLastPieceLength() - Piece.BLOCK_LENGTH*(meta.getNumPieces() - 1) : Piece.BLOCK_LENGTH;
-                    if (!piece.isBlockReceived(lastOff))
-                        cout.sendRequest(piece.index, lastOff, lastLen);
+    private void fillRequests() {
+        while (true) {
+            synchronized (requests) {
+                if (requests.size() >= window.getSize())
+                    return;
+            }
+
+            /* Get next block from coordinator */
+            BlockRequest request = coordinator.getNextBlockToRequest(bitfield, this);
+            if (request == null) {
+                // TODO uninterested
+                synchronized (requests) {
+                    if (requests.isEmpty())
+                        window.onIdle();
                 }
+                return;
             }
 
-            resendRequests = false;
-        } else {
-            requestNextPiece();
+            synchronized (requests) {
+                request.sentTime = System.nanoTime();
+                requests.add(request);
+            }
+            cout.sendRequest(request.piece.index, request.begin, request.length);
         }
     }
 
     /**
-     * Requests all blocks in the next piece given by the coordinator.
-     * Should only be called when the client is unchoked.
+     * Gives up all requests to this peer, so the blocks can be requested from other peers.
      */
-    private void requestNextPiece() {
-        /* Get next piece from coordinator */
-        int index = coordinator.getNextPieceToRequest(bitfield);
-        if (index == -1) {
-            // TODO uninterested
-            return;
+    private void dropRequests() {
+        List<BlockRequest> dropped;
+        synchronized (requests) {
+            dropped = new ArrayList<>(requests);
+            requests.clear();
         }
-        int length = index == meta.getNumPieces() - 1 ? meta.getLastPieceLength() : meta.getPieceLength();
-        Piece piece = new Piece(index, length, meta.getPieceHash(index));
+        window.onIdle();
 
-        /* Add to working pieces */
-        synchronized (workingPieces) {
-            workingPieces.add(piece);
+        for (BlockRequest r : dropped) {
+            coordinator.onRequestDropped(r);
         }
+    }
 
-        /* Send all requests except last request */
-        int lastOff = piece.length - Piece.BLOCK_LENGTH;
-        for (int begin=0; begin < lastOff; begin += Piece.BLOCK_LENGTH) {
-            cout.sendRequest(piece.index, begin, Piece.BLOCK_LENGTH);
+    /**
+     * Removes the request for a block from the outstanding requests.
+     * @return the request, or null if the block was not requested from this peer
+     */
+    private BlockRequest removeRequest(int index, int begin) {
+        synchronized (requests) {
+            for (BlockRequest r : requests) {
+                if (r.piece.index == index && r.begin == begin) {
+                    requests.remove(r);
+                    return r;
+                }
+            }
         }
 
-        /* Send last request */
-        int lastLen = piece.index == meta.getNumPieces() - 1 ?
-                meta.getLastPieceLength() - Piece.BLOCK_LENGTH*(meta.getNumPieces() - 1) : Piece.BLOCK_LENGTH;
-        cout.sendRequest(piece.index, lastOff, lastLen);
+        return null;
     }
 
 
@@ -286,19 +409,40 @@ public class PeerState {
      * If the interest status changes, a respective INTERESTED or NOTINTERESTED message is sent.
      * @param interested new interested status
      */
-    private synchronized void setAmInterested(boolean interested) {
-        if (!amInterested && interested) {
-            amInterested = true;
-            cout.sendInterested();
-
-            if (amInterested && !peerChoking)
-                startRequesting();
-        } else if (amInterested && !interested) {
-            amInterested = false;
-            cout.sendNotInterested();
+    private void setAmInterested(boolean interested) {
+        interestLock.lock();
+        try {
+            if (!amInterested && interested) {
+                amInterested = true;
+                cout.sendInterested();
+
+                if (amInterested && !peerChoking)
+                    fillRequests();
+            } else if (amInterested && !interested) {
+                amInterested = false;
+                cout.sendNotInterested();
+            }
+        } finally {
+            interestLock.unlock();
         }
     }
 
+    /**
+     * @return the number of block requests sent to this peer and not yet received
+     */
+    int getQueueDepth() {
+        synchronized (requests) {
+            return requests.size();
+        }
+    }
+
+    /**
+     * @return the request window of this peer, for its size, round-trip time and download rate
+     */
+    RequestWindow getRequestWindow() {
+        return window;
+    }
+
     /**
      * Gets the number of bytes downloaded from this peer since last call to resetUploadedDownloaded()
      */
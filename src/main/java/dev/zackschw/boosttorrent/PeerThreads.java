@@ -0,0 +1,74 @@
+package dev.zackschw.boosttorrent;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Creates the threads that block on peer I/O: the thread of each connection run by Peer.runConnection(), the
+ * PeerAcceptor's listener, and the Fulfiller.
+ * Threads are either platform threads, or virtual threads on a JVM that has them (Java 21 and later), so a blocked
+ * connection costs a small heap object rather than an OS thread. Virtual threads are looked up reflectively, so the
+ * client still builds for and runs on older JVMs, where asking for them falls back to platform threads.
+ */
+public class PeerThreads {
+    public static final String PLATFORM = "platform";
+    public static final String VIRTUAL = "virtual";
+
+    private static final ThreadFactory VIRTUAL_FACTORY = findVirtualThreadFactory();
+
+    private PeerThreads() {
+    }
+
+    /**
+     * @return a factory of platform threads
+     */
+    public static ThreadFactory platform() {
+        return Thread::new;
+    }
+
+    /**
+     * @return a factory of virtual threads, or of platform threads if the JVM has no virtual threads
+     */
+    public static ThreadFactory virtual() {
+        return VIRTUAL_FACTORY != null ? VIRTUAL_FACTORY : platform();
+    }
+
+    /**
+     * Returns true if the JVM has virtual threads.
+     */
+    public static boolean isVirtualAvailable() {
+        return VIRTUAL_FACTORY != null;
+    }
+
+    /**
+     * Returns the factory for an execution mode.
+     * @param mode either PLATFORM or VIRTUAL
+     * @return the factory of threads for the mode, see virtual() for the fallback
+     * @throws IllegalArgumentException if the mode is not known
+     */
+    public static ThreadFactory forMode(String mode) {
+        if (mode.equalsIgnoreCase(PLATFORM))
+            return platform();
+        if (mode.equalsIgnoreCase(VIRTUAL)) {
+            if (!isVirtualAvailable())
+                System.out.println("Virtual threads need Java 21 or later, using platform threads.");
+            return virtual();
+        }
+
+        throw new IllegalArgumentException("Unknown thread mode " + mode + ", expected platform or virtual");
+    }
+
+    /**
+     * Finds Thread.ofVirtual().factory(), which is only there from Java 21.
+     * @return the factory, or null if the JVM has no virtual threads
+     */
+    private static ThreadFactory findVirtualThreadFactory() {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Method factory = Class.forName("java.lang.Thread$Builder").getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+}
@@ -1,53 +1,326 @@
 package dev.zackschw.boosttorrent;
 
-import java.io.DataInputStream;
-import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.Arrays;
 
 public class Piece {
     final int index;
     final int length;
-    final byte[] bytes; // bytes received from a peer
+    final ByteBuffer bytes; // bytes received from a peer, from position 0 to length, or null if written to storage
     private final byte[] hash;
+    private final BufferPool pool; // pool the bytes were taken from, or null
     private final Bitvector receivedBlocks;
+    private final int[] numRequests; // number of outstanding requests for each block, across all peers
+    private final DigestPool digests; // pool to take the digest from, or null
+
+    private MessageDigest digest; // hash of the bytes before hashedLength, or null if nothing is hashed yet
+    private int hashedLength; // length of the prefix of the piece fed to the digest
 
     private int count;
+    private boolean released;
 
     /**
      * Piece objects are specified by an index and a length.
      * Piece.bytes stores the bytes of the Piece received by a peer.
      * Piece objects keep track of which blocks have been received via calls to onReceivedBlock().
      * A client implementation can check if all blocks have been received via receivedAllBlocks().
+     * Blocks of a piece can be requested from several peers at once, see onRequested() and putBlock().
+     * The piece is hashed as its blocks arrive: whenever the blocks received in order from the start of the piece
+     * grow, they are fed to the digest, so checkHash() only has to hash the blocks that arrived out of order.
      * @param index zero-based piece index
      * @param length length of the piece
      * @param hash 20-byte SHA1 hash of the piece, from the meta file
      */
     public Piece(int index, int length, byte[] hash) {
+        this(index, length, hash, null);
+    }
+
+    /**
+     * Creates a Piece whose bytes are stored in a buffer taken from the pool. The buffer is returned to the pool by
+     * release().
+     * @param index zero-based piece index
+     * @param length length of the piece
+     * @param hash 20-byte SHA1 hash of the piece, from the meta file
+     * @param pool pool to take the buffer from, or null to allocate a buffer for this piece only
+     */
+    public Piece(int index, int length, byte[] hash, BufferPool pool) {
+        this(index, length, hash, pool, null);
+    }
+
+    /**
+     * Creates a Piece whose bytes are stored in a buffer taken from the pool, and hashed with a digest taken from the
+     * pool of digests. The buffer and the digest are returned to their pools by release().
+     * @param index zero-based piece index
+     * @param length length of the piece
+     * @param hash 20-byte SHA1 hash of the piece, from the meta file
+     * @param pool pool to take the buffer from, or null to allocate a buffer for this piece only
+     * @param digests pool to take the digest from, or null to create a digest for this piece only
+     */
+    public Piece(int index, int length, byte[] hash, BufferPool pool, DigestPool digests) {
+        this(index, length, hash, pool, digests, false);
+    }
+
+    private Piece(int index, int length, byte[] hash, BufferPool pool, DigestPool digests, boolean onDisk) {
         this.index = index;
         this.length = length;
         this.hash = hash;
+        this.pool = pool;
+        this.digests = digests;
 
         count = 0;
+        released = false;
+        digest = null;
+        hashedLength = 0;
 
-        bytes = new byte[length];
+        if (onDisk) {
+            bytes = null;
+        } else {
+            bytes = pool != null ? pool.acquire() : ByteBuffer.allocate(length);
+            bytes.limit(length);
+        }
         receivedBlocks = new Bitvector(length/BLOCK_LENGTH + (length % BLOCK_LENGTH == 0 ? 0 : 1));
+        numRequests = new int[receivedBlocks.getSize()];
+    }
+
+    /**
+     * Creates a Piece that holds no bytes in memory, whose blocks are written to storage as they are received.
+     * A block is claimed with claimBlock() before it is written, so it is written once even if received from several
+     * peers, and counted with onBlockWritten() after, so the piece is only checked once every block is on disk.
+     * Blocks written in order from the start of the piece are hashed as they are written, and the rest are read back
+     * from storage by checkHash(Storage).
+     * @param index zero-based piece index
+     * @param length length of the piece
+     * @param hash 20-byte SHA1 hash of the piece, from the meta file
+     * @param digests pool to take the digest from, or null to create a digest for this piece only
+     */
+    public static Piece createOnDisk(int index, int length, byte[] hash, DigestPool digests) {
+        return new Piece(index, length, hash, null, digests, true);
+    }
+
+    /**
+     * Returns true if the piece holds no bytes in memory, and its blocks are written to storage as they are received.
+     */
+    public boolean isOnDisk() {
+        return bytes == null;
+    }
+
+    /**
+     * Returns the bytes of the block at offset begin of the piece, to read a block received from a peer into.
+     * @param begin offset into the piece
+     * @param length length of the block
+     * @return a buffer sharing the piece's bytes, positioned at the start of the block and limited to its end
+     */
+    public ByteBuffer getBlock(int begin, int length) {
+        ByteBuffer block = bytes.duplicate();
+        block.limit(begin + length);
+        block.position(begin);
+        return block;
+    }
+
+    /**
+     * Returns the buffer holding the bytes and the digest to the pools they were taken from. The piece must no longer
+     * be used, and any block put after this is ignored.
+     */
+    public synchronized void release() {
+        if (released)
+            return;
+
+        released = true;
+        if (pool != null && bytes != null)
+            pool.release(bytes);
+        releaseDigest();
     }
 
     /**
      * On receiving a block from a peer.
      * @param begin the offset into the piece for the block received
      */
-    public void onReceivedBlock(int begin) {
+    public synchronized void onReceivedBlock(int begin) {
+        if (receivedBlocks.isSet(begin/BLOCK_LENGTH))
+            return;
+
         receivedBlocks.setBit(begin/BLOCK_LENGTH);
         count++;
     }
 
+    /**
+     * Copies a block received from a peer into the piece, unless the block was already received from another peer
+     * or the piece was released.
+     * @param begin the offset into the piece for the block received
+     * @param block array holding the block
+     * @param length length of the block
+     * @return the number of blocks received including this one, or -1 if the block was not needed
+     */
+    public int putBlock(int begin, byte[] block, int length) {
+        return putBlock(begin, ByteBuffer.wrap(block, 0, length));
+    }
+
+    /**
+     * Copies a block received from a peer into the piece, unless the block was already received from another peer
+     * or the piece was released.
+     * @param begin the offset into the piece for the block received
+     * @param block buffer holding the block between its position and limit, eg in place in the buffer it was received
+     *              into. Its position and limit are not changed.
+     * @return the number of blocks received including this one, or -1 if the block was not needed
+     */
+    public synchronized int putBlock(int begin, ByteBuffer block) {
+        if (released || receivedBlocks.isSet(begin/BLOCK_LENGTH))
+            return -1;
+
+        int position = block.position();
+        getBlock(begin, block.remaining()).put(block);
+        block.position(position);
+        receivedBlocks.setBit(begin/BLOCK_LENGTH);
+
+        /* Hash the blocks received in order so far */
+        while (hashedLength < this.length && receivedBlocks.isSet(hashedLength/BLOCK_LENGTH)) {
+            int blockLength = getBlockLength(hashedLength/BLOCK_LENGTH);
+            getDigest().update(getBlock(hashedLength, blockLength));
+            hashedLength += blockLength;
+        }
+
+        return ++count;
+    }
+
+    /**
+     * Claims a block received from a peer to write to storage, unless the block was already received from another
+     * peer or the piece was released.
+     * @param begin the offset into the piece for the block received
+     * @return true if the block should be written, otherwise false
+     */
+    public synchronized boolean claimBlock(int begin) {
+        if (released || receivedBlocks.isSet(begin/BLOCK_LENGTH))
+            return false;
+
+        receivedBlocks.setBit(begin/BLOCK_LENGTH);
+        return true;
+    }
+
+    /**
+     * On a claimed block being written to storage. The block is hashed if it follows the blocks hashed so far.
+     * @param begin the offset into the piece for the block written
+     * @param block array holding the block
+     * @param length length of the block
+     * @return the number of blocks written including this one, or -1 if the piece was released
+     */
+    public int onBlockWritten(int begin, byte[] block, int length) {
+        return onBlockWritten(begin, ByteBuffer.wrap(block, 0, length));
+    }
+
+    /**
+     * On a claimed block being written to storage. The block is hashed if it follows the blocks hashed so far.
+     * @param begin the offset into the piece for the block written
+     * @param block buffer holding the block between its position and limit. Its position and limit are not changed.
+     * @return the number of blocks written including this one, or -1 if the piece was released
+     */
+    public synchronized int onBlockWritten(int begin, ByteBuffer block) {
+        if (released)
+            return -1;
+
+        if (begin == hashedLength) {
+            int position = block.position();
+            hashedLength += block.remaining();
+            getDigest().update(block);
+            block.position(position);
+        }
+
+        return ++count;
+    }
+
+    /**
+     * Counts the blocks written to storage before a restart as received.
+     * @param blocks bitmap of the blocks already written
+     */
+    public synchronized void restoreBlocks(Bitvector blocks) {
+        for (int block = blocks.nextSetBit(0); block != -1 && block < getNumBlocks(); block = blocks.nextSetBit(block + 1)) {
+            if (!receivedBlocks.isSet(block)) {
+                receivedBlocks.setBit(block);
+                count++;
+            }
+        }
+    }
+
+    /**
+     * Checks that a block received from a peer is one of the blocks of the piece, with the expected length.
+     * @param begin the offset into the piece for the block
+     * @param length length of the block
+     */
+    public boolean isValidBlock(int begin, int length) {
+        return begin >= 0 && begin < this.length && begin % BLOCK_LENGTH == 0 &&
+                length == getBlockLength(begin/BLOCK_LENGTH);
+    }
+
+    /**
+     * @return the number of blocks of the piece
+     */
+    public int getNumBlocks() {
+        return receivedBlocks.getSize();
+    }
+
+    /**
+     * @param block zero-based index of the block in the piece
+     * @return the length of the block, which is BLOCK_LENGTH except for the last block
+     */
+    public int getBlockLength(int block) {
+        return Math.min(BLOCK_LENGTH, length - block*BLOCK_LENGTH);
+    }
+
+    /**
+     * @return the first block that has not been received and is not requested from any peer, or -1 if there is none
+     */
+    public synchronized int nextUnrequestedBlock() {
+        for (int block = receivedBlocks.nextClearBit(0); block != -1; block = receivedBlocks.nextClearBit(block + 1)) {
+            if (numRequests[block] == 0)
+                return block;
+        }
+
+        return -1;
+    }
+
+    /**
+     * On sending a request for a block to a peer.
+     * @param block zero-based index of the block in the piece
+     */
+    public synchronized void onRequested(int block) {
+        numRequests[block]++;
+    }
+
+    /**
+     * On a request for a block being cancelled, or lost to a choke or disconnect.
+     * @param block zero-based index of the block in the piece
+     */
+    public synchronized void onRequestDropped(int block) {
+        if (numRequests[block] > 0)
+            numRequests[block]--;
+    }
+
+    /**
+     * @param block zero-based index of the block in the piece
+     * @return the number of outstanding requests for the block
+     */
+    public synchronized int getNumRequests(int block) {
+        return numRequests[block];
+    }
+
+    /**
+     * Returns true if no block has been received or claimed, and no block is requested from any peer.
+     */
+    public synchronized boolean isIdle() {
+        if (!receivedBlocks.isEmpty())
+            return false;
+
+        for (int n : numRequests) {
+            if (n > 0)
+                return false;
+        }
+
+        return true;
+    }
+
     /**
      * @return the number of blocks already received in this piece, via onReceivedBlock()
      */
-    public int getNumReceivedBlocks() {
+    public synchronized int getNumReceivedBlocks() {
         return count;
     }
 
@@ -66,18 +339,58 @@ public class Piece {
     }
 
     /**
-     * Computes the SHA-1 hash of the piece bytes, and compares it to the hash from the meta file.
+     * Finishes the SHA-1 hash of the piece bytes, hashing only the bytes not hashed as they arrived, and compares it
+     * to the hash from the meta file. Pieces on disk are checked by checkHash(Storage) instead.
      * @return true if the hashes are the same, otherwise false
      */
-    public boolean checkHash() {
-        MessageDigest md;
-        try {
-            md = MessageDigest.getInstance("SHA-1");
-        } catch (NoSuchAlgorithmException e) {
-            throw new IllegalArgumentException(e);
-        }
+    public synchronized boolean checkHash() {
+        ByteBuffer tail = bytes.duplicate();
+        tail.position(hashedLength);
+        getDigest().update(tail);
+
+        return finishHash();
+    }
 
-        return Arrays.equals(md.digest(bytes), hash);
+    /**
+     * Finishes the SHA-1 hash of a piece on disk, reading the blocks not hashed as they were written back from
+     * storage, and compares it to the hash from the meta file.
+     * @param storage storage the blocks were written to
+     * @return true if the hashes are the same, otherwise false
+     */
+    public synchronized boolean checkHash(Storage storage) {
+        storage.updateDigest(index, hashedLength, getDigest());
+
+        return finishHash();
+    }
+
+    /**
+     * Compares the digest to the hash from the meta file, and returns the digest to its pool. Must hold the lock of
+     * the piece.
+     */
+    private boolean finishHash() {
+        boolean matches = MessageDigest.isEqual(digest.digest(), hash);
+        releaseDigest();
+        return matches;
+    }
+
+    /**
+     * Returns the digest of the piece, taking it from the pool first if needed. Must hold the lock of the piece.
+     */
+    private MessageDigest getDigest() {
+        if (digest == null)
+            digest = digests != null ? digests.acquire() : DigestPool.newDigest();
+
+        return digest;
+    }
+
+    /**
+     * Returns the digest to its pool, and starts the hash over. Must hold the lock of the piece.
+     */
+    private void releaseDigest() {
+        if (digest != null && digests != null)
+            digests.release(digest);
+        digest = null;
+        hashedLength = 0;
     }
 
     public static final int BLOCK_LENGTH = 1<<14;
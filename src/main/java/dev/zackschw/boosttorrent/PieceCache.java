@@ -0,0 +1,160 @@
+package dev.zackschw.boosttorrent;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Caches whole pieces read for uploading, so that blocks of pieces requested by many peers are read from disk once.
+ * The cache holds up to capacity bytes of pieces and evicts the least recently used piece when full. Piece buffers
+ * are allocated once and reused for the pieces that replace them.
+ * Only pieces the client has are cached, since the contents of other pieces may still change.
+ */
+public class PieceCache {
+    private final MetadataInfo meta;
+    private final Bitvector myBitfield;
+    private final DiskWriter diskWriter;
+    private final int maxPieces;
+
+    private final LinkedHashMap<Integer, byte[]> pieces; // in order of least recently used first
+    private final Map<Integer, CompletableFuture<Void>> loading; // pieces being read from disk, completed once read
+
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    /**
+     * Creates a PieceCache.
+     * @param meta torrent metadata info
+     * @param myBitfield the client's bitfield of pieces
+     * @param diskWriter where to read pieces from on a miss
+     * @param capacity maximum number of bytes of pieces to hold
+     */
+    public PieceCache(MetadataInfo meta, Bitvector myBitfield, DiskWriter diskWriter, long capacity) {
+        this.meta = meta;
+        this.myBitfield = myBitfield;
+        this.diskWriter = diskWriter;
+
+        maxPieces = (int) Math.min(Integer.MAX_VALUE, capacity / meta.getPieceLength());
+        pieces = new LinkedHashMap<>(16, 0.75f, true);
+        loading = new HashMap<>();
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+    }
+
+    /**
+     * Reads the requested block, loading its piece into the cache if needed. The piece is read from disk without
+     * holding the cache's lock, so reads of other pieces go on meanwhile, and concurrent reads of the same missing
+     * piece wait for the one load.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the requested block
+     * @return byte array of requested length representing the block specified by piece index and begin offset.
+     */
+    public byte[] readBlock(int piece, int begin, int length) {
+        if (maxPieces == 0 || !myBitfield.isSet(piece)) {
+            return diskWriter.readBlock(piece, begin, length);
+        }
+
+        byte[] block = new byte[length];
+
+        while (true) {
+            CompletableFuture<Void> load;
+            byte[] bytes = null;
+            synchronized (this) {
+                byte[] cached = pieces.get(piece);
+                if (cached != null) {
+                    hits++;
+                    System.arraycopy(cached, begin, block, 0, length);
+                    return block;
+                }
+
+                /* Wait for the piece if another thread is loading it, otherwise claim a buffer to load it into */
+                load = loading.get(piece);
+                if (load == null) {
+                    misses++;
+                    load = new CompletableFuture<>();
+                    loading.put(piece, load);
+                    bytes = claimBuffer();
+                }
+            }
+
+            if (bytes == null) {
+                /* Look the piece up again once loaded, it may fail to load or be evicted before this thread runs */
+                load.join();
+                continue;
+            }
+
+            try {
+                int pieceLength = meta.getPieceLength(piece);
+                diskWriter.readBlock(piece, 0, pieceLength, bytes);
+                synchronized (this) {
+                    pieces.put(piece, bytes);
+                    trim();
+                    System.arraycopy(bytes, begin, block, 0, length);
+                }
+                return block;
+            } finally {
+                synchronized (this) {
+                    loading.remove(piece);
+                }
+                load.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Returns a buffer to load a piece into: a new one while there is room, otherwise the buffer of the least recently
+     * used piece, which is evicted. Must hold the lock, with the piece to load already in loading.
+     */
+    private byte[] claimBuffer() {
+        if (pieces.size() + loading.size() > maxPieces && !pieces.isEmpty()) {
+            Iterator<Map.Entry<Integer, byte[]>> eldest = pieces.entrySet().iterator();
+            byte[] bytes = eldest.next().getValue();
+            eldest.remove();
+            evictions++;
+            return bytes;
+        }
+
+        return new byte[meta.getPieceLength()];
+    }
+
+    /**
+     * Evicts the least recently used pieces while the cache holds more than maxPieces, which happens when more pieces
+     * were loading at once than there was room for. Must hold the lock.
+     */
+    private void trim() {
+        Iterator<Map.Entry<Integer, byte[]>> eldest = pieces.entrySet().iterator();
+        while (pieces.size() > maxPieces) {
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    /**
+     * @return the number of reads that had to load their piece
+     */
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    /**
+     * @return the number of pieces evicted to make room for others
+     */
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    public static final long DEFAULT_CAPACITY = 64L<<20; // 64 MiB
+}
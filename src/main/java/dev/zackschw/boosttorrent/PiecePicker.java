@@ -0,0 +1,319 @@
+package dev.zackschw.boosttorrent;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Rarest-first piece picker. Keeps a count of how many connected peers have each piece, the availability, and picks
+ * the rarest piece a peer has that the client still wants.
+ * Wanted pieces, ie pieces the client does not have and is not requesting, are kept in buckets by availability, so
+ * moving a piece between buckets is O(1) and the rarest pieces are always found in the first non-empty bucket.
+ * Ties between pieces of the same availability are broken by starting the search of a bucket at a random position.
+ * Each piece has a priority, from the priorities of the files it lies in. Pieces of a higher priority are picked
+ * before any piece of a lower priority, and rarest first among themselves. Skipped pieces are never wanted.
+ * For streaming, a window of pieces ahead of the playhead can be set. Wanted pieces in the window are picked first and
+ * in order, and rarest-first applies to the pieces outside it.
+ * All operations are thread safe.
+ */
+public class PiecePicker {
+    private final int numPieces;
+    private final int[] availability; // number of connected peers that have each piece
+    private final boolean[] wanted; // the piece is not had by the client and is not being requested
+    private final Priority[] priorities; // priority of each piece
+    private final Bucket[][] buckets; // wanted pieces by priority, then by availability
+    private final int[] bucketPos; // position of each wanted piece in its bucket
+    private int numWanted;
+    private int streamFirst; // first piece of the streaming window, or -1 if not streaming
+    private int streamLast; // last piece of the streaming window
+    private final Random random;
+
+    /**
+     * Creates a piece picker that wants every piece not set in myBitfield, all of normal priority.
+     * @param numPieces number of pieces of the torrent
+     * @param myBitfield the client's bitfield
+     */
+    public PiecePicker(int numPieces, Bitvector myBitfield) {
+        this(numPieces, myBitfield, normalPriorities(numPieces));
+    }
+
+    /**
+     * Creates a piece picker that wants every piece not set in myBitfield and not skipped.
+     * @param numPieces number of pieces of the torrent
+     * @param myBitfield the client's bitfield
+     * @param priorities priority of each piece, see Storage.getPiecePriorities()
+     */
+    public PiecePicker(int numPieces, Bitvector myBitfield, Priority[] priorities) {
+        this.numPieces = numPieces;
+        this.priorities = priorities.clone();
+
+        availability = new int[numPieces];
+        wanted = new boolean[numPieces];
+        bucketPos = new int[numPieces];
+        buckets = new Bucket[Priority.values().length][INITIAL_BUCKETS];
+        for (Bucket[] level : buckets) {
+            for (int i=0; i < level.length; i++) {
+                level[i] = new Bucket();
+            }
+        }
+        random = new Random();
+        streamFirst = -1;
+        streamLast = -1;
+
+        for (int i = myBitfield.nextClearBit(0); i != -1 && i < numPieces; i = myBitfield.nextClearBit(i + 1)) {
+            if (priorities[i] != Priority.SKIP)
+                addWanted(i);
+        }
+    }
+
+    /**
+     * Counts all pieces of a peer's bitfield as available, eg on receiving a BITFIELD message.
+     * @param peerBitfield the peer's bitfield
+     */
+    public synchronized void addPeerBitfield(Bitvector peerBitfield) {
+        for (int i = peerBitfield.nextSetBit(0); i != -1 && i < numPieces; i = peerBitfield.nextSetBit(i + 1)) {
+            incrementAvailability(i);
+        }
+    }
+
+    /**
+     * Stops counting all pieces of a peer's bitfield as available, eg when the peer disconnects.
+     * @param peerBitfield the peer's bitfield
+     */
+    public synchronized void removePeerBitfield(Bitvector peerBitfield) {
+        for (int i = peerBitfield.nextSetBit(0); i != -1 && i < numPieces; i = peerBitfield.nextSetBit(i + 1)) {
+            decrementAvailability(i);
+        }
+    }
+
+    /**
+     * Counts one more peer as having the piece, eg on receiving a HAVE message.
+     * @param index zero-based index of the piece
+     */
+    public synchronized void incrementAvailability(int index) {
+        if (index < 0 || index >= numPieces)
+            return;
+
+        if (wanted[index]) {
+            removeWanted(index);
+            availability[index]++;
+            addWanted(index);
+        } else {
+            availability[index]++;
+        }
+    }
+
+    /**
+     * Counts one less peer as having the piece.
+     * @param index zero-based index of the piece
+     */
+    public synchronized void decrementAvailability(int index) {
+        if (index < 0 || index >= numPieces || availability[index] == 0)
+            return;
+
+        if (wanted[index]) {
+            removeWanted(index);
+            availability[index]--;
+            addWanted(index);
+        } else {
+            availability[index]--;
+        }
+    }
+
+    /**
+     * Picks the wanted piece of the highest priority that the peer has, the rarest among pieces of that priority, and
+     * stops wanting it until it is abandoned.
+     * @param peerBitfield the bitfield of the peer to send the requests to
+     * @return the piece index, or -1 if no such piece exists
+     */
+    public synchronized int pickPiece(Bitvector peerBitfield) {
+        /* Pieces in the streaming window, in order */
+        for (int index = streamFirst; index != -1 && index <= streamLast; index++) {
+            if (wanted[index] && index < peerBitfield.getSize() && peerBitfield.isSet(index)) {
+                removeWanted(index);
+                return index;
+            }
+        }
+
+        /* Pieces no connected peer has are in bucket 0, and no peer can send them */
+        for (int level = buckets.length - 1; level > Priority.SKIP.ordinal(); level--) {
+            for (int a=1; a < buckets[level].length; a++) {
+                Bucket bucket = buckets[level][a];
+                if (bucket.size == 0)
+                    continue;
+
+                /* Search from a random position to break ties */
+                int start = random.nextInt(bucket.size);
+                for (int k=0; k < bucket.size; k++) {
+                    int index = bucket.pieces[(start + k) % bucket.size];
+                    if (index < peerBitfield.getSize() && peerBitfield.isSet(index)) {
+                        removeWanted(index);
+                        return index;
+                    }
+                }
+            }
+        }
+
+        return -1;
+    }
+
+    /**
+     * Picks the given piece if it is wanted, and stops wanting it until it is abandoned.
+     * @param index zero-based index of the piece
+     * @return true if the piece was wanted, otherwise false
+     */
+    public synchronized boolean takePiece(int index) {
+        if (!wanted[index])
+            return false;
+
+        removeWanted(index);
+        return true;
+    }
+
+    /**
+     * Sets the streaming window, the pieces ahead of the playhead that are picked first and in order.
+     * @param first first piece of the window, ie the piece at the playhead
+     * @param last last piece of the window
+     */
+    public synchronized void setStreamWindow(int first, int last) {
+        streamFirst = Math.max(0, first);
+        streamLast = Math.min(numPieces - 1, last);
+        if (streamFirst > streamLast)
+            streamFirst = streamLast = -1;
+    }
+
+    /**
+     * Stops streaming, all pieces are picked rarest first.
+     */
+    public synchronized void clearStreamWindow() {
+        streamFirst = -1;
+        streamLast = -1;
+    }
+
+    /**
+     * @return the first piece of the streaming window, or -1 if not streaming
+     */
+    public synchronized int getStreamFirst() {
+        return streamFirst;
+    }
+
+    /**
+     * @return the last piece of the streaming window, or -1 if not streaming
+     */
+    public synchronized int getStreamLast() {
+        return streamLast;
+    }
+
+    /**
+     * Wants a picked piece again, eg after it failed its hash check or its peer disconnected.
+     * @param index zero-based index of the piece
+     */
+    public synchronized void onPieceAbandoned(int index) {
+        if (!wanted[index] && priorities[index] != Priority.SKIP)
+            addWanted(index);
+    }
+
+    /**
+     * @param index zero-based index of the piece
+     * @return the number of connected peers that have the piece
+     */
+    public synchronized int getAvailability(int index) {
+        return availability[index];
+    }
+
+    /**
+     * @param index zero-based index of the piece
+     * @return the priority of the piece
+     */
+    public Priority getPriority(int index) {
+        return priorities[index];
+    }
+
+    /**
+     * @return the number of pieces the client does not have, is not requesting and does not skip
+     */
+    public synchronized int getNumWanted() {
+        return numWanted;
+    }
+
+    /**
+     * Returns the number of wanted pieces that at least one connected peer has. Once this reaches 0, every piece that
+     * can be downloaded is being requested, and the download is in endgame.
+     */
+    public synchronized int getNumRequestable() {
+        int unavailable = 0;
+        for (Bucket[] level : buckets) {
+            unavailable += level[0].size;
+        }
+
+        return numWanted - unavailable;
+    }
+
+    private void addWanted(int index) {
+        int level = priorities[index].ordinal();
+        int a = availability[index];
+        if (a >= buckets[level].length) {
+            Bucket[] grown = new Bucket[Math.max(a + 1, buckets[level].length * 2)];
+            System.arraycopy(buckets[level], 0, grown, 0, buckets[level].length);
+            for (int i = buckets[level].length; i < grown.length; i++) {
+                grown[i] = new Bucket();
+            }
+            buckets[level] = grown;
+        }
+
+        bucketPos[index] = buckets[level][a].add(index);
+        wanted[index] = true;
+        numWanted++;
+    }
+
+    private void removeWanted(int index) {
+        Bucket bucket = buckets[priorities[index].ordinal()][availability[index]];
+        int moved = bucket.remove(bucketPos[index]);
+        if (moved != -1)
+            bucketPos[moved] = bucketPos[index];
+        wanted[index] = false;
+        numWanted--;
+    }
+
+    private static Priority[] normalPriorities(int numPieces) {
+        Priority[] priorities = new Priority[numPieces];
+        Arrays.fill(priorities, Priority.NORMAL);
+        return priorities;
+    }
+
+    /**
+     * Unordered set of pieces of the same availability.
+     */
+    private static class Bucket {
+        private int[] pieces = new int[16];
+        private int size = 0;
+
+        /**
+         * @return the position the piece was added at
+         */
+        int add(int index) {
+            if (size == pieces.length) {
+                int[] grown = new int[pieces.length * 2];
+                System.arraycopy(pieces, 0, grown, 0, size);
+                pieces = grown;
+            }
+
+            pieces[size] = index;
+            return size++;
+        }
+
+        /**
+         * Removes the piece at pos by moving the last piece into its place.
+         * @return the piece moved to pos, or -1 if none was moved
+         */
+        int remove(int pos) {
+            size--;
+            if (pos == size)
+                return -1;
+
+            pieces[pos] = pieces[size];
+            return pieces[pos];
+        }
+    }
+
+    private static final int INITIAL_BUCKETS = 64;
+}
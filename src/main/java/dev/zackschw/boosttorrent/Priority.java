@@ -0,0 +1,9 @@
+package dev.zackschw.boosttorrent;
+
+/**
+ * Download priority of a file or a piece. Pieces of a higher priority are requested before pieces of a lower priority,
+ * and skipped pieces are not requested at all.
+ */
+public enum Priority {
+    SKIP, LOW, NORMAL, HIGH
+}
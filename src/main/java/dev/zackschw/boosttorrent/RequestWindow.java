@@ -0,0 +1,120 @@
+package dev.zackschw.boosttorrent;
+
+/**
+ * Number of block requests to keep outstanding at a peer, sized from the peer's measured download rate and block
+ * round-trip time.
+ * Enough requests should be outstanding to cover the bandwidth-delay product of the link, ie the bytes the peer can
+ * send during one round trip, or the link sits idle between a block and the next request. More than that only queues
+ * up at the peer and delays the blocks that are needed most.
+ * The round-trip time of a block includes the time it waited behind other requests at the peer, so the smallest
+ * round-trip time seen recently is used as the delay of the link. It is the smallest over the current and the last
+ * window of MIN_RTT_WINDOW, so one lucky sample does not keep the window small once the link's delay grows.
+ * The rate is only measured while blocks are requested: the interval restarts when the peer chokes the client or the
+ * requests run out, see onIdle(), so idle time does not count as a slow peer.
+ * The window is kept at twice the bandwidth-delay product, so a window that is limiting the rate still grows.
+ * Until the first rate measurement the window grows by one request per block received, doubling every round trip.
+ */
+public class RequestWindow {
+    private int size;
+    private long smoothedRtt; // nanoseconds, 0 until the first block
+    private long minRtt; // nanoseconds, smallest of the current window of MIN_RTT_WINDOW
+    private long lastMinRtt; // nanoseconds, smallest of the last window
+    private long minRttStart; // start of the current window, or -1
+    private double rate; // bytes per second, 0 until the first measurement
+    private long intervalStart; // start of the current rate measurement, or -1
+    private long intervalBytes;
+
+    public RequestWindow() {
+        size = INITIAL_SIZE;
+        smoothedRtt = 0;
+        minRtt = Long.MAX_VALUE;
+        lastMinRtt = Long.MAX_VALUE;
+        minRttStart = -1;
+        rate = 0;
+        intervalStart = -1;
+        intervalBytes = 0;
+    }
+
+    /**
+     * On receiving a requested block, updates the round-trip time, the download rate and the window size.
+     * @param length length of the block
+     * @param rtt nanoseconds between sending the request and receiving the block
+     * @param now current time, from System.nanoTime()
+     */
+    public synchronized void onBlockReceived(int length, long rtt, long now) {
+        /* Round-trip time, smoothed as for TCP */
+        smoothedRtt = smoothedRtt == 0 ? rtt : smoothedRtt + (rtt - smoothedRtt) / 8;
+        if (minRttStart == -1 || now - minRttStart >= MIN_RTT_WINDOW) {
+            lastMinRtt = minRtt;
+            minRtt = rtt;
+            minRttStart = now;
+        } else {
+            minRtt = Math.min(minRtt, rtt);
+        }
+
+        /* Download rate, measured over intervals of RATE_INTERVAL */
+        if (intervalStart == -1) {
+            intervalStart = now;
+            intervalBytes = 0;
+        } else {
+            intervalBytes += length;
+        }
+
+        long elapsed = now - intervalStart;
+        if (elapsed >= RATE_INTERVAL) {
+            double sample = intervalBytes * 1e9 / elapsed;
+            rate = rate == 0 ? sample : (rate + sample) / 2;
+            intervalStart = now;
+            intervalBytes = 0;
+
+            double bdp = rate * Math.min(minRtt, lastMinRtt) / 1e9 / Piece.BLOCK_LENGTH;
+            size = (int) Math.max(MIN_SIZE, Math.min(MAX_SIZE, Math.ceil(2 * bdp)));
+        } else if (rate == 0) {
+            size = Math.min(MAX_SIZE, size + 1);
+        }
+    }
+
+    /**
+     * On no blocks being requested from the peer, because it choked the client or there is nothing left to request.
+     * The current rate measurement is dropped, and the next starts with the next block received.
+     */
+    public synchronized void onIdle() {
+        intervalStart = -1;
+        intervalBytes = 0;
+    }
+
+    /**
+     * @return the number of block requests to keep outstanding
+     */
+    public synchronized int getSize() {
+        return size;
+    }
+
+    /**
+     * @return the smoothed round-trip time of a block in milliseconds, or 0 if no block was received
+     */
+    public synchronized double getSmoothedRtt() {
+        return smoothedRtt / 1e6;
+    }
+
+    /**
+     * @return the smallest recent round-trip time of a block in milliseconds, or 0 if no block was received
+     */
+    public synchronized double getMinRtt() {
+        long min = Math.min(minRtt, lastMinRtt);
+        return min == Long.MAX_VALUE ? 0 : min / 1e6;
+    }
+
+    /**
+     * @return the measured download rate in bytes per second, or 0 if not measured yet
+     */
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private static final int INITIAL_SIZE = 4;
+    private static final int MIN_SIZE = 2;
+    private static final int MAX_SIZE = 256; // 4 MiB of blocks
+    private static final long RATE_INTERVAL = 1_000_000_000L; // 1 s
+    private static final long MIN_RTT_WINDOW = 10_000_000_000L; // 10 s
+}
@@ -1,27 +1,132 @@
 package dev.zackschw.boosttorrent;
 
+import dev.zackschw.boosttorrent.bencode.BencodeException;
+
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Storage {
     private final MetadataInfo meta;
 
-    private final Bitvector myBitfield;
-    private final RandomAccessFile[] files;
+    private final AtomicBitvector myBitfield;
+    private final Bitvector writtenPieces; // pieces with correct hash that are written to disk
+    private final String resumePath;
+    private final FileChannel[] files;
+    private final boolean memoryMapped;
+    private final MappedByteBuffer[][] mappings; // per file, consecutive windows of MAP_WINDOW bytes
+    private final int[] pieceFirstFile; // per piece, index of the first file holding bytes of the piece
+    private final int[] pieceLastFile; // per piece, index of the last file holding bytes of the piece
+    private final Set<Integer> dirtyFiles; // indices of the files written to since the last flush
+    private final Priority[] filePriorities;
+    private final int[] partSlots; // per piece, slot of the piece in the part file if it spans files, or -1
+    private final String partPath;
+    private FileChannel partFile; // bytes of skipped files in pieces shared with other files, or null
+    private volatile boolean partFileDirty;
+    private boolean created;
+    private final Map<Integer, Bitvector> partialPieces; // blocks written of pieces written block by block, by index
 
     /**
      * Creates a Storage for writing pieces to, and reading pieces from.
      * @param meta torrent metadata info
      */
     public Storage(MetadataInfo meta) {
+        this(meta, false);
+    }
+
+    /**
+     * Creates a Storage for writing pieces to, and reading pieces from.
+     * In memory mapped mode every file is mapped into memory once created, and reads and writes are copies into and
+     * out of the mappings, leaving caching to the OS page cache.
+     * @param meta torrent metadata info
+     * @param memoryMapped true to serve reads and writes through memory mappings of the files
+     */
+    public Storage(MetadataInfo meta, boolean memoryMapped) {
         this.meta = meta;
+        this.memoryMapped = memoryMapped;
+
+        myBitfield = new AtomicBitvector(meta.getNumPieces());
+        writtenPieces = new Bitvector(meta.getNumPieces());
+        resumePath = meta.getName() + RESUME_SUFFIX;
+        partPath = meta.getName() + PART_SUFFIX;
+        files = new FileChannel[meta.getFiles().size()];
+        mappings = new MappedByteBuffer[files.length][];
+        dirtyFiles = ConcurrentHashMap.newKeySet();
+        partialPieces = new ConcurrentHashMap<>();
 
-        myBitfield = new Bitvector(meta.getNumPieces());
-        files = new RandomAccessFile[meta.getFiles().size()];
+        /* Map each piece to the span of files it lies in */
+        pieceFirstFile = new int[meta.getNumPieces()];
+        pieceLastFile = new int[meta.getNumPieces()];
+        for (int p=0; p < meta.getNumPieces(); p++) {
+            long pieceStartPos = (long) p * meta.getPieceLength();
+            long pieceEndPos = pieceStartPos + (p == meta.getNumPieces() - 1 ? meta.getLastPieceLength() : meta.getPieceLength());
+            pieceFirstFile[p] = meta.getFileIndex(pieceStartPos);
+            pieceLastFile[p] = meta.getFileIndex(pieceEndPos - 1, pieceFirstFile[p], files.length - 1);
+        }
+
+        /* Every piece that spans files gets a slot in the part file, whichever files are skipped */
+        partSlots = new int[meta.getNumPieces()];
+        int numSlots = 0;
+        for (int p=0; p < meta.getNumPieces(); p++) {
+            partSlots[p] = pieceFirstFile[p] != pieceLastFile[p] ? numSlots++ : -1;
+        }
+
+        filePriorities = new Priority[files.length];
+        Arrays.fill(filePriorities, Priority.NORMAL);
+    }
+
+    /**
+     * Sets the priority of a file. Skipped files are not created, and their pieces are not downloaded.
+     * Must be called before createFiles().
+     * @param file index of the file in the torrent
+     * @param priority priority of the file
+     * @throws IllegalStateException if the files are already created
+     */
+    public void setFilePriority(int file, Priority priority) {
+        if (created)
+            throw new IllegalStateException("Storage: File priorities must be set before the files are created");
+
+        filePriorities[file] = priority;
+    }
+
+    /**
+     * @param file index of the file in the torrent
+     * @return the priority of the file
+     */
+    public Priority getFilePriority(int file) {
+        return filePriorities[file];
+    }
+
+    /**
+     * Returns the priority of each piece, the highest priority of the files the piece lies in. A piece is only
+     * skipped if every file it lies in is skipped.
+     */
+    public Priority[] getPiecePriorities() {
+        Priority[] priorities = new Priority[meta.getNumPieces()];
+        for (int p=0; p < priorities.length; p++) {
+            Priority priority = Priority.SKIP;
+            for (int i=pieceFirstFile[p]; i <= pieceLastFile[p]; i++) {
+                if (meta.getFiles().get(i).getLength() > 0 && filePriorities[i].compareTo(priority) > 0)
+                    priority = filePriorities[i];
+            }
+            priorities[p] = priority;
+        }
+
+        return priorities;
     }
 
     public Bitvector getMyBitfield() {
@@ -29,17 +134,32 @@ public class Storage {
     }
 
     /**
-     * Creates RandomAccessFiles based on the files specified in the metadata info.
-     * If the files already exist, the piece hashes are checked and set appropriately in the bitfield.
+     * Creates files based on the files specified in the metadata info, and opens a channel to each.
+     * Skipped files are not created. The bytes of skipped files that lie in a piece shared with a file that is not
+     * skipped are kept in a part file next to the data instead, so such pieces can still be written, checked and
+     * uploaded whole.
+     * If the files already exist, the pieces recorded in the fast-resume file are restored to the bitfield without
+     * checking their hashes, as long as the files they lie in are unchanged since the record was saved. The piece
+     * hashes of all other pieces are checked and set appropriately in the bitfield.
      * @throws IOException if an I/O error occurs when creating a file or reading from an existing file
      */
     public void createFiles() throws IOException {
         boolean filesExist = false;
+        boolean[] fileExisted = new boolean[files.length];
+        long[] fileLengths = new long[files.length];
+        long[] fileModifiedTimes = new long[files.length];
 
+        created = true;
+        boolean anySkipped = false;
         for (int i=0; i < files.length; i++) {
             MetaFile m = meta.getFiles().get(i);
             File f = new File(m.getPath());
 
+            if (filePriorities[i] == Priority.SKIP) {
+                anySkipped = true;
+                continue;
+            }
+
             /* If the file does not exist, create parent directories as needed */
             if (!f.exists()) {
                 /* Create parent directories as needed */
@@ -48,62 +168,320 @@ public class Storage {
                 }
             } else {
                 filesExist = true;
+                fileExisted[i] = true;
+                fileLengths[i] = f.length();
+                fileModifiedTimes[i] = f.lastModified();
             }
 
-            files[i] = new RandomAccessFile(m.getPath(), "rw");
-            files[i].setLength(m.getLength());
+            RandomAccessFile file = new RandomAccessFile(m.getPath(), "rw");
+            file.setLength(m.getLength());
+            files[i] = file.getChannel(); // closing the channel closes the file
+
+            if (memoryMapped) {
+                mappings[i] = mapFile(files[i], m.getLength());
+            }
+        }
+
+        if (anySkipped) {
+            /* Sparse, only the slots written to take up space */
+            RandomAccessFile file = new RandomAccessFile(partPath, "rw");
+            file.setLength(getNumPartSlots() * meta.getPieceLength());
+            partFile = file.getChannel();
         }
 
         if (filesExist) {
-            checkPieceHashes();
+            Bitvector toCheck = restoreFastResume(fileExisted, fileLengths, fileModifiedTimes);
+            if (!toCheck.isEmpty())
+                checkPieceHashes(toCheck);
         }
     }
 
     /**
-     * Checks the files for any pieces that are already complete and satisfy the hash check.
+     * Restores the pieces in the fast-resume record to the bitfield, for pieces that lie only in files that are
+     * unchanged since the record was saved. Pieces that lie only in skipped files are neither restored nor checked.
+     * Pieces that lie partly in skipped files are always checked, since the record does not cover the part file.
+     * The blocks written so far of pieces being written block by block are restored too, and such a piece that had
+     * every block written is checked.
+     * @param fileExisted whether each file existed before being created
+     * @param fileLengths length of each file that existed, before being created
+     * @param fileModifiedTimes last modified time of each file that existed, before being created
+     * @return the pieces that still need their hashes checked. All pieces if there is no usable record.
+     */
+    private Bitvector restoreFastResume(boolean[] fileExisted, long[] fileLengths, long[] fileModifiedTimes) {
+        Bitvector toCheck = new Bitvector(meta.getNumPieces());
+        Priority[] piecePriorities = getPiecePriorities();
+
+        FastResume resume;
+        try {
+            resume = FastResume.read(resumePath);
+        } catch (IOException | BencodeException e) {
+            resume = null;
+        }
+
+        Bitvector resumeBitfield = null;
+        if (resume != null && MessageDigest.isEqual(resume.getInfoHash(), meta.getInfoHash())
+                && resume.getFileLengths().length == files.length) {
+            try {
+                resumeBitfield = new Bitvector(meta.getNumPieces(), resume.getBitfield());
+            } catch (IllegalArgumentException ignore) {
+            }
+        }
+
+        if (resumeBitfield == null) {
+            /* No usable record, check everything */
+            for (int p=0; p < meta.getNumPieces(); p++) {
+                if (piecePriorities[p] != Priority.SKIP)
+                    toCheck.setBit(p);
+            }
+            return toCheck;
+        }
+
+        /* Find the files that changed since the record was saved */
+        boolean[] changed = new boolean[files.length];
+        int numChanged = 0;
+        for (int i=0; i < files.length; i++) {
+            changed[i] = filePriorities[i] != Priority.SKIP && (!fileExisted[i]
+                    || fileLengths[i] != meta.getFiles().get(i).getLength()
+                    || fileLengths[i] != resume.getFileLengths()[i]
+                    || fileModifiedTimes[i] != resume.getFileModifiedTimes()[i]);
+            if (changed[i])
+                numChanged++;
+        }
+
+        /* Restore pieces in unchanged files, and check pieces in changed files */
+        for (int p=0; p < meta.getNumPieces(); p++) {
+            if (piecePriorities[p] == Priority.SKIP)
+                continue;
+
+            boolean inChangedFile = false;
+            for (int i=pieceFirstFile[p]; i <= pieceLastFile[p] && !inChangedFile; i++) {
+                inChangedFile = changed[i] || filePriorities[i] == Priority.SKIP;
+            }
+
+            if (inChangedFile) {
+                toCheck.setBit(p);
+            } else if (resumeBitfield.isSet(p)) {
+                myBitfield.setBit(p);
+                writtenPieces.setBit(p);
+            } else if (resume.getPartialPieces().containsKey(p)) {
+                try {
+                    Bitvector blocks = new Bitvector(getNumBlocks(p), resume.getPartialPieces().get(p));
+                    if (blocks.isComplete())
+                        toCheck.setBit(p);
+                    else if (!blocks.isEmpty())
+                        partialPieces.put(p, blocks);
+                } catch (IllegalArgumentException ignore) {
+                }
+            }
+        }
+
+        System.out.println("Storage: Restored fast resume, " + numChanged + " of " + files.length + " files changed");
+        return toCheck;
+    }
+
+    /**
+     * Saves the fast-resume record of the pieces written so far. Storage is flushed first, so every piece in the
+     * record is on disk, and the recorded file times include every write of the recorded pieces.
+     * @throws IOException if an I/O error occurs flushing storage or writing the record
+     */
+    public void saveFastResume() throws IOException {
+        byte[] bitfield = writtenPieces.toByteArray();
+        Map<Integer, byte[]> partial = new HashMap<>();
+        for (Map.Entry<Integer, Bitvector> e : partialPieces.entrySet()) {
+            partial.put(e.getKey(), e.getValue().toByteArray());
+        }
+        flush();
+
+        long[] fileLengths = new long[files.length];
+        long[] fileModifiedTimes = new long[files.length];
+        for (int i=0; i < files.length; i++) {
+            File f = new File(meta.getFiles().get(i).getPath());
+            fileLengths[i] = f.length();
+            fileModifiedTimes[i] = f.lastModified();
+        }
+
+        new FastResume(meta.getInfoHash(), bitfield, fileLengths, fileModifiedTimes, partial).write(resumePath);
+    }
+
+    /**
+     * Checks the files for any of the given pieces that are already complete and satisfy the hash check.
      * The bitvector is updated appropriately.
+     * Pieces are checked by a pool of worker threads. Each worker claims the next unchecked piece in order and
+     * streams it through its own digest with its own read buffer, so no memory is allocated per piece, and the disk
+     * always has the reads of the next few pieces queued. Progress is reported every second.
+     * @param toCheck the pieces to check
+     */
+    private void checkPieceHashes(Bitvector toCheck) {
+        int numPieces = meta.getNumPieces();
+        int numToCheck = 0;
+        for (int p=0; p < numPieces; p++) {
+            if (toCheck.isSet(p))
+                numToCheck++;
+        }
+        AtomicInteger nextPiece = new AtomicInteger(0);
+        AtomicInteger checkedPieces = new AtomicInteger(0);
+
+        int numWorkers = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), numPieces));
+        Thread[] workers = new Thread[numWorkers];
+        for (int i=0; i < numWorkers; i++) {
+            workers[i] = new Thread(() -> checkPieceHashesWorker(toCheck, nextPiece, checkedPieces));
+            workers[i].start();
+        }
+
+        /* Wait for the workers, reporting progress */
+        long startTime = System.nanoTime();
+        try {
+            for (Thread worker : workers) {
+                while (worker.isAlive()) {
+                    worker.join(1000);
+
+                    double seconds = (System.nanoTime() - startTime) / 1e9;
+                    int checked = checkedPieces.get();
+                    System.out.printf("Storage: Checked %d/%d pieces (%.1f pieces/s)%n",
+                            checked, numToCheck, seconds > 0 ? checked / seconds : 0);
+                }
+            }
+        } catch (InterruptedException e) {
+            /* Let the workers finish their current piece and claim no more. They are not interrupted, since
+             * interrupting a thread in the middle of file I/O closes the file. */
+            nextPiece.set(numPieces);
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Worker of checkPieceHashes(). Claims pieces until none are left, hashing each one to check in chunks of at most
+     * CHECK_CHUNK bytes.
+     * @param toCheck the pieces to check
+     * @param nextPiece index of the next piece to claim, shared by all workers
+     * @param checkedPieces number of pieces checked, shared by all workers
      */
-    private void checkPieceHashes() {
-        /* First n-1 pieces */
-        for (int i=0; i < meta.getNumPieces() - 1; i++) {
-            /* Read block */
-            byte[] pieceBytes = readBlock(i, 0, meta.getPieceLength());
+    private void checkPieceHashesWorker(Bitvector toCheck, AtomicInteger nextPiece, AtomicInteger checkedPieces) {
+        MessageDigest md = newDigest();
+        byte[] buf = new byte[Math.min(meta.getPieceLength(), CHECK_CHUNK)];
+
+        int index;
+        while ((index = nextPiece.getAndIncrement()) < meta.getNumPieces()) {
+            if (!toCheck.isSet(index))
+                continue;
 
-            /* Check hash */
-            if (Arrays.equals(hash(pieceBytes), meta.getPieceHash(i))) {
-                myBitfield.setBit(i);
+            if (hashPiece(index, md, buf)) {
+                myBitfield.setBit(index);
+                writtenPieces.setBit(index);
+                partialPieces.remove(index);
             }
 
+            checkedPieces.incrementAndGet();
+        }
+    }
+
+    /**
+     * Checks the hash of a piece written to storage block by block, by streaming it back from disk.
+     * @param index zero-based index of the piece
+     * @return true if the hash matches the hash from the meta file, otherwise false
+     */
+    public boolean checkPieceHash(int index) {
+        return hashPiece(index, newDigest(), new byte[Math.min(meta.getPieceLength(index), CHECK_CHUNK)]);
+    }
+
+    /**
+     * Streams the end of a piece from storage through the digest, eg the blocks of a piece that were not hashed as
+     * they arrived.
+     * @param index zero-based index of the piece
+     * @param from offset into the piece to start at
+     * @param md digest to update
+     */
+    public void updateDigest(int index, int from, MessageDigest md) {
+        int remaining = meta.getPieceLength(index) - from;
+        if (remaining > 0)
+            digestPiece(index, from, md, new byte[Math.min(remaining, CHECK_CHUNK)]);
+    }
+
+    /**
+     * Streams a piece from storage through the digest in chunks of the buffer's length, and compares the hash to the
+     * hash from the meta file. The digest is reset for the next piece.
+     * @return true if the hashes are the same, otherwise false
+     */
+    private boolean hashPiece(int index, MessageDigest md, byte[] buf) {
+        digestPiece(index, 0, md, buf);
+        return MessageDigest.isEqual(md.digest(), meta.getPieceHash(index));
+    }
+
+    /**
+     * Streams a piece from storage through the digest in chunks of the buffer's length, starting at an offset.
+     */
+    private void digestPiece(int index, int from, MessageDigest md, byte[] buf) {
+        long pieceStartPos = (long) index * meta.getPieceLength();
+        int pieceLength = meta.getPieceLength(index);
+
+        for (int off=from; off < pieceLength; off += buf.length) {
+            int len = Math.min(buf.length, pieceLength - off);
+            boostFileIO(pieceFirstFile[index], pieceLastFile[index], pieceStartPos + off, ByteBuffer.wrap(buf, 0, len), 'r');
+            md.update(buf, 0, len);
         }
+    }
 
-        /* Last piece */
-        byte[] pieceBytes = readBlock(meta.getNumPieces()-1, 0, meta.getLastPieceLength());
-        if (Arrays.equals(hash(pieceBytes), meta.getPieceHash(meta.getNumPieces()-1))) {
-            myBitfield.setBit(meta.getNumPieces()-1);
+    /**
+     * Maps the whole file into memory. A single mapping is limited to 2 GiB, so larger files are mapped as
+     * consecutive windows of MAP_WINDOW bytes.
+     * @param channel channel of the file to map
+     * @param length length of the file
+     * @return the mappings of the file, in order
+     * @throws IOException if an I/O error occurs mapping the file
+     */
+    private MappedByteBuffer[] mapFile(FileChannel channel, long length) throws IOException {
+        int numWindows = (int) (length / MAP_WINDOW + (length % MAP_WINDOW == 0 ? 0 : 1));
+        MappedByteBuffer[] windows = new MappedByteBuffer[numWindows];
+
+        for (int w=0; w < numWindows; w++) {
+            long windowStart = (long) w * MAP_WINDOW;
+            long windowLength = Math.min(MAP_WINDOW, length - windowStart);
+            windows[w] = channel.map(FileChannel.MapMode.READ_WRITE, windowStart, windowLength);
         }
+
+        return windows;
     }
 
-    private byte[] hash(byte[] input) {
-        MessageDigest md;
+    private MessageDigest newDigest() {
         try {
-            md = MessageDigest.getInstance("SHA-1");
+            return MessageDigest.getInstance("SHA-1");
         } catch (NoSuchAlgorithmException e) {
             throw new IllegalArgumentException(e);
         }
-
-        return md.digest(input);
     }
 
     /**
-     * Closes all files.
+     * Closes all files, after saving the fast-resume record. In memory mapped mode the mappings are forced to disk
+     * first.
      */
     public void closeAll() {
-        for (RandomAccessFile file : files) {
+        try {
+            if (created)
+                saveFastResume();
+        } catch (IOException ignore) {
+        }
+
+        for (MappedByteBuffer[] windows : mappings) {
+            if (windows == null)
+                continue;
+            for (MappedByteBuffer window : windows) {
+                window.force();
+            }
+        }
+
+        for (FileChannel file : files) {
             try {
-                file.close();
+                if (file != null)
+                    file.close();
             } catch (IOException ignore) {
             }
         }
+
+        try {
+            if (partFile != null)
+                partFile.close();
+        } catch (IOException ignore) {
+        }
     }
 
     /**
@@ -111,10 +489,116 @@ public class Storage {
      * @param piece the finished piece received from peers, with correct hash.
      */
     public void writePiece(Piece piece) {
-        long pieceStartPos = piece.index * meta.getPieceLength();
-        long pieceEndPos = pieceStartPos + piece.length;
+        long pieceStartPos = (long) piece.index * meta.getPieceLength();
+
+        boostFileIO(pieceFirstFile[piece.index], pieceLastFile[piece.index], pieceStartPos, piece.bytes, 'w');
+        writtenPieces.setBit(piece.index);
+    }
+
+    /**
+     * Writes a block received from a peer to its place in storage, and records it in the piece's bitmap of blocks
+     * written, which is kept in the fast-resume record until the piece is finished or fails its hash check.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param block array holding the block
+     * @param length length of the block
+     */
+    public void writeBlock(int piece, int begin, byte[] block, int length) {
+        writeBlock(piece, begin, ByteBuffer.wrap(block, 0, length));
+    }
+
+    /**
+     * Writes a block received from a peer to its place in storage, and records it in the piece's bitmap of blocks
+     * written, which is kept in the fast-resume record until the piece is finished or fails its hash check.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param block buffer holding the block between its position and limit. Its position and limit are not changed.
+     */
+    public void writeBlock(int piece, int begin, ByteBuffer block) {
+        long blockStartPos = (long) piece * meta.getPieceLength() + begin;
 
-        boostFileIO(pieceStartPos, pieceEndPos, piece.bytes, 'w');
+        boostFileIO(pieceFirstFile[piece], pieceLastFile[piece], blockStartPos, block, 'w');
+        partialPieces.computeIfAbsent(piece, k -> new Bitvector(getNumBlocks(piece))).setBit(begin / Piece.BLOCK_LENGTH);
+    }
+
+    /**
+     * On a piece written block by block passing its hash check.
+     * @param index zero-based index of the piece
+     */
+    public void onPieceWritten(int index) {
+        writtenPieces.setBit(index);
+        partialPieces.remove(index);
+    }
+
+    /**
+     * On a piece written block by block failing its hash check. Its blocks on disk are no longer counted as written.
+     * @param index zero-based index of the piece
+     */
+    public void onPieceFailed(int index) {
+        partialPieces.remove(index);
+    }
+
+    /**
+     * @return the indices of the pieces written block by block that are not finished
+     */
+    public Set<Integer> getPartialPieces() {
+        return new HashSet<>(partialPieces.keySet());
+    }
+
+    /**
+     * @param index zero-based index of the piece
+     * @return a copy of the bitmap of the blocks of the piece written, or null if the piece is not partially written
+     */
+    public Bitvector getPartialBlocks(int index) {
+        Bitvector blocks = partialPieces.get(index);
+        if (blocks == null)
+            return null;
+
+        return new Bitvector(blocks.getSize(), blocks.toByteArray());
+    }
+
+    private int getNumBlocks(int index) {
+        int pieceLength = meta.getPieceLength(index);
+        return pieceLength / Piece.BLOCK_LENGTH + (pieceLength % Piece.BLOCK_LENGTH == 0 ? 0 : 1);
+    }
+
+    /**
+     * Writes consecutive pieces to storage at once, so each file they lie in gets a single write.
+     * @param firstIndex index of the first piece
+     * @param lastIndex index of the last piece
+     * @param bytes the bytes of the pieces from position to limit, in order, all with correct hashes
+     */
+    public void writePieces(int firstIndex, int lastIndex, ByteBuffer bytes) {
+        long startPos = (long) firstIndex * meta.getPieceLength();
+
+        boostFileIO(pieceFirstFile[firstIndex], pieceLastFile[lastIndex], startPos, bytes, 'w');
+        for (int i=firstIndex; i <= lastIndex; i++) {
+            writtenPieces.setBit(i);
+        }
+    }
+
+    /**
+     * Forces all writes since the last flush to disk.
+     * @throws IOException if an I/O error occurs forcing a file
+     */
+    public void flush() throws IOException {
+        for (int i=0; i < files.length; i++) {
+            if (!dirtyFiles.remove(i))
+                continue;
+
+            if (memoryMapped) {
+                for (MappedByteBuffer window : mappings[i]) {
+                    window.force();
+                }
+            } else {
+                files[i].force(false);
+            }
+        }
+
+        if (partFileDirty) {
+            partFileDirty = false;
+            partFile.force(false);
+        }
     }
 
     /**
@@ -125,70 +609,238 @@ public class Storage {
      * @return byte array of requested length representing the block specified by piece index and begin offset.
      */
     public byte[] readBlock(int piece, int begin, int length) {
-        long blockStartPos = piece * meta.getPieceLength() + begin;
-        long blockEndPos = blockStartPos + length;
-
         byte[] pieceOut = new byte[length];
 
-        boostFileIO(blockStartPos, blockEndPos, pieceOut, 'r');
+        readBlock(piece, begin, length, pieceOut);
 
         return pieceOut;
     }
 
+    /**
+     * Reads the requested block from storage into the start of the given array.
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the requested block
+     * @param pieceOut array of at least length bytes to read the block into
+     */
+    public void readBlock(int piece, int begin, int length, byte[] pieceOut) {
+        long blockStartPos = (long) piece * meta.getPieceLength() + begin;
+
+        boostFileIO(pieceFirstFile[piece], pieceLastFile[piece], blockStartPos, ByteBuffer.wrap(pieceOut, 0, length), 'r');
+    }
+
+    /**
+     * Returns true if the blocks of the piece can be sent with transferBlock(), ie the piece is written to disk and
+     * none of the files it lies in is skipped.
+     * @param piece index of the piece
+     */
+    public boolean canTransferBlock(int piece) {
+        if (!created || !writtenPieces.isSet(piece))
+            return false;
+
+        for (int i=pieceFirstFile[piece]; i <= pieceLastFile[piece]; i++) {
+            if (filePriorities[i] == Priority.SKIP)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Transfers the rest of a block straight from its files to the target with FileChannel.transferTo(), which the OS
+     * can do without copying the bytes through the JVM, eg with sendfile to a socket. A block that spans files is
+     * transferred from each file in turn. Only for pieces that canTransferBlock().
+     * @param piece index of the piece
+     * @param begin offset into the piece
+     * @param length length of the block
+     * @param offset offset into the block of the first byte to transfer
+     * @param target channel to transfer to, eg a non-blocking socket
+     * @return the number of bytes transferred, less than the rest of the block if the target took no more
+     * @throws IOException if an I/O error occurs reading the files or writing the target
+     */
+    public long transferBlock(int piece, int begin, int length, int offset, WritableByteChannel target) throws IOException {
+        long blockStartPos = (long) piece * meta.getPieceLength() + begin;
+        long pos = blockStartPos + offset;
+        long blockEndPos = blockStartPos + length;
+
+        int i = meta.getFileIndex(pos, pieceFirstFile[piece], pieceLastFile[piece]);
+        if (i == -1)
+            throw new RuntimeException("Storage: Position " + pos + " is not in files " + pieceFirstFile[piece] + "-" +
+                    pieceLastFile[piece]);
+
+        /* Transfer up to the end of each file in turn, stopping once the target takes less than offered */
+        long transferred = 0;
+        while (pos < blockEndPos) {
+            long fileStartPos = meta.getFileOffset(i);
+            long count = Math.min(blockEndPos, meta.getFileOffset(i+1)) - pos;
+            if (count > 0) {
+                long n = files[i].transferTo(pos - fileStartPos, count, target);
+                transferred += n;
+                pos += n;
+                if (n < count)
+                    break;
+            }
+
+            /* Next file */
+            i++;
+        }
+
+        return transferred;
+    }
+
     /**
      * Handles file input/output. Writes pieces across files (if needed) or reads blocks across files (if needed).
+     * Only the files in the span of the object's pieces are searched for the start position, and only the files the
+     * object actually lies in are touched.
+     * @param firstFile index of the first file of the span of the object's pieces
+     * @param lastFile index of the last file of the span of the object's pieces
      * @param objectStartPos start position of the object to IO
-     * @param objectEndPos end position of the object to IO
-     * @param ioArray byte array to IO from/to
-     * @param ioMode action to be performed [r = read object from array; w = write object to array]
+     * @param ioBuffer buffer to IO from/to, between its position and limit. Its position and limit are not changed.
+     * @param ioMode action to be performed [r = read object from buffer; w = write object to buffer]
      */
-    private void boostFileIO (long objectStartPos, long objectEndPos, byte[] ioArray, char ioMode) {
-        long length = objectEndPos - objectStartPos;
+    private void boostFileIO (int firstFile, int lastFile, long objectStartPos, ByteBuffer ioBuffer, char ioMode) {
+        ByteBuffer io = ioBuffer.duplicate();
+        int ioStart = io.position();
+        int ioEnd = io.limit();
+        long objectEndPos = objectStartPos + io.remaining();
 
-        long fileStartPos = 0;
-        long fileEndPos = 0;
-        int i = -1;
+        /* Find the file where the block/piece begins */
+        int i = meta.getFileIndex(objectStartPos, firstFile, lastFile);
+        if (i == -1)
+            throw new RuntimeException("Storage: Position " + objectStartPos + " is not in files " + firstFile + "-" + lastFile);
 
         try {
-            synchronized (this) {
-                /* Find the file where the block/piece begins */
-                do {
-                    i++;
-                    fileStartPos = fileEndPos;
-                    fileEndPos += meta.getFiles().get(i).getLength();
-                } while (!(objectStartPos >= fileStartPos && objectStartPos < fileEndPos));
-
-                /* Read/write all the bytes we can from this file, then go to the next and repeat */
-                int bytesHandled = 0;
-                while (bytesHandled < length) {
-                    /* Read/write whichever is shorter: end of file or end of the block/piece */
-                    long ioEndPos = Math.min(objectEndPos, fileEndPos);
-                    int bytesToHandle = (int) (ioEndPos - (objectStartPos + bytesHandled));
-
-                    /* Perform IO */
-                    files[i].seek(objectStartPos + bytesHandled - fileStartPos);
-                    if (ioMode == 'r') {
-                        /* Read */
-                        files[i].read(ioArray, bytesHandled, bytesToHandle);
-                    }
-                    else if (ioMode == 'w') {
-                        /* Write */
-                        files[i].write(ioArray, bytesHandled, bytesToHandle);
-                    }
-                    bytesHandled += bytesToHandle;
-
-                    /* Next file */
-                    if (++i < meta.getFiles().size()) {
-                        fileStartPos = fileEndPos;
-                        fileEndPos += meta.getFiles().get(i).getLength();
-                    } else {
-                        if (bytesHandled != length)
-                            throw new RuntimeException("Storage: Handled " + bytesHandled + " bytes, Ran out of files to read/write to");
-                    }
+            /* Read/write all the bytes we can from this file, then go to the next and repeat */
+            while (io.position() < ioEnd) {
+                int bytesHandled = io.position() - ioStart;
+                if (i > lastFile)
+                    throw new RuntimeException("Storage: Handled " + bytesHandled + " bytes, Ran out of files to read/write to");
+
+                /* Read/write whichever is shorter: end of file or end of the block/piece */
+                long fileStartPos = meta.getFileOffset(i);
+                long ioEndPos = Math.min(objectEndPos, meta.getFileOffset(i+1));
+                int bytesToHandle = (int) (ioEndPos - (objectStartPos + bytesHandled));
+                long filePos = objectStartPos + bytesHandled - fileStartPos;
+
+                /* Perform IO */
+                io.limit(io.position() + bytesToHandle);
+                if (filePriorities[i] == Priority.SKIP) {
+                    partFileIO(objectStartPos + bytesHandled, io, ioMode);
+                } else if (memoryMapped) {
+                    if (ioMode == 'w')
+                        dirtyFiles.add(i);
+                    mappedFileIO(mappings[i], filePos, io, ioMode);
+                } else {
+                    if (ioMode == 'w')
+                        dirtyFiles.add(i);
+                    channelFileIO(files[i], filePos, io, ioMode);
                 }
+                io.limit(ioEnd);
+
+                /* Next file */
+                i++;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    /**
+     * Reads or writes bytes of a single file with positional I/O. The channel's own position is never used, so
+     * concurrent reads and writes need no lock, and only contend in the OS when their ranges overlap.
+     * @param channel the channel of the file
+     * @param filePos position in the file to start at
+     * @param buf buffer to IO from/to, from its position to its limit. Its position is advanced to its limit.
+     * @param ioMode action to be performed [r = read object from buffer; w = write object to buffer]
+     * @throws IOException if an I/O error occurs, or the end of the file is reached while reading
+     */
+    private void channelFileIO(FileChannel channel, long filePos, ByteBuffer buf, char ioMode) throws IOException {
+        int start = buf.position();
+        while (buf.hasRemaining()) {
+            long pos = filePos + buf.position() - start;
+            if (ioMode == 'r') {
+                /* Read */
+                if (channel.read(buf, pos) < 0)
+                    throw new EOFException("Storage: Reached end of file at position " + pos);
+            } else if (ioMode == 'w') {
+                /* Write */
+                channel.write(buf, pos);
+            } else {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Reads or writes bytes of skipped files, in the slots of the pieces they lie in in the part file. A slot is as
+     * long as a piece, and bytes are kept at their offset into the piece.
+     * @param objectPos position in the torrent to start at
+     * @param buf buffer to IO from/to, from its position to its limit. Its position is advanced to its limit.
+     * @param ioMode action to be performed [r = read object from buffer; w = write object to buffer]
+     * @throws IOException if an I/O error occurs, or the bytes lie in a piece that has no slot
+     */
+    private void partFileIO(long objectPos, ByteBuffer buf, char ioMode) throws IOException {
+        int start = buf.position();
+        int end = buf.limit();
+        while (buf.position() < end) {
+            long pos = objectPos + buf.position() - start;
+            int piece = (int) (pos / meta.getPieceLength());
+            int offset = (int) (pos % meta.getPieceLength());
+            if (partSlots[piece] == -1)
+                throw new IOException("Storage: Piece " + piece + " lies only in skipped files");
+
+            /* Up to the end of the piece */
+            buf.limit((int) Math.min(end, buf.position() + (long) meta.getPieceLength() - offset));
+            channelFileIO(partFile, (long) partSlots[piece] * meta.getPieceLength() + offset, buf, ioMode);
+            buf.limit(end);
+        }
+
+        if (ioMode == 'w')
+            partFileDirty = true;
+    }
+
+    private long getNumPartSlots() {
+        long numSlots = 0;
+        for (int slot : partSlots) {
+            if (slot != -1)
+                numSlots++;
+        }
+
+        return numSlots;
+    }
+
+    /**
+     * Copies bytes into or out of the memory mappings of a single file, crossing windows as needed.
+     * Each copy works on a duplicate of the mapping, so concurrent readers and writers need no lock.
+     * @param windows the mappings of the file
+     * @param filePos position in the file to start at
+     * @param buf buffer to IO from/to, from its position to its limit. Its position is advanced to its limit.
+     * @param ioMode action to be performed [r = read object from buffer; w = write object to buffer]
+     */
+    private void mappedFileIO(MappedByteBuffer[] windows, long filePos, ByteBuffer buf, char ioMode) {
+        int start = buf.position();
+        int end = buf.limit();
+        while (buf.position() < end) {
+            long pos = filePos + buf.position() - start;
+            ByteBuffer window = windows[(int) (pos / MAP_WINDOW)].duplicate();
+            window.position((int) (pos % MAP_WINDOW));
+
+            int bytesToHandle = Math.min(end - buf.position(), window.remaining());
+            if (ioMode == 'r') {
+                window.limit(window.position() + bytesToHandle);
+                buf.put(window);
+            } else if (ioMode == 'w') {
+                buf.limit(buf.position() + bytesToHandle);
+                window.put(buf);
+                buf.limit(end);
+            } else {
+                break;
+            }
+        }
+    }
+
+    private static final long MAP_WINDOW = 1L<<30; // 1 GiB
+    private static final int CHECK_CHUNK = 1<<20; // 1 MiB
+    private static final String RESUME_SUFFIX = ".resume";
+    private static final String PART_SUFFIX = ".parts";
 }
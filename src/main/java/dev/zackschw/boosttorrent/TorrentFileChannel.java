@@ -0,0 +1,166 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.ClosedByInterruptException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.SeekableByteChannel;
+
+/**
+ * Read-only channel over a file of a torrent that is being downloaded. The file downloads as it is read.
+ * Reads of pieces the client has go straight to the disk writer or storage. A read of a piece the client does not have
+ * blocks until the piece passes its hash check and is accepted for writing.
+ * Whenever a read moves to a new piece, the streaming playhead of the coordinator is moved to it, so the pieces ahead
+ * of the reader are requested first and in order, see PeerCoordinator.setPlayhead(). Only one channel should be read
+ * at a time, as each read moves the one playhead.
+ * The channel is seekable. Reads and changes of position are serialized, but the position can be checked while a read
+ * is waiting.
+ */
+public class TorrentFileChannel implements SeekableByteChannel {
+    private final PeerCoordinator coordinator;
+    private final MetadataInfo meta;
+    private final long fileOffset; // offset of the file into the torrent
+    private final long fileLength;
+    private final long bytesPerSecond;
+    private final byte[] chunk; // reused to copy reads out of the disk writer or storage
+
+    private volatile long position;
+    private volatile int playheadPiece; // piece the playhead was last moved to by this channel, or -1
+    private volatile boolean open;
+
+    /**
+     * Opens a channel over a file of the torrent, positioned at the start of the file.
+     * @param coordinator coordinator downloading the torrent
+     * @param meta metadata of the torrent
+     * @param file index of the file in the torrent
+     * @param bytesPerSecond rate at which the file is expected to be read, for the piece deadlines
+     */
+    public TorrentFileChannel(PeerCoordinator coordinator, MetadataInfo meta, int file, long bytesPerSecond) {
+        this.coordinator = coordinator;
+        this.meta = meta;
+        this.bytesPerSecond = bytesPerSecond;
+
+        fileOffset = meta.getFileOffset(file);
+        fileLength = meta.getFiles().get(file).getLength();
+        chunk = new byte[CHUNK_LENGTH];
+        position = 0;
+        playheadPiece = -1;
+        open = true;
+    }
+
+    /**
+     * Reads bytes of the file at the current position, from a single piece. Blocks until the piece is downloaded if
+     * the client does not have it.
+     * @param dst buffer to read into
+     * @return the number of bytes read, or -1 at the end of the file
+     * @throws ClosedChannelException if the channel is closed
+     * @throws AsynchronousCloseException if the channel is closed while waiting for the piece
+     * @throws ClosedByInterruptException if the thread is interrupted while waiting for the piece, which closes the
+     *                                    channel
+     */
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (position >= fileLength)
+            return -1;
+        if (!dst.hasRemaining())
+            return 0;
+
+        long offset = fileOffset + position;
+        int piece = meta.getPieceIndex(offset);
+        int begin = (int) (offset - meta.getPieceOffset(piece));
+        int length = (int) Math.min(Math.min(dst.remaining(), chunk.length),
+                Math.min(meta.getPieceLength(piece) - begin, fileLength - position));
+
+        /* Keep the streaming window ahead of the reader */
+        if (piece != playheadPiece) {
+            coordinator.setPlayhead(offset, bytesPerSecond);
+            playheadPiece = piece;
+        }
+
+        /* Wait for the piece */
+        try {
+            while (!coordinator.waitForPiece(piece, WAIT_INTERVAL)) {
+                if (!open)
+                    throw new AsynchronousCloseException();
+            }
+        } catch (InterruptedException e) {
+            open = false;
+            Thread.currentThread().interrupt();
+            throw new ClosedByInterruptException();
+        }
+        if (!open)
+            throw new AsynchronousCloseException();
+
+        coordinator.readBlock(piece, begin, length, chunk);
+        dst.put(chunk, 0, length);
+        position += length;
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer src) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public long position() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+
+        return position;
+    }
+
+    /**
+     * Sets the position of the next read. A position past the end of the file reads as the end of the file.
+     * @param newPosition new position, in bytes from the start of the file
+     */
+    @Override
+    public synchronized TorrentFileChannel position(long newPosition) throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+        if (newPosition < 0)
+            throw new IllegalArgumentException("Negative position " + newPosition);
+
+        position = newPosition;
+        return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+        if (!open)
+            throw new ClosedChannelException();
+
+        return fileLength;
+    }
+
+    @Override
+    public TorrentFileChannel truncate(long size) {
+        throw new NonWritableChannelException();
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    /**
+     * Closes the channel, waking a read waiting for a piece. Stops streaming if this channel moved the playhead.
+     */
+    @Override
+    public void close() {
+        if (!open)
+            return;
+
+        open = false;
+        coordinator.notifyPieceWaiters();
+        if (playheadPiece != -1)
+            coordinator.stopStreaming();
+    }
+
+    private static final int CHUNK_LENGTH = 1<<16; // 64 KiB
+    private static final long WAIT_INTERVAL = 1000; // ms
+}
@@ -0,0 +1,66 @@
+package dev.zackschw.boosttorrent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of Bitvector against AtomicBitvector under contention, modelled on the client's own bitfield: many
+ * peer threads checking pieces while a few threads mark pieces as finished.
+ * Run with main() from the test classpath, eg from the IDE, after mvn test-compile.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BitvectorBenchmark {
+    private static final int NUM_PIECES = 4096;
+
+    @Param({"synchronized", "atomic"})
+    public String impl;
+
+    private Bitvector bitfield;
+
+    @Setup
+    public void setup() {
+        bitfield = impl.equals("atomic") ? new AtomicBitvector(NUM_PIECES) : new Bitvector(NUM_PIECES);
+    }
+
+    @Benchmark
+    @Group("peers")
+    @GroupThreads(6)
+    public boolean isSet() {
+        return bitfield.isSet(ThreadLocalRandom.current().nextInt(NUM_PIECES));
+    }
+
+    @Benchmark
+    @Group("peers")
+    @GroupThreads(1)
+    public boolean isComplete() {
+        return bitfield.isComplete();
+    }
+
+    @Benchmark
+    @Group("peers")
+    @GroupThreads(1)
+    public void setAndUnset() {
+        int piece = ThreadLocalRandom.current().nextInt(NUM_PIECES);
+        bitfield.setBit(piece);
+        bitfield.unsetBit(piece);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(BitvectorBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -118,4 +118,107 @@ public class BitvectorTest {
         assertTrue(caught);
     }
 
-}
\ No newline at end of file
+    @Test
+    public void byteArrayRoundTrip() {
+        byte[] bytes = new byte[17];
+        for (int i=0; i < bytes.length; i++)
+            bytes[i] = (byte) (i * 37 + 1);
+        bytes[16] &= (byte) 0b11100000; // 131 bits
+
+        Bitvector bitvector = new Bitvector(131, bytes);
+        assertArrayEquals(bytes, bitvector.toByteArray());
+
+        for (int i=0; i < 131; i++) {
+            boolean expected = (bytes[i/8] & (1 << (7 - i%8))) != 0;
+            assertEquals(expected, bitvector.isSet(i));
+        }
+    }
+
+    @Test
+    public void spareBitsIgnored() {
+        byte[] bytes = new byte[] { 0, (byte) 0b10111111 };
+        Bitvector bitvector = new Bitvector(10, bytes);
+
+        assertEquals(1, bitvector.cardinality());
+        assertEquals((byte) 0b10000000, bitvector.toByteArray()[1]);
+    }
+
+    @Test
+    public void nextSetAndClearBit() {
+        Bitvector bitvector = new Bitvector(200);
+        bitvector.setBit(3);
+        bitvector.setBit(64);
+        bitvector.setBit(199);
+
+        assertEquals(3, bitvector.nextSetBit(0));
+        assertEquals(3, bitvector.nextSetBit(3));
+        assertEquals(64, bitvector.nextSetBit(4));
+        assertEquals(199, bitvector.nextSetBit(65));
+        assertEquals(-1, bitvector.nextSetBit(200));
+
+        assertEquals(0, bitvector.nextClearBit(0));
+        assertEquals(4, bitvector.nextClearBit(3));
+        assertEquals(65, bitvector.nextClearBit(64));
+        assertEquals(-1, bitvector.nextClearBit(199));
+
+        Bitvector full = new Bitvector(70);
+        for (int i=0; i < 70; i++)
+            full.setBit(i);
+        assertEquals(-1, full.nextClearBit(0));
+        assertEquals(70, full.cardinality());
+        assertTrue(full.isComplete());
+    }
+
+    @Test
+    public void setOperations() {
+        Bitvector theirs = new Bitvector(130);
+        Bitvector mine = new Bitvector(130);
+        theirs.setBit(5);
+        theirs.setBit(100);
+        theirs.setBit(129);
+        mine.setBit(5);
+        mine.setBit(129);
+
+        assertEquals(100, theirs.nextSetBitNotIn(mine, 0));
+        assertEquals(-1, theirs.nextSetBitNotIn(mine, 101));
+        assertTrue(theirs.intersects(mine));
+
+        Bitvector lacking = theirs.andNot(mine);
+        assertEquals(1, lacking.cardinality());
+        assertTrue(lacking.isSet(100));
+        assertFalse(lacking.intersects(mine));
+
+        assertEquals(3, theirs.cardinality());
+        assertEquals(2, mine.cardinality());
+    }
+
+    @Test
+    public void atomicConcurrentSets() throws Exception {
+        AtomicBitvector bitvector = new AtomicBitvector(1000, new byte[125]);
+        assertTrue(bitvector.isEmpty());
+
+        /* Each thread sets every 4th bit starting at its own offset, all sharing words */
+        Thread[] threads = new Thread[4];
+        for (int t=0; t < threads.length; t++) {
+            int offset = t;
+            threads[t] = new Thread(() -> {
+                for (int i=offset; i < 1000; i += 4)
+                    bitvector.setBit(i);
+            });
+            threads[t].start();
+        }
+        for (Thread t : threads)
+            t.join();
+
+        assertTrue(bitvector.isComplete());
+        assertEquals(1000, bitvector.cardinality());
+        assertEquals(-1, bitvector.nextClearBit(0));
+
+        bitvector.unsetBit(999);
+        bitvector.unsetBit(999);
+        assertFalse(bitvector.isComplete());
+        assertEquals(999, bitvector.cardinality());
+        assertEquals(999, bitvector.nextClearBit(0));
+        assertArrayEquals(bitvector.toByteArray(), new AtomicBitvector(1000, bitvector.toByteArray()).toByteArray());
+    }
+}
@@ -0,0 +1,47 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void buffersAreReused() {
+        BufferPool pool = new BufferPool(100);
+
+        Piece piece1 = new Piece(0, 100, null, pool);
+        Piece piece2 = new Piece(1, 60, null, pool);
+        assertTrue(piece1.bytes.isDirect());
+        assertEquals(100, piece1.bytes.capacity());
+        assertEquals(60, piece2.bytes.remaining());
+        int allocated = pool.getNumBuffers();
+
+        /* Released buffers are handed out again instead of allocating */
+        ByteBuffer released = piece2.bytes;
+        piece2.release();
+        Piece piece3 = new Piece(2, 100, null, pool);
+        assertSame(released, piece3.bytes);
+        assertEquals(100, piece3.bytes.remaining());
+        assertEquals(allocated, pool.getNumBuffers());
+
+        piece1.release();
+        piece3.release();
+        assertEquals(pool.getNumBuffers(), pool.getNumFree());
+    }
+
+    @Test
+    public void blocksShareThePieceBuffer() {
+        BufferPool pool = new BufferPool(Piece.BLOCK_LENGTH * 2);
+        Piece piece = new Piece(0, Piece.BLOCK_LENGTH + 10, null, pool);
+
+        ByteBuffer block = piece.getBlock(Piece.BLOCK_LENGTH, 10);
+        assertEquals(10, block.remaining());
+        block.put((byte) 5);
+
+        assertEquals(5, piece.bytes.get(Piece.BLOCK_LENGTH));
+        assertEquals(0, piece.bytes.position());
+    }
+}
@@ -0,0 +1,63 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import static org.junit.Assert.*;
+
+public class HashVerifierTest {
+
+    @Test
+    public void verifiesOffSubmittingThread() throws Exception {
+        HashVerifier verifier = new HashVerifier(null, 4, 2);
+        Map<Integer, Boolean> results = new ConcurrentHashMap<>();
+        Map<Integer, Thread> threads = new ConcurrentHashMap<>();
+        HashVerifier.Callback callback = (piece, passed) -> {
+            results.put(piece.index, passed);
+            threads.put(piece.index, Thread.currentThread());
+        };
+
+        /* The queue fills up to half before the workers start, so verification is behind */
+        verifier.submit(piece(0, false), callback);
+        assertFalse(verifier.isBehind());
+        verifier.submit(piece(1, true), callback);
+        assertTrue(verifier.isBehind());
+        assertEquals(2, verifier.getQueueSize());
+
+        verifier.runWorkers();
+        verifier.submit(piece(2, false), callback);
+        verifier.stop();
+
+        assertEquals(0, verifier.getQueueSize());
+        assertFalse(verifier.isBehind());
+        assertEquals(Boolean.TRUE, results.get(0));
+        assertEquals(Boolean.FALSE, results.get(1));
+        assertEquals(Boolean.TRUE, results.get(2));
+        assertNotSame(Thread.currentThread(), threads.get(0));
+        assertEquals(3, verifier.getNumVerified());
+        assertEquals(1, verifier.getNumFailed());
+        assertTrue(verifier.getThroughput() > 0);
+    }
+
+    /**
+     * Creates a piece with every block received, with the correct hash unless corrupt.
+     */
+    private static Piece piece(int index, boolean corrupt) throws Exception {
+        byte[] content = new byte[Piece.BLOCK_LENGTH + 100];
+        for (int i=0; i < content.length; i++)
+            content[i] = (byte) (i * index);
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+        if (corrupt)
+            content[10] ^= 1;
+
+        Piece piece = new Piece(index, content.length, hash);
+        piece.putBlock(0, content, Piece.BLOCK_LENGTH);
+        byte[] last = new byte[100];
+        System.arraycopy(content, Piece.BLOCK_LENGTH, last, 0, 100);
+        piece.putBlock(Piece.BLOCK_LENGTH, last, 100);
+        return piece;
+    }
+}
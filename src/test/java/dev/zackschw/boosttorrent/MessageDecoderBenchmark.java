@@ -0,0 +1,144 @@
+package dev.zackschw.boosttorrent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of MessageDecoder: messages decoded per second, read from an in-memory channel in as large reads as
+ * the decoder's buffer takes, and handed to a PeerState.
+ * The control mix is HAVE, INTERESTED, NOTINTERESTED and keep-alive messages that leave the state as it is. The
+ * blocks mix is PIECE messages for a block of an active piece that was already received, so the block is handed over
+ * in place and then dropped, PIECE messages for a piece the client has, which are skipped, and HAVE messages.
+ * The GC profiler's gc.alloc.rate.norm is the number of bytes allocated per message.
+ * Run with main() from the test classpath, eg from the IDE, after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDecoderBenchmark {
+
+    @Param({"control", "blocks"})
+    public String mix;
+
+    @Param({"true", "false"})
+    public boolean direct;
+
+    private MessageDecoder decoder;
+    private PeerState state;
+    private ArrayChannel source;
+
+    /**
+     * A channel over an array, read from the start again once rewound, that copies without allocating.
+     */
+    private static class ArrayChannel implements ReadableByteChannel {
+        private final byte[] bytes;
+        private int position;
+
+        ArrayChannel(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        void rewind() {
+            position = 0;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (position == bytes.length)
+                return -1;
+
+            int n = Math.min(dst.remaining(), bytes.length - position);
+            dst.put(bytes, position, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Setup
+    public void setup() throws Exception {
+        /* 3 pieces of 2 blocks except the last piece of 1 block */
+        MetadataInfo meta = TestTorrents.blocks();
+
+        /* The client has piece 2, and the peer every piece */
+        Storage storage = new Storage(meta);
+        storage.getMyBitfield().setBit(2);
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, storage);
+        Peer peer = new Peer((PeerAddress) null, meta, new byte[20]);
+        state = new PeerState(peer, null, new PeerConnectionOut(peer, OutputStream.nullOutputStream()), meta,
+                coordinator);
+        state.onBitfieldMessage(new byte[] {(byte) 0b11100000});
+
+        /* Another peer started a piece, and its first block was received */
+        Bitvector seed = new Bitvector(3);
+        seed.setBit(0);
+        seed.setBit(1);
+        BlockRequest request = coordinator.getNextBlockToRequest(seed, new PeerState(null, null, null, meta, coordinator));
+        int length = request.piece.getBlockLength(request.getBlock());
+        coordinator.putBlock(request.piece, request.begin, new byte[length], length);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(received);
+        for (int i=0; i < MESSAGES; i++) {
+            if (mix.equals("control")) {
+                switch (i % 4) {
+                    case 0: Message.sendHave(dout, 2); break;
+                    case 1: Message.sendInterested(dout); break;
+                    case 2: Message.sendNotInterested(dout); break;
+                    default: dout.writeInt(0); break;
+                }
+            } else {
+                switch (i % 4) {
+                    case 0: case 1: Message.sendPiece(dout, request.piece.index, request.begin, new byte[length]); break;
+                    case 2: Message.sendPiece(dout, 2, 0, new byte[Piece.BLOCK_LENGTH]); break;
+                    default: Message.sendHave(dout, 2); break;
+                }
+            }
+        }
+
+        source = new ArrayChannel(received.toByteArray());
+        decoder = new MessageDecoder(direct);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(MESSAGES)
+    public void decode() throws IOException {
+        source.rewind();
+        while (decoder.read(source) >= 0)
+            decoder.decode(state);
+    }
+
+    private static final int MESSAGES = 1024;
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(MessageDecoderBenchmark.class.getSimpleName())
+                .addProfiler(GCProfiler.class)
+                .build();
+
+        new Runner(opt).run();
+    }
+}
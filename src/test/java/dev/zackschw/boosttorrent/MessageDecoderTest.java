@@ -0,0 +1,165 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+public class MessageDecoderTest {
+
+    /**
+     * A channel over an array that returns at most chunk bytes per read, as a socket might.
+     */
+    private static class ChunkedChannel implements ReadableByteChannel {
+        private final ByteBuffer bytes;
+        private final int chunk;
+
+        ChunkedChannel(byte[] bytes, int chunk) {
+            this.bytes = ByteBuffer.wrap(bytes);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            if (!bytes.hasRemaining())
+                return -1;
+
+            ByteBuffer next = bytes.duplicate();
+            int n = Math.min(chunk, Math.min(dst.remaining(), bytes.remaining()));
+            next.limit(next.position() + n);
+            dst.put(next);
+            bytes.position(bytes.position() + n);
+            return n;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    @Test
+    public void decodesMessagesSplitAcrossReads() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, new Storage(meta));
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        Peer peer = new Peer((PeerAddress) null, meta, new byte[20]);
+        PeerState state = new PeerState(peer, null, new PeerConnectionOut(peer, sent), meta, coordinator);
+
+        /* Another peer starts piece 0 */
+        Bitvector seed = new Bitvector(3);
+        seed.setBit(0);
+        coordinator.onPeerBitfield(seed);
+        BlockRequest request = coordinator.getNextBlockToRequest(seed, new PeerState(null, null, null, meta, coordinator));
+        assertEquals(0, request.piece.index);
+
+        byte[] block = new byte[Piece.BLOCK_LENGTH];
+        for (int i=0; i < block.length; i++)
+            block[i] = (byte) (i * 31);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(received);
+        dout.writeInt(0);
+        Message.sendBitfield(dout, new byte[] {(byte) 0b10000000});
+        Message.sendPiece(dout, 0, request.begin, block);
+        Message.sendHave(dout, 1);
+        Message.sendInterested(dout);
+
+        /* A few bytes at a time into a buffer shorter than the block */
+        MessageDecoder decoder = new MessageDecoder(64, true);
+        ChunkedChannel channel = new ChunkedChannel(received.toByteArray(), 7);
+        while (decoder.read(channel) >= 0)
+            decoder.decode(state);
+
+        assertTrue(state.getAmInterested());
+        assertArrayEquals(new byte[] {0, 0, 0, 1, Message.INTERESTED}, sent.toByteArray());
+        assertEquals(Piece.BLOCK_LENGTH, state.getDownloaded());
+        byte[] copied = new byte[Piece.BLOCK_LENGTH];
+        request.piece.getBlock(request.begin, Piece.BLOCK_LENGTH).get(copied);
+        assertArrayEquals(block, copied);
+        assertTrue(state.getPeerInterested());
+    }
+
+    @Test
+    public void unwantedBlockSkipped() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        Storage storage = new Storage(meta);
+        storage.getMyBitfield().setBit(2);
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, storage);
+        PeerState state = new PeerState(null, null, null, meta, coordinator);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(received);
+        Message.sendPiece(dout, 2, 0, new byte[Piece.BLOCK_LENGTH]);
+        Message.sendInterested(dout);
+
+        /* The block of a piece the client has is skipped as it arrives, never buffered */
+        MessageDecoder decoder = new MessageDecoder(64, false);
+        ByteArrayInputStream in = new ByteArrayInputStream(received.toByteArray());
+        while (decoder.read(in) >= 0)
+            decoder.decode(state);
+
+        assertEquals(64, decoder.getBufferLength());
+        assertEquals(Piece.BLOCK_LENGTH, state.getDownloaded());
+        assertTrue(state.getPeerInterested());
+    }
+
+    @Test
+    public void decodesHandshake() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, new Storage(meta));
+        PeerState state = new PeerState(null, null, null, meta, coordinator);
+        byte[] otherPeerID = "-BT0001-000000000002".getBytes(StandardCharsets.UTF_8);
+
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(received);
+        dout.write(Peer.createHandshake(meta, otherPeerID));
+        Message.sendInterested(dout);
+
+        /* The handshake is decoded once whole, and the message after it then */
+        MessageDecoder decoder = new MessageDecoder(true);
+        ChunkedChannel channel = new ChunkedChannel(received.toByteArray(), 10);
+        byte[] peerID = null;
+        while (decoder.read(channel) >= 0) {
+            if (peerID == null)
+                peerID = decoder.decodeHandshake(meta);
+            if (peerID != null)
+                decoder.decode(state);
+        }
+
+        assertArrayEquals(otherPeerID, peerID);
+        assertTrue(state.getPeerInterested());
+    }
+
+    @Test
+    public void truncatedMessageRejected() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, new Storage(meta));
+        PeerState state = new PeerState(null, null, null, meta, coordinator);
+
+        /* A REQUEST with only the piece index */
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(received);
+        dout.writeInt(5);
+        dout.writeByte(Message.REQUEST);
+        dout.writeInt(0);
+
+        MessageDecoder decoder = new MessageDecoder(false);
+        decoder.read(new ByteArrayInputStream(received.toByteArray()));
+        try {
+            decoder.decode(state);
+            fail("Truncated message decoded");
+        } catch (IOException ignore) {
+        }
+    }
+}
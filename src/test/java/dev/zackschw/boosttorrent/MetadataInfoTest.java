@@ -35,6 +35,29 @@ public class MetadataInfoTest {
         assertEquals(1, metadata.getFiles().size());
         assertEquals(38, metadata.getLastPieceLength());
         assertEquals(78, metadata.getTotalFileBytes());
+        assertEquals(38, metadata.getPieceLength(1));
+        assertEquals(40, metadata.getPieceOffset(1));
+        assertEquals(1, metadata.getPieceIndex(40));
+        assertEquals(-1, metadata.getPieceIndex(78));
+    }
+
+    @Test
+    public void largeTorrentTest() throws Exception {
+        /* 3 GiB and 100 bytes, in 3072 pieces of 1 MiB and a last piece of 100 bytes */
+        long length = (3L << 30) + 100;
+        String info = "d6:lengthi" + length + "e4:name5:large12:piece lengthi1048576e6:pieces61460:" +
+                "01234567890123456789".repeat(3073) + "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+
+        MetadataInfo metadata = new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(3073, metadata.getNumPieces());
+        assertEquals(length, metadata.getTotalFileBytes());
+        assertEquals(100, metadata.getLastPieceLength());
+        assertEquals(100, metadata.getPieceLength(3072));
+        assertEquals(3L << 30, metadata.getPieceOffset(3072));
+        assertEquals(3072, metadata.getPieceIndex(length - 1));
     }
 
     @Test
@@ -65,6 +88,36 @@ public class MetadataInfoTest {
         assertEquals(85, metadata.getTotalFileBytes());
     }
 
+    @Test
+    public void fileIndexTest() throws Exception {
+        /* Files of length 7, 0, 78 and 15 */
+        String info = "d5:filesld6:lengthi7e4:pathl5:file1eed6:lengthi0e4:pathl5:emptyeed6:lengthi78e4:pathl4:dir15:file2eed6:lengthi15e4:pathl5:file3eee" +
+                "4:name9:multiFile12:piece lengthi50e6:pieces40:0123456789012345678901234567890123456789e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+
+        MetadataInfo metadata = new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+
+        assertEquals(0, metadata.getFileOffset(0));
+        assertEquals(7, metadata.getFileOffset(1));
+        assertEquals(7, metadata.getFileOffset(2));
+        assertEquals(85, metadata.getFileOffset(3));
+        assertEquals(100, metadata.getFileOffset(4));
+        assertEquals(100, metadata.getTotalFileBytes());
+
+        assertEquals(0, metadata.getFileIndex(0));
+        assertEquals(0, metadata.getFileIndex(6));
+        assertEquals(2, metadata.getFileIndex(7)); // the empty file is skipped
+        assertEquals(2, metadata.getFileIndex(84));
+        assertEquals(3, metadata.getFileIndex(85));
+        assertEquals(3, metadata.getFileIndex(99));
+        assertEquals(-1, metadata.getFileIndex(100));
+        assertEquals(-1, metadata.getFileIndex(-1));
+
+        assertEquals(3, metadata.getFileIndex(90, 2, 3));
+        assertEquals(-1, metadata.getFileIndex(90, 0, 2));
+    }
+
     private byte[] hash(byte[] input) {
         MessageDigest md;
         try {
@@ -0,0 +1,196 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class OutboundQueueTest {
+
+    /**
+     * Drains the queue through a buffer of the given length, and returns the type of each message in the bytes.
+     */
+    private List<Byte> drainTypes(OutboundQueue queue, int bufferLength) {
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        ByteBuffer buf = ByteBuffer.allocate(bufferLength);
+        while (queue.fill(buf)) {
+            sent.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+
+        List<Byte> types = new ArrayList<>();
+        ByteBuffer bytes = ByteBuffer.wrap(sent.toByteArray());
+        while (bytes.hasRemaining()) {
+            int len = bytes.getInt();
+            types.add(bytes.get(bytes.position()));
+            bytes.position(bytes.position() + len);
+        }
+        return types;
+    }
+
+    @Test
+    public void controlAheadOfPieces() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.putPiece(0, 0, new byte[Piece.BLOCK_LENGTH]);
+        queue.putPiece(0, Piece.BLOCK_LENGTH, new byte[Piece.BLOCK_LENGTH]);
+        queue.putHave(3);
+        queue.putNoPayload(Message.CHOKE);
+
+        List<Byte> types = drainTypes(queue, 1<<16);
+        assertEquals(List.of(Message.HAVE, Message.CHOKE, Message.PIECE, Message.PIECE), types);
+        assertTrue(queue.isEmpty());
+        assertEquals(0, queue.getPieceBytes());
+    }
+
+    @Test
+    public void pieceNeverSplitByControl() throws Exception {
+        OutboundQueue queue = new OutboundQueue();
+        queue.putPiece(0, 0, new byte[Piece.BLOCK_LENGTH]);
+        queue.putPiece(1, 0, new byte[Piece.BLOCK_LENGTH]);
+
+        /* Start copying out the first piece, then queue a CANCEL */
+        ByteBuffer buf = ByteBuffer.allocate(100);
+        assertTrue(queue.fill(buf));
+        queue.putBlockMessage(Message.CANCEL, 2, 0, Piece.BLOCK_LENGTH);
+
+        /* The rest of the first piece, then the CANCEL ahead of the second piece */
+        ByteArrayOutputStream rest = new ByteArrayOutputStream();
+        buf.clear();
+        while (queue.fill(buf)) {
+            rest.write(buf.array(), 0, buf.position());
+            buf.clear();
+        }
+        ByteBuffer bytes = ByteBuffer.wrap(rest.toByteArray());
+        bytes.position(Message.PIECE_HEADER_LENGTH + Piece.BLOCK_LENGTH - 100);
+        assertEquals(13, bytes.getInt());
+        assertEquals(Message.CANCEL, bytes.get());
+        bytes.position(bytes.position() + 12);
+        assertEquals(9 + Piece.BLOCK_LENGTH, bytes.getInt());
+        assertEquals(Message.PIECE, bytes.get());
+        assertEquals(1, bytes.getInt());
+    }
+
+    @Test
+    public void requestsCoalesced() {
+        OutboundQueue queue = new OutboundQueue();
+        for (int i=0; i < 50; i++) {
+            assertEquals(i == 0, queue.putBlockMessage(Message.REQUEST, i, 0, Piece.BLOCK_LENGTH));
+        }
+
+        /* All fifty go out in one batch */
+        ByteBuffer buf = ByteBuffer.allocate(1<<16);
+        assertTrue(queue.fill(buf));
+        assertEquals(50 * 17, buf.position());
+        assertFalse(queue.fill(buf));
+    }
+
+    @Test
+    public void queuedBlocksBounded() throws Exception {
+        OutboundQueue queue = new OutboundQueue(2 * Piece.BLOCK_LENGTH);
+        queue.putPiece(0, 0, new byte[Piece.BLOCK_LENGTH]);
+        queue.putPiece(0, Piece.BLOCK_LENGTH, new byte[Piece.BLOCK_LENGTH]);
+
+        /* A third block waits for room */
+        CountDownLatch queued = new CountDownLatch(1);
+        Thread uploader = new Thread(() -> {
+            try {
+                queue.putPiece(1, 0, new byte[Piece.BLOCK_LENGTH]);
+                queued.countDown();
+            } catch (InterruptedException ignore) {
+            }
+        });
+        uploader.start();
+        assertFalse(queued.await(100, TimeUnit.MILLISECONDS));
+
+        /* Control messages never wait */
+        queue.putHave(5);
+
+        /* Copying out a block makes room */
+        ByteBuffer buf = ByteBuffer.allocate(Piece.BLOCK_LENGTH + 100);
+        queue.fill(buf);
+        assertTrue(queued.await(5, TimeUnit.SECONDS));
+        uploader.join();
+        assertTrue(queue.removePiece(1, 0));
+    }
+
+    @Test
+    public void pieceSentFromStorage() throws Exception {
+        /* Name: transfer, one piece of 100 bytes */
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" +
+                "d6:lengthi100e4:name8:transfer12:piece lengthi100e6:pieces20:01234567890123456789ee";
+        MetadataInfo meta = new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+        Storage storage = new Storage(meta);
+        try {
+            storage.createFiles();
+            Piece piece = new Piece(0, 100, null);
+            for (int i=0; i < 100; i++) {
+                piece.bytes.put(i, (byte) i);
+            }
+            storage.writePiece(piece);
+
+            OutboundQueue queue = new OutboundQueue();
+            queue.putPieceFromStorage(0, 20, 50, storage);
+            queue.putHave(3);
+
+            /* The HAVE and the header are copied out, then the block is left to transfer() */
+            ByteBuffer buf = ByteBuffer.allocate(1<<10);
+            assertTrue(queue.fill(buf));
+            assertEquals(9 + Message.PIECE_HEADER_LENGTH, buf.position());
+            assertFalse(queue.fill(buf));
+
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            assertEquals(50, queue.transfer(Channels.newChannel(sent)));
+            assertEquals(-1, queue.transfer(Channels.newChannel(sent)));
+            assertTrue(queue.isEmpty());
+            assertEquals(0, queue.getPieceBytes());
+
+            byte[] expected = new byte[50];
+            for (int i=0; i < 50; i++) {
+                expected[i] = (byte) (i + 20);
+            }
+            assertArrayEquals(expected, sent.toByteArray());
+        } finally {
+            storage.closeAll();
+            new File("transfer").delete();
+            new File("transfer.resume").delete();
+        }
+    }
+
+    @Test
+    public void deferredSendsWrittenAtOnce() {
+        List<Integer> writes = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                writes.add(len);
+                super.write(b, off, len);
+            }
+        };
+        PeerConnectionOut cout = new PeerConnectionOut(null, out);
+
+        /* Sent from another thread, a message is written right away */
+        cout.sendInterested();
+        assertEquals(List.of(5), writes);
+
+        /* Sent by the reading thread, messages wait for flush() */
+        cout.deferFlushes();
+        for (int i=0; i < 10; i++) {
+            cout.sendRequest(i, 0, Piece.BLOCK_LENGTH);
+        }
+        assertEquals(1, writes.size());
+        cout.flush();
+        assertEquals(List.of(5, 10 * 17), writes);
+        assertEquals(5 + 10 * 17, out.size());
+    }
+}
@@ -0,0 +1,218 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PeerCoordinatorTest {
+
+    @Test
+    public void blocksSharedAcrossPeers() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, new Storage(meta));
+        PeerState first = new PeerState(null, null, null, meta, coordinator);
+        PeerState second = new PeerState(null, null, null, meta, coordinator);
+
+        /* Piece 0 is the rarest and piece 2 the most common */
+        Bitvector seed = bits(0, 1, 2);
+        coordinator.onPeerBitfield(seed);
+        coordinator.onPeerBitfield(bits(1, 2));
+        coordinator.onPeerBitfield(bits(2));
+
+        /* The second peer is asked for the second block of the piece the first peer started */
+        BlockRequest r1 = coordinator.getNextBlockToRequest(seed, first);
+        BlockRequest r2 = coordinator.getNextBlockToRequest(seed, second);
+        assertEquals(0, r1.piece.index);
+        assertSame(r1.piece, r2.piece);
+        assertSame(r1.piece, coordinator.getActivePiece(0));
+        assertEquals(0, r1.begin);
+        assertEquals(Piece.BLOCK_LENGTH, r2.begin);
+
+        /* A dropped block is requested again before a new piece is started */
+        coordinator.onRequestDropped(r2);
+        BlockRequest r3 = coordinator.getNextBlockToRequest(seed, first);
+        assertSame(r2.piece, r3.piece);
+        assertEquals(r2.begin, r3.begin);
+
+        assertEquals(1, coordinator.getNextBlockToRequest(seed, first).piece.index);
+        assertEquals(1, coordinator.getNextBlockToRequest(seed, first).piece.index);
+        assertFalse(coordinator.isEndgame());
+        BlockRequest last = coordinator.getNextBlockToRequest(seed, first);
+        assertEquals(2, last.piece.index);
+        assertEquals(1, last.piece.getNumBlocks());
+
+        /* Once every block is requested, the download is in endgame and blocks are requested twice */
+        assertTrue(coordinator.isEndgame());
+        BlockRequest duplicate = coordinator.getNextBlockToRequest(seed, second);
+        assertEquals(0, duplicate.piece.index);
+        assertEquals(2, duplicate.piece.getNumRequests(duplicate.getBlock()));
+
+        /* A piece with no requests and no blocks received is given up on */
+        coordinator.onRequestDropped(last);
+        assertNull(coordinator.getActivePiece(2));
+        assertFalse(coordinator.isEndgame());
+    }
+
+    @Test
+    public void streamingWindowInOrder() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, new Storage(meta));
+        PeerState first = new PeerState(null, null, null, meta, coordinator);
+        PeerState second = new PeerState(null, null, null, meta, coordinator);
+
+        /* Piece 1 is the most common, but the playhead is in it */
+        Bitvector seed = bits(0, 1, 2);
+        coordinator.onPeerBitfield(seed);
+        coordinator.onPeerBitfield(bits(1, 2));
+        coordinator.setPlayhead(40000, 1000);
+        assertEquals(0, coordinator.getPieceDeadline(0));
+        assertTrue(coordinator.getPieceDeadline(2) > coordinator.getPieceDeadline(1));
+
+        /* Piece 1 is due now, put it off until its blocks are requested */
+        coordinator.setPieceDeadline(1, System.nanoTime() + 60_000_000_000L);
+        BlockRequest r1 = coordinator.getNextBlockToRequest(seed, first);
+        BlockRequest r2 = coordinator.getNextBlockToRequest(seed, first);
+        BlockRequest r3 = coordinator.getNextBlockToRequest(seed, first);
+        assertEquals(1, r1.piece.index);
+        assertEquals(1, r2.piece.index);
+        assertEquals(2, r3.piece.index);
+
+        /* Once piece 1 is due, its blocks are raced to the second peer before piece 0 is started */
+        coordinator.setPieceDeadline(1, System.nanoTime());
+        BlockRequest raced = coordinator.getNextBlockToRequest(seed, second);
+        assertEquals(1, raced.piece.index);
+        assertEquals(2, raced.piece.getNumRequests(raced.getBlock()));
+        assertFalse(coordinator.isEndgame());
+
+        /* Outside the window, pieces are picked rarest first again */
+        coordinator.stopStreaming();
+        assertEquals(0, coordinator.getNextBlockToRequest(seed, second).piece.index);
+    }
+
+    @Test
+    public void leftCountsWantedPiecesOnly() throws Exception {
+        MetadataInfo meta = TestTorrents.multiFile();
+        assertEquals(300, new PeerCoordinator(new byte[20], meta, new Storage(meta)).getLeft());
+
+        /* With file3 skipped only pieces 0 and 1 are wanted, and piece 0 is already had */
+        Storage storage = new Storage(meta);
+        storage.setFilePriority(2, Priority.SKIP);
+        storage.getMyBitfield().setBit(0);
+        assertEquals(50, new PeerCoordinator(new byte[20], meta, storage).getLeft());
+    }
+
+    @Test
+    public void partialPieceResumed() throws Exception {
+        /* Content of the torrent of TestTorrents.blocks(), with real piece hashes */
+        byte[] content = new byte[81920];
+        for (int i=0; i < content.length; i++)
+            content[i] = (byte) (i * 31);
+
+        MessageDigest md = MessageDigest.getInstance("SHA-1");
+        ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+        for (int i=0; i < 3; i++) {
+            md.update(content, i * 32768, Math.min(32768, content.length - i * 32768));
+            pieces.write(md.digest());
+        }
+        ByteArrayOutputStream torrent = new ByteArrayOutputStream();
+        torrent.write(("d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" +
+                "d6:lengthi81920e4:name6:blocks12:piece lengthi32768e6:pieces60:").getBytes(StandardCharsets.UTF_8));
+        torrent.write(pieces.toByteArray());
+        torrent.write("ee".getBytes(StandardCharsets.UTF_8));
+        MetadataInfo meta = new MetadataInfo(new ByteArrayInputStream(torrent.toByteArray()));
+
+        Storage storage = new Storage(meta);
+        try {
+            storage.createFiles();
+
+            /* The first block of piece 1 is written before a restart */
+            PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, storage, new DiskWriter(storage),
+                    0, true);
+            coordinator.onPeerBitfield(bits(0, 1, 2));
+            coordinator.onPeerBitfield(bits(1, 2));
+            coordinator.onPeerBitfield(bits(1, 2));
+            BlockRequest first = coordinator.getNextBlockToRequest(bits(1), new PeerState(null, null, null, meta, coordinator));
+            assertTrue(first.piece.isOnDisk());
+            assertEquals(1, coordinator.putBlock(first.piece, 0, block(content, 32768), Piece.BLOCK_LENGTH));
+            storage.closeAll();
+
+            /* After the restart the piece is continued from its second block */
+            storage = new Storage(meta);
+            storage.createFiles();
+            assertEquals(Set.of(1), storage.getPartialPieces());
+            coordinator = new PeerCoordinator(new byte[20], meta, storage, new DiskWriter(storage), 0, true);
+            Piece piece = coordinator.getActivePiece(1);
+            assertEquals(1, piece.getNumReceivedBlocks());
+
+            coordinator.onPeerBitfield(bits(0, 1, 2));
+            BlockRequest second = coordinator.getNextBlockToRequest(bits(0, 1, 2), new PeerState(null, null, null, meta, coordinator));
+            assertSame(piece, second.piece);
+            assertEquals(Piece.BLOCK_LENGTH, second.begin);
+
+            /* The hash is checked from disk once the last block is written */
+            assertEquals(2, coordinator.putBlock(piece, Piece.BLOCK_LENGTH, block(content, 32768 + Piece.BLOCK_LENGTH),
+                    Piece.BLOCK_LENGTH));
+            assertTrue(coordinator.checkHash(piece));
+            coordinator.onFinishedPiece(piece);
+            assertTrue(coordinator.havePiece(1));
+            assertTrue(storage.getPartialPieces().isEmpty());
+        } finally {
+            storage.closeAll();
+            new File("blocks").delete();
+            new File("blocks.resume").delete();
+        }
+    }
+
+    @Test
+    public void stopSavesPiecesReceived() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        Storage storage = new Storage(meta);
+        try {
+            storage.createFiles();
+            DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 64);
+            PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, storage, diskWriter, 0);
+            diskWriter.runWriters();
+
+            /* Pieces 0 and 2 are received, too few for the fast-resume record to be saved while running */
+            for (int index : new int[] {0, 2}) {
+                Piece piece = new Piece(index, meta.getPieceLength(index), null);
+                for (int begin=0; begin < piece.length; begin += Piece.BLOCK_LENGTH)
+                    piece.putBlock(begin, new byte[Piece.BLOCK_LENGTH], Piece.BLOCK_LENGTH);
+                coordinator.onFinishedPiece(piece);
+            }
+            coordinator.stop();
+
+            /* The placeholder hashes would fail a recheck, so the pieces are restored from the record */
+            storage = new Storage(meta);
+            storage.createFiles();
+            assertTrue(storage.getMyBitfield().isSet(0));
+            assertFalse(storage.getMyBitfield().isSet(1));
+            assertTrue(storage.getMyBitfield().isSet(2));
+        } finally {
+            storage.closeAll();
+            new File("blocks").delete();
+            new File("blocks.resume").delete();
+        }
+    }
+
+    private static byte[] block(byte[] content, int offset) {
+        byte[] block = new byte[Piece.BLOCK_LENGTH];
+        System.arraycopy(content, offset, block, 0, block.length);
+        return block;
+    }
+
+    private static Bitvector bits(int... set) {
+        Bitvector bitvector = new Bitvector(3);
+        for (int i : set)
+            bitvector.setBit(i);
+        return bitvector;
+    }
+}
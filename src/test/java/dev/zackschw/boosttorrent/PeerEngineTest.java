@@ -0,0 +1,184 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class PeerEngineTest {
+
+    @Test
+    public void acceptsAndRequestsBlocks() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        byte[] myPeerID = "-BT0001-000000000001".getBytes(StandardCharsets.UTF_8);
+        byte[] otherPeerID = "-BT0001-000000000002".getBytes(StandardCharsets.UTF_8);
+        CountDownLatch disconnected = new CountDownLatch(1);
+        PeerCoordinator coordinator = new PeerCoordinator(myPeerID, meta, new Storage(meta)) {
+            @Override
+            public void onDisconnected(Peer peer) {
+                super.onDisconnected(peer);
+                disconnected.countDown();
+            }
+        };
+        coordinator.setEventLoops(2);
+        int port = coordinator.runListener();
+        PeerEngine engine = coordinator.getPeerEngine();
+
+        try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            sock.setSoTimeout(5000);
+            DataInputStream din = new DataInputStream(sock.getInputStream());
+            DataOutputStream dout = new DataOutputStream(sock.getOutputStream());
+
+            /* Handshakes are exchanged */
+            dout.write(Peer.createHandshake(meta, otherPeerID));
+            byte[] handshake = new byte[Peer.HANDSHAKE_LENGTH];
+            din.readFully(handshake);
+            assertArrayEquals(myPeerID, Peer.readHandshake(ByteBuffer.wrap(handshake), meta));
+
+            /* A seed makes the client interested, and unchoking it makes it request blocks */
+            Message.sendBitfield(dout, new byte[] {(byte) 0b11100000});
+            assertEquals(1, din.readInt());
+            assertEquals(Message.INTERESTED, din.readByte());
+            Message.sendUnchoke(dout);
+
+            assertEquals(13, din.readInt());
+            assertEquals(Message.REQUEST, din.readByte());
+            int index = din.readInt();
+            assertTrue(index >= 0 && index < meta.getNumPieces());
+            assertEquals(0, din.readInt());
+            assertEquals(Piece.BLOCK_LENGTH, din.readInt());
+            assertEquals(1, engine.getNumConnections());
+        }
+
+        /* Closing the socket closes the connection */
+        assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+
+        engine.stop();
+    }
+
+    @Test
+    public void writesBlocksOffTheLoop() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        byte[] myPeerID = "-BT0001-000000000001".getBytes(StandardCharsets.UTF_8);
+        byte[] otherPeerID = "-BT0001-000000000002".getBytes(StandardCharsets.UTF_8);
+        CountDownLatch writing = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch written = new CountDownLatch(1);
+        CountDownLatch have = new CountDownLatch(1);
+        Storage storage = new Storage(meta);
+        try {
+            storage.createFiles();
+            PeerCoordinator coordinator = new PeerCoordinator(myPeerID, meta, storage, new DiskWriter(storage), 0, true) {
+                @Override
+                public int writeClaimedBlock(Piece piece, int begin, ByteBuffer block) {
+                    /* A slow disk */
+                    writing.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    int count = super.writeClaimedBlock(piece, begin, block);
+                    written.countDown();
+                    return count;
+                }
+
+                @Override
+                public void onPeerHave(int index) {
+                    super.onPeerHave(index);
+                    have.countDown();
+                }
+            };
+            coordinator.setEventLoops(1);
+            int port = coordinator.runListener();
+
+            try (Socket sock = new Socket(InetAddress.getLoopbackAddress(), port)) {
+                sock.setSoTimeout(5000);
+                DataInputStream din = new DataInputStream(sock.getInputStream());
+                DataOutputStream dout = new DataOutputStream(sock.getOutputStream());
+                dout.write(Peer.createHandshake(meta, otherPeerID));
+                din.readFully(new byte[Peer.HANDSHAKE_LENGTH]);
+
+                Message.sendBitfield(dout, new byte[] {(byte) 0b11000000});
+                assertEquals(1, din.readInt());
+                assertEquals(Message.INTERESTED, din.readByte());
+                Message.sendUnchoke(dout);
+                assertEquals(13, din.readInt());
+                assertEquals(Message.REQUEST, din.readByte());
+                int index = din.readInt();
+                int begin = din.readInt();
+                int length = din.readInt();
+
+                /* While the block is being written, the loop still handles the peer's messages */
+                Message.sendPiece(dout, index, begin, new byte[length]);
+                assertTrue(writing.await(5, TimeUnit.SECONDS));
+                Message.sendHave(dout, 2);
+                assertTrue(have.await(5, TimeUnit.SECONDS));
+
+                release.countDown();
+                assertTrue(written.await(5, TimeUnit.SECONDS));
+                assertTrue(storage.getPartialPieces().contains(index));
+            } finally {
+                release.countDown();
+                coordinator.getPeerEngine().stop();
+            }
+        } finally {
+            storage.closeAll();
+            new File("blocks").delete();
+            new File("blocks.resume").delete();
+        }
+    }
+
+    @Test
+    public void connectsToPeer() throws Exception {
+        MetadataInfo meta = TestTorrents.blocks();
+        byte[] myPeerID = "-BT0001-000000000001".getBytes(StandardCharsets.UTF_8);
+        byte[] otherPeerID = "-BT0001-000000000002".getBytes(StandardCharsets.UTF_8);
+        PeerCoordinator coordinator = new PeerCoordinator(myPeerID, meta, new Storage(meta));
+        coordinator.setEventLoops(1);
+        coordinator.runListener();
+
+        try (ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            PeerAddress address = new PeerAddress(InetAddress.getLoopbackAddress().getAddress(), server.getLocalPort());
+            assertTrue(coordinator.addPeer(new Peer(address, meta, myPeerID)));
+
+            server.setSoTimeout(5000);
+            try (Socket sock = server.accept()) {
+                sock.setSoTimeout(5000);
+                sock.setTcpNoDelay(true);
+                DataInputStream din = new DataInputStream(sock.getInputStream());
+                DataOutputStream dout = new DataOutputStream(sock.getOutputStream());
+
+                /* The client sends its handshake first */
+                byte[] handshake = new byte[Peer.HANDSHAKE_LENGTH];
+                din.readFully(handshake);
+                assertArrayEquals(myPeerID, Peer.readHandshake(ByteBuffer.wrap(handshake), meta));
+                dout.write(Peer.createHandshake(meta, otherPeerID));
+
+                /* A HAVE split across writes is framed once whole, whether or not it is read in one go; framing
+                 * across reads is covered by MessageDecoderTest */
+                byte[] have = {0, 0, 0, 5, Message.HAVE, 0, 0, 0, 1};
+                dout.write(Arrays.copyOfRange(have, 0, 3));
+                dout.flush();
+                dout.write(Arrays.copyOfRange(have, 3, have.length));
+
+                assertEquals(1, din.readInt());
+                assertEquals(Message.INTERESTED, din.readByte());
+                assertEquals(1, coordinator.getPiecePicker().getAvailability(1));
+            }
+        }
+
+        coordinator.getPeerEngine().stop();
+    }
+}
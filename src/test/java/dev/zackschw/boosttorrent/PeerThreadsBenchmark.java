@@ -0,0 +1,102 @@
+package dev.zackschw.boosttorrent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of running connections a thread each on platform threads against virtual threads, modelled on
+ * Peer.runConnection(): every connection gets a thread that blocks reading its socket until a message arrives.
+ * Each operation starts a thread per loopback connection, sends every connection a byte, and waits for every thread
+ * to read it.
+ * Virtual threads need Java 21 or later, on older JVMs the virtual mode measures platform threads, see PeerThreads.
+ * Each connection takes two file descriptors, so the larger counts may need a higher ulimit -n.
+ * Run with main() from the test classpath, eg from the IDE, after mvn test-compile.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PeerThreadsBenchmark {
+
+    @Param({"platform", "virtual"})
+    public String mode;
+
+    @Param({"100", "1000", "4000"})
+    public int connections;
+
+    private ThreadFactory threadFactory;
+    private Socket[] clients;
+    private Socket[] accepted;
+
+    @Setup
+    public void setup() throws IOException {
+        threadFactory = PeerThreads.forMode(mode);
+        clients = new Socket[connections];
+        accepted = new Socket[connections];
+
+        try (ServerSocket server = new ServerSocket(0, connections, InetAddress.getLoopbackAddress())) {
+            for (int i=0; i < connections; i++) {
+                clients[i] = new Socket(InetAddress.getLoopbackAddress(), server.getLocalPort());
+                accepted[i] = server.accept();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        for (int i=0; i < connections; i++) {
+            if (clients[i] != null)
+                clients[i].close();
+            if (accepted[i] != null)
+                accepted[i].close();
+        }
+    }
+
+    @Benchmark
+    public void readOnePerConnection() throws Exception {
+        CountDownLatch done = new CountDownLatch(connections);
+
+        /* A thread per connection, blocked reading */
+        for (Socket sock : accepted) {
+            InputStream in = sock.getInputStream();
+            threadFactory.newThread(() -> {
+                try {
+                    in.read();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                done.countDown();
+            }).start();
+        }
+
+        /* Wake them all */
+        for (Socket sock : clients) {
+            sock.getOutputStream().write(1);
+        }
+
+        done.await();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(PeerThreadsBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
@@ -0,0 +1,149 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class PieceCacheTest {
+
+    private MetadataInfo createTestMeta() throws Exception {
+        /* Name: multiFile
+         * File1: multiFile/file1  --  length 7
+         * File2: multiFile/dir1/file2  --  length 78
+         * File3: multiFile/file3  --  length 215
+         * Piece length: 50
+         * Num pieces: 6
+         */
+        String info = "d5:filesld6:lengthi7e4:pathl5:file1eed6:lengthi78e4:pathl4:dir15:file2eed6:lengthi215e4:pathl5:file3eee" +
+                "4:name9:multiFile12:piece lengthi50e6:pieces120:" + "01234567890123456789".repeat(6) + "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+
+        return new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Test
+    public void leastRecentlyUsedEviction() throws Exception {
+        MetadataInfo meta = createTestMeta();
+        Storage storage = new Storage(meta);
+
+        /* Pieces stay readable from the unstarted disk writer, so no files are needed */
+        DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 0);
+        for (int i=0; i < meta.getNumPieces(); i++) {
+            Piece piece = new Piece(i, 50, null);
+            fill(piece, (byte) (i + 1));
+            diskWriter.submit(piece);
+            storage.getMyBitfield().setBit(i);
+        }
+
+        /* Room for 2 pieces */
+        PieceCache cache = new PieceCache(meta, storage.getMyBitfield(), diskWriter, 100);
+
+        byte[] expected = new byte[10];
+        Arrays.fill(expected, (byte) 1);
+        assertArrayEquals(expected, cache.readBlock(0, 0, 10)); // miss
+        assertArrayEquals(expected, cache.readBlock(0, 10, 10)); // hit
+        cache.readBlock(1, 0, 10); // miss
+        cache.readBlock(0, 20, 10); // hit, piece 1 is now least recently used
+        cache.readBlock(2, 0, 10); // miss, evicts piece 1
+
+        assertEquals(2, cache.getHits());
+        assertEquals(3, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+
+        cache.readBlock(0, 0, 10); // hit
+        Arrays.fill(expected, (byte) 2);
+        assertArrayEquals(expected, cache.readBlock(1, 40, 10)); // miss, evicts piece 2
+
+        assertEquals(3, cache.getHits());
+        assertEquals(4, cache.getMisses());
+        assertEquals(2, cache.getEvictions());
+    }
+
+    @Test
+    public void missingPiecesAreNotCached() throws Exception {
+        MetadataInfo meta = createTestMeta();
+        Storage storage = new Storage(meta);
+        DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 0);
+        Piece piece = new Piece(3, 50, null);
+        fill(piece, (byte) 4);
+        diskWriter.submit(piece);
+
+        PieceCache cache = new PieceCache(meta, storage.getMyBitfield(), diskWriter, 100);
+        cache.readBlock(3, 0, 10);
+        cache.readBlock(3, 0, 10);
+
+        assertEquals(0, cache.getHits());
+        assertEquals(0, cache.getMisses());
+    }
+
+    @Test
+    public void missLoadsWithoutBlockingOtherReads() throws Exception {
+        MetadataInfo meta = createTestMeta();
+        Storage storage = new Storage(meta);
+
+        /* A disk writer whose reads of piece 0 wait until released, and are counted */
+        CountDownLatch loadStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger piece0Reads = new AtomicInteger();
+        DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 0) {
+            @Override
+            public void readBlock(int piece, int begin, int length, byte[] block) {
+                if (piece == 0) {
+                    piece0Reads.incrementAndGet();
+                    loadStarted.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.readBlock(piece, begin, length, block);
+            }
+        };
+        for (int i=0; i < 2; i++) {
+            Piece piece = new Piece(i, 50, null);
+            fill(piece, (byte) (i + 1));
+            diskWriter.submit(piece);
+            storage.getMyBitfield().setBit(i);
+        }
+        PieceCache cache = new PieceCache(meta, storage.getMyBitfield(), diskWriter, 100);
+
+        /* Two readers miss piece 0 at once */
+        byte[][] results = new byte[2][];
+        Thread[] readers = new Thread[2];
+        for (int i=0; i < readers.length; i++) {
+            int slot = i;
+            readers[i] = new Thread(() -> results[slot] = cache.readBlock(0, 0, 10));
+            readers[i].start();
+        }
+        assertTrue(loadStarted.await(5, TimeUnit.SECONDS));
+
+        /* Piece 1 is read while piece 0 is loading */
+        byte[] expected = new byte[10];
+        Arrays.fill(expected, (byte) 2);
+        assertArrayEquals(expected, cache.readBlock(1, 0, 10));
+
+        release.countDown();
+        for (Thread t : readers)
+            t.join();
+
+        Arrays.fill(expected, (byte) 1);
+        assertArrayEquals(expected, results[0]);
+        assertArrayEquals(expected, results[1]);
+        assertEquals(1, piece0Reads.get());
+    }
+
+    private static void fill(Piece piece, byte value) {
+        for (int i=0; i < piece.length; i++) {
+            piece.bytes.put(i, value);
+        }
+    }
+}
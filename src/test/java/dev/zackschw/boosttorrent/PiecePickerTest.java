@@ -0,0 +1,97 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PiecePickerTest {
+
+    private static Bitvector bits(int size, int... set) {
+        Bitvector bitvector = new Bitvector(size);
+        for (int i : set)
+            bitvector.setBit(i);
+        return bitvector;
+    }
+
+    @Test
+    public void picksRarestPiece() {
+        PiecePicker picker = new PiecePicker(6, bits(6, 0));
+
+        Bitvector seed = bits(6, 0, 1, 2, 3, 4, 5);
+        picker.addPeerBitfield(seed);
+        picker.addPeerBitfield(bits(6, 1, 2, 3, 5));
+        picker.addPeerBitfield(bits(6, 1, 2, 5));
+        assertEquals(3, picker.getAvailability(1));
+        assertEquals(1, picker.getAvailability(4));
+
+        /* Piece 0 is had, so pieces are picked rarest first */
+        assertEquals(4, picker.pickPiece(seed));
+        assertEquals(3, picker.pickPiece(seed));
+        Set<Integer> common = new HashSet<>();
+        common.add(picker.pickPiece(seed));
+        common.add(picker.pickPiece(seed));
+        common.add(picker.pickPiece(seed));
+        assertEquals(Set.of(1, 2, 5), common);
+        assertEquals(-1, picker.pickPiece(seed));
+
+        /* An abandoned piece can be picked again */
+        picker.onPieceAbandoned(3);
+        assertEquals(1, picker.getNumWanted());
+        assertEquals(3, picker.pickPiece(seed));
+    }
+
+    @Test
+    public void availabilityFollowsPeers() {
+        PiecePicker picker = new PiecePicker(4, new Bitvector(4));
+        Bitvector first = bits(4, 0, 1);
+        Bitvector second = bits(4, 1);
+        picker.addPeerBitfield(first);
+        picker.addPeerBitfield(second);
+
+        /* Second peer announces piece 0, making piece 1 no rarer than piece 0 */
+        picker.incrementAvailability(0);
+        second.setBit(0);
+        assertEquals(2, picker.getAvailability(0));
+
+        /* First peer leaves, second peer only has pieces 0 and 1 */
+        picker.removePeerBitfield(first);
+        assertEquals(1, picker.getAvailability(0));
+        assertEquals(1, picker.getAvailability(1));
+        assertEquals(0, picker.getAvailability(2));
+
+        /* Pieces nobody has are never picked */
+        int picked = picker.pickPiece(bits(4, 0, 1, 2, 3));
+        assertTrue(picked == 0 || picked == 1);
+        assertEquals(1 - picked, picker.pickPiece(bits(4, 0, 1, 2, 3)));
+        assertEquals(-1, picker.pickPiece(bits(4, 0, 1, 2, 3)));
+        assertEquals(2, picker.getNumWanted());
+    }
+
+    @Test
+    public void picksByPriority() {
+        Priority[] priorities = {Priority.LOW, Priority.SKIP, Priority.HIGH, Priority.NORMAL, Priority.NORMAL};
+        PiecePicker picker = new PiecePicker(5, new Bitvector(5), priorities);
+        assertEquals(4, picker.getNumWanted());
+
+        /* The high priority piece is the most common, and still picked first */
+        Bitvector seed = bits(5, 0, 1, 2, 3, 4);
+        picker.addPeerBitfield(seed);
+        picker.addPeerBitfield(bits(5, 2, 4));
+        picker.addPeerBitfield(bits(5, 2));
+        assertEquals(4, picker.getNumRequestable());
+
+        assertEquals(2, picker.pickPiece(seed));
+        assertEquals(3, picker.pickPiece(seed));
+        assertEquals(4, picker.pickPiece(seed));
+        assertEquals(0, picker.pickPiece(seed));
+
+        /* The skipped piece is never picked, so the download is in endgame */
+        assertEquals(-1, picker.pickPiece(seed));
+        assertEquals(0, picker.getNumRequestable());
+        picker.onPieceAbandoned(1);
+        assertEquals(0, picker.getNumWanted());
+    }
+}
@@ -0,0 +1,107 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class PieceTest {
+
+    @Test
+    public void blockGeometry() {
+        Piece piece = new Piece(0, 2*Piece.BLOCK_LENGTH + 100, null);
+        assertEquals(3, piece.getNumBlocks());
+        assertEquals(Piece.BLOCK_LENGTH, piece.getBlockLength(1));
+        assertEquals(100, piece.getBlockLength(2));
+
+        assertTrue(piece.isValidBlock(2*Piece.BLOCK_LENGTH, 100));
+        assertFalse(piece.isValidBlock(2*Piece.BLOCK_LENGTH, Piece.BLOCK_LENGTH));
+        assertFalse(piece.isValidBlock(100, Piece.BLOCK_LENGTH));
+        assertFalse(piece.isValidBlock(3*Piece.BLOCK_LENGTH, 0));
+    }
+
+    @Test
+    public void duplicateBlocksIgnored() {
+        Piece piece = new Piece(0, Piece.BLOCK_LENGTH + 10, null);
+        byte[] first = new byte[Piece.BLOCK_LENGTH];
+        byte[] second = new byte[Piece.BLOCK_LENGTH];
+        Arrays.fill(first, (byte) 1);
+        Arrays.fill(second, (byte) 2);
+
+        /* The same block from two peers in endgame, only the first is kept */
+        assertEquals(1, piece.putBlock(0, first, Piece.BLOCK_LENGTH));
+        assertEquals(-1, piece.putBlock(0, second, Piece.BLOCK_LENGTH));
+        assertEquals(1, piece.getNumReceivedBlocks());
+        assertEquals(1, piece.bytes.get(Piece.BLOCK_LENGTH - 1));
+
+        assertEquals(2, piece.putBlock(Piece.BLOCK_LENGTH, second, 10));
+        assertTrue(piece.receivedAllBlocks());
+
+        /* Nothing is put into a released piece */
+        Piece released = new Piece(1, 10, null);
+        released.release();
+        assertEquals(-1, released.putBlock(0, first, 10));
+        assertFalse(released.receivedAllBlocks());
+    }
+
+    @Test
+    public void onDiskBlocksClaimedOnce() {
+        Piece piece = Piece.createOnDisk(0, 3*Piece.BLOCK_LENGTH, null, null);
+        assertTrue(piece.isOnDisk());
+        assertTrue(piece.isIdle());
+
+        /* Blocks written before a restart */
+        Bitvector written = new Bitvector(3);
+        written.setBit(0);
+        piece.restoreBlocks(written);
+        assertEquals(1, piece.getNumReceivedBlocks());
+        assertEquals(1, piece.nextUnrequestedBlock());
+
+        /* A claimed block is not idle, and is not counted until written */
+        assertTrue(piece.claimBlock(Piece.BLOCK_LENGTH));
+        assertFalse(piece.claimBlock(Piece.BLOCK_LENGTH));
+        assertEquals(1, piece.getNumReceivedBlocks());
+        assertEquals(2, piece.onBlockWritten(Piece.BLOCK_LENGTH, new byte[Piece.BLOCK_LENGTH], Piece.BLOCK_LENGTH));
+
+        assertTrue(piece.claimBlock(2*Piece.BLOCK_LENGTH));
+        piece.release();
+        assertEquals(-1, piece.onBlockWritten(2*Piece.BLOCK_LENGTH, new byte[Piece.BLOCK_LENGTH], Piece.BLOCK_LENGTH));
+        assertFalse(piece.claimBlock(0));
+    }
+
+    @Test
+    public void hashedAsBlocksArrive() throws Exception {
+        int length = 3*Piece.BLOCK_LENGTH + 100;
+        byte[] content = new byte[length];
+        for (int i=0; i < length; i++)
+            content[i] = (byte) (i * 7);
+        byte[] hash = MessageDigest.getInstance("SHA-1").digest(content);
+
+        /* Blocks out of order, the digest catches up once the gap is filled */
+        DigestPool digests = new DigestPool();
+        for (int run=0; run < 2; run++) {
+            Piece piece = new Piece(0, length, hash, null, digests);
+            for (int block : new int[] {1, 3, 0, 2}) {
+                byte[] b = Arrays.copyOfRange(content, block*Piece.BLOCK_LENGTH, block*Piece.BLOCK_LENGTH + piece.getBlockLength(block));
+                piece.putBlock(block*Piece.BLOCK_LENGTH, b, b.length);
+            }
+            assertTrue(piece.checkHash());
+            piece.release();
+        }
+
+        /* The digest of the first piece was reused by the second */
+        assertEquals(1, digests.getNumDigests());
+
+        /* A corrupt block fails the check */
+        Piece corrupt = new Piece(0, length, hash, null, digests);
+        for (int block=0; block < 4; block++) {
+            byte[] b = Arrays.copyOfRange(content, block*Piece.BLOCK_LENGTH, block*Piece.BLOCK_LENGTH + corrupt.getBlockLength(block));
+            if (block == 2)
+                b[5] ^= 1;
+            corrupt.putBlock(block*Piece.BLOCK_LENGTH, b, b.length);
+        }
+        assertFalse(corrupt.checkHash());
+    }
+}
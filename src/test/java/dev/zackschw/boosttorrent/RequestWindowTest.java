@@ -0,0 +1,86 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class RequestWindowTest {
+
+    private static final long MS = 1_000_000L;
+
+    @Test
+    public void growsUntilFirstMeasurement() {
+        RequestWindow window = new RequestWindow();
+        int initial = window.getSize();
+
+        window.onBlockReceived(Piece.BLOCK_LENGTH, 50*MS, 0);
+        window.onBlockReceived(Piece.BLOCK_LENGTH, 40*MS, 10*MS);
+        assertEquals(initial + 2, window.getSize());
+        assertEquals(40, window.getMinRtt(), 0.001);
+        assertEquals(0, window.getRate(), 0);
+    }
+
+    @Test
+    public void sizedFromBandwidthDelayProduct() {
+        RequestWindow window = new RequestWindow();
+
+        /* 100 blocks a second with a 100 ms round trip, 10 blocks in flight */
+        long now = 0;
+        for (int i=0; i <= 100; i++) {
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+            now += 10*MS;
+        }
+
+        assertEquals(100.0 * Piece.BLOCK_LENGTH, window.getRate(), Piece.BLOCK_LENGTH);
+        assertEquals(100, window.getSmoothedRtt(), 0.001);
+        assertEquals(20, window.getSize());
+
+        /* A slow peer gets the minimum window */
+        RequestWindow slow = new RequestWindow();
+        slow.onBlockReceived(Piece.BLOCK_LENGTH, 5*MS, 0);
+        slow.onBlockReceived(Piece.BLOCK_LENGTH, 5*MS, 2000*MS);
+        assertEquals(2, slow.getSize());
+    }
+
+    @Test
+    public void minRttAgesOut() {
+        RequestWindow window = new RequestWindow();
+
+        /* One quick block, then the round trip grows to 100 ms */
+        window.onBlockReceived(Piece.BLOCK_LENGTH, 10*MS, 0);
+        long now = 10*MS;
+        for (; now < 5000*MS; now += 10*MS)
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+        assertEquals(10, window.getMinRtt(), 0.001);
+
+        /* Still kept for the window after the one it was seen in, then dropped */
+        for (; now < 15000*MS; now += 10*MS)
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+        assertEquals(10, window.getMinRtt(), 0.001);
+        for (; now < 25000*MS; now += 10*MS)
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+        assertEquals(100, window.getMinRtt(), 0.001);
+        assertEquals(20, window.getSize());
+    }
+
+    @Test
+    public void idleTimeNotMeasured() {
+        RequestWindow window = new RequestWindow();
+
+        /* 100 blocks a second, then nothing requested for 5 s, then 100 blocks a second again */
+        long now = 0;
+        for (int i=0; i <= 100; i++) {
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+            now += 10*MS;
+        }
+        window.onIdle();
+        now += 5000*MS;
+        for (int i=0; i <= 100; i++) {
+            window.onBlockReceived(Piece.BLOCK_LENGTH, 100*MS, now);
+            now += 10*MS;
+        }
+
+        assertEquals(100.0 * Piece.BLOCK_LENGTH, window.getRate(), Piece.BLOCK_LENGTH);
+        assertEquals(20, window.getSize());
+    }
+}
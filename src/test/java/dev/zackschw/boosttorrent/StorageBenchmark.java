@@ -0,0 +1,111 @@
+package dev.zackschw.boosttorrent;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * JMH benchmark of Storage under concurrent readers and writers on a multi-file torrent, modelled on seeding while
+ * downloading: several Fulfiller-like threads read blocks of pieces in one file while a DiskWriter-like thread writes
+ * whole pieces of the other file.
+ * The monitor mode holds one storage-wide lock around every call, like Storage before positional FileChannel I/O, the
+ * positional mode calls Storage as it is, so unrelated files and ranges proceed in parallel.
+ * Writes 32 MiB of files in the working directory, deleted after the run.
+ * Run with main() from the test classpath, eg from the IDE, after mvn test-compile.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StorageBenchmark {
+    private static final int PIECE_LENGTH = 1<<18; // 256 KiB
+    private static final int FILE_PIECES = 64; // 16 MiB per file
+
+    @Param({"monitor", "positional"})
+    public String mode;
+
+    private Storage storage;
+    private boolean monitor;
+    private Piece[] pieces; // the pieces of the second file
+
+    @Setup
+    public void setup() throws Exception {
+        String info = "d5:filesld6:lengthi" + (long) FILE_PIECES * PIECE_LENGTH + "e4:pathl5:firsteed6:lengthi" +
+                (long) FILE_PIECES * PIECE_LENGTH + "e4:pathl6:secondeee4:name16:storageBenchmark12:piece lengthi" +
+                PIECE_LENGTH + "e6:pieces" + 40 * FILE_PIECES + ":" + "01234567890123456789".repeat(2 * FILE_PIECES) +
+                "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+        MetadataInfo meta = new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+
+        storage = new Storage(meta);
+        storage.createFiles();
+        monitor = mode.equals("monitor");
+
+        pieces = new Piece[FILE_PIECES];
+        for (int i=0; i < FILE_PIECES; i++) {
+            pieces[i] = new Piece(FILE_PIECES + i, PIECE_LENGTH, null);
+            storage.writePiece(pieces[i]);
+        }
+        for (int i=0; i < FILE_PIECES; i++) {
+            storage.writePiece(new Piece(i, PIECE_LENGTH, null));
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        storage.closeAll();
+        new File("storageBenchmark/first").delete();
+        new File("storageBenchmark/second").delete();
+        new File("storageBenchmark").delete();
+        new File("storageBenchmark.resume").delete();
+        new File("storageBenchmark.parts").delete();
+    }
+
+    @Benchmark
+    @Group("seeding")
+    @GroupThreads(4)
+    public byte[] readBlock() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int piece = random.nextInt(FILE_PIECES);
+        int begin = random.nextInt(PIECE_LENGTH / Piece.BLOCK_LENGTH) * Piece.BLOCK_LENGTH;
+        if (monitor) {
+            synchronized (storage) {
+                return storage.readBlock(piece, begin, Piece.BLOCK_LENGTH);
+            }
+        }
+        return storage.readBlock(piece, begin, Piece.BLOCK_LENGTH);
+    }
+
+    @Benchmark
+    @Group("seeding")
+    @GroupThreads(1)
+    public void writePiece() {
+        Piece piece = pieces[ThreadLocalRandom.current().nextInt(FILE_PIECES)];
+        if (monitor) {
+            synchronized (storage) {
+                storage.writePiece(piece);
+            }
+            return;
+        }
+        storage.writePiece(piece);
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        Options opt = new OptionsBuilder()
+                .include(StorageBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opt).run();
+    }
+}
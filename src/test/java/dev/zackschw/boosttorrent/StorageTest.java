@@ -3,9 +3,19 @@ package dev.zackschw.boosttorrent;
 import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
 
@@ -36,54 +46,461 @@ public class StorageTest {
             storage = new Storage(meta);
             storage.createFiles();
 
-            Piece piece1 = new Piece(0, 50, null);
-            Piece piece2 = new Piece(1, 35, null);
-            Arrays.fill(piece1.bytes, (byte) 9);
-            Arrays.fill(piece2.bytes, (byte) 7);
-
-            /* Write piece1 = 50 bytes */
-            storage.writePiece(piece1);
-
-            /* Read 2 blocks of this piece */
-            byte[] block1 = storage.readBlock(0, 0, 25);
-            byte[] block2 = storage.readBlock(0, 25, 25);
-            byte[] block1expected = new byte[25];
-            Arrays.fill(block1expected, (byte) 9);
-            assertArrayEquals(block1expected, block1);
-            assertArrayEquals(block1expected, block2);
-
-            /* Write piece2 = 35 bytes */
-            storage.writePiece(piece2);
-
-            /* Read 2 blocks of this piece */
-            byte[] block3 = storage.readBlock(1, 0, 25);
-            byte[] block4 = storage.readBlock(1, 25, 10);
-            byte[] block3expected = new byte[25];
-            byte[] block4expected = new byte[10];
-            Arrays.fill(block3expected, (byte) 7);
-            Arrays.fill(block4expected, (byte) 7);
-            assertArrayEquals(block3expected, block3);
-            assertArrayEquals(block4expected, block4);
+            writeAndReadPieces();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void writePieceMultipleFilesMemoryMapped() {
+        try {
+            MetadataInfo meta = createTestMeta();
+            storage = new Storage(meta, true);
+            storage.createFiles();
+
+            writeAndReadPieces();
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void concurrentReadersAndWriters() {
+        try {
+            MetadataInfo meta = TestTorrents.multiFile();
+            storage = new Storage(meta);
+            storage.createFiles();
+
+            /* Piece 0, in file1 and file2, and piece 2, in file3, are read while pieces in file2 and file3 are written */
+            int[] readPieces = {0, 2};
+            int[] writePieces = {1, 3, 4, 5};
+            for (int index : readPieces) {
+                Piece piece = new Piece(index, 50, null);
+                fill(piece, (byte) (index + 1));
+                storage.writePiece(piece);
+            }
+
+            /* Start every reader and writer at once */
+            CountDownLatch start = new CountDownLatch(1);
+            AtomicInteger mismatches = new AtomicInteger();
+            List<Thread> threads = new ArrayList<>();
+            for (int index : writePieces) {
+                Piece piece = new Piece(index, 50, null);
+                fill(piece, (byte) (index + 1));
+                threads.add(new Thread(() -> {
+                    await(start);
+                    for (int n=0; n < ROUNDS; n++)
+                        storage.writePiece(piece);
+                }));
+            }
+            for (int i=0; i < 2 * readPieces.length; i++) {
+                int index = readPieces[i % readPieces.length];
+                byte[] expected = new byte[50];
+                Arrays.fill(expected, (byte) (index + 1));
+                threads.add(new Thread(() -> {
+                    await(start);
+                    for (int n=0; n < ROUNDS; n++) {
+                        if (!Arrays.equals(expected, storage.readBlock(index, 0, 50)))
+                            mismatches.incrementAndGet();
+                    }
+                }));
+            }
+            for (Thread t : threads)
+                t.start();
+            start.countDown();
+            for (Thread t : threads)
+                t.join();
+
+            assertEquals(0, mismatches.get());
+            for (int index : writePieces) {
+                byte[] expected = new byte[50];
+                Arrays.fill(expected, (byte) (index + 1));
+                assertArrayEquals(expected, storage.readBlock(index, 0, 50));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void diskWriterWritesQueuedPieces() {
+        try {
+            MetadataInfo meta = TestTorrents.multiFile();
+            storage = new Storage(meta);
+            storage.createFiles();
+
+            /* Queue every piece before the writer starts, so adjacent pieces are written as one run */
+            DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 2);
+            for (int i=0; i < meta.getNumPieces(); i++) {
+                Piece piece = new Piece(i, 50, null);
+                fill(piece, (byte) (i + 1));
+                diskWriter.submit(piece);
+            }
+
+            /* Accepted pieces are readable before they are written */
+            byte[] expected = new byte[20];
+            Arrays.fill(expected, (byte) 3);
+            assertArrayEquals(expected, diskWriter.readBlock(2, 10, 20));
+
+            diskWriter.runWriters();
+            diskWriter.stop();
+            assertEquals(0, diskWriter.getQueueSize());
+
+            for (int i=0; i < meta.getNumPieces(); i++) {
+                byte[] expectedPiece = new byte[50];
+                Arrays.fill(expectedPiece, (byte) (i + 1));
+                assertArrayEquals(expectedPiece, storage.readBlock(i, 0, 50));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void diskWriterStopWritesWhatWasAccepted() {
+        try {
+            MetadataInfo meta = TestTorrents.multiFile();
+            storage = new Storage(meta);
+            storage.createFiles();
+            DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 1);
+            File resume = new File("multiFile.resume");
+
+            /* A piece written block by block is only counted by submit(), the record is left to a writer thread */
+            diskWriter.submit(Piece.createOnDisk(0, 50, null, null));
+            assertFalse(resume.exists());
+
+            /* The writers never ran, so stopping writes the queued pieces and saves the record */
+            for (int i=1; i < 3; i++) {
+                Piece piece = new Piece(i, 50, null);
+                fill(piece, (byte) (i + 1));
+                diskWriter.submit(piece);
+            }
+            diskWriter.stop();
+            assertEquals(0, diskWriter.getQueueSize());
+            assertTrue(resume.exists());
+            for (int i=1; i < 3; i++) {
+                byte[] expected = new byte[50];
+                Arrays.fill(expected, (byte) (i + 1));
+                assertArrayEquals(expected, storage.readBlock(i, 0, 50));
+            }
+
+            /* Nothing is accepted once stopped */
+            try {
+                diskWriter.submit(new Piece(3, 50, null));
+                fail("Piece accepted after stopping");
+            } catch (IllegalStateException ignore) {
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void diskWriterHandsBackFailedWrites() throws Exception {
+        /* The files are never created, so every write fails */
+        MetadataInfo meta = TestTorrents.multiFile();
+        storage = new Storage(meta);
+        DiskWriter diskWriter = new DiskWriter(storage, 2, 1, 0);
+        List<Integer> failed = new ArrayList<>();
+        diskWriter.setCallback(piece -> {
+            synchronized (failed) {
+                failed.add(piece.index);
+            }
+        });
+        diskWriter.runWriters();
+
+        /* The writer keeps draining the queue after a failure, so submitting never blocks for good */
+        for (int i=0; i < meta.getNumPieces(); i++) {
+            diskWriter.submit(new Piece(i, 50, null));
+        }
+        diskWriter.stop();
+
+        assertEquals(0, diskWriter.getQueueSize());
+        synchronized (failed) {
+            Collections.sort(failed);
+            assertEquals(List.of(0, 1, 2, 3, 4, 5), failed);
+        }
+        storage = null;
+    }
+
+    @Test
+    public void fastResumeSkipsUnchangedFiles() {
+        try {
+            MetadataInfo meta = TestTorrents.multiFile();
+            storage = new Storage(meta);
+            storage.createFiles();
+
+            /* Write pieces 0, 1 and 4, and save the record on close */
+            for (int i : new int[] {0, 1, 4}) {
+                Piece piece = new Piece(i, 50, null);
+                fill(piece, (byte) (i + 1));
+                storage.writePiece(piece);
+            }
+            storage.closeAll();
+
+            /* The test piece hashes are fake, so restored pieces can only come from the record */
+            storage = new Storage(meta);
+            storage.createFiles();
+            Bitvector bitfield = storage.getMyBitfield();
+            for (int i=0; i < 6; i++) {
+                assertEquals(i == 0 || i == 1 || i == 4, bitfield.isSet(i));
+            }
+            storage.closeAll();
 
+            /* Change file3, which holds pieces 1 to 5. Only piece 0 lies in unchanged files. */
+            File f3 = new File("multiFile/file3");
+            assertTrue(f3.setLastModified(f3.lastModified() - 10000));
+            storage = new Storage(meta);
+            storage.createFiles();
+            bitfield = storage.getMyBitfield();
+            for (int i=0; i < 6; i++) {
+                assertEquals(i == 0, bitfield.isSet(i));
+            }
         } catch (Exception e) {
             throw new RuntimeException(e);
         } finally {
-            /* Cleanup */
+            cleanup();
+        }
+    }
+
+    @Test
+    public void checkPieceHashesOnExistingFiles() {
+        try {
+            /* Content of the 300 byte torrent, spread over the files of TestTorrents.multiFile() */
+            byte[] content = new byte[300];
+            for (int i=0; i < content.length; i++)
+                content[i] = (byte) (i * 31);
+
+            /* Piece hashes of the content */
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            ByteArrayOutputStream pieces = new ByteArrayOutputStream();
+            for (int i=0; i < 6; i++) {
+                md.update(content, i * 50, 50);
+                pieces.write(md.digest());
+            }
+
+            ByteArrayOutputStream torrent = new ByteArrayOutputStream();
+            torrent.write(("d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                    "ll35:https://torrent.ubuntu.com/announceee4:info" +
+                    "d5:filesld6:lengthi7e4:pathl5:file1eed6:lengthi78e4:pathl4:dir15:file2eed6:lengthi215e4:pathl5:file3eee" +
+                    "4:name9:multiFile12:piece lengthi50e6:pieces120:").getBytes(StandardCharsets.UTF_8));
+            torrent.write(pieces.toByteArray());
+            torrent.write("ee".getBytes(StandardCharsets.UTF_8));
+            MetadataInfo meta = new MetadataInfo(new ByteArrayInputStream(torrent.toByteArray()));
+
+            /* Corrupt piece 3 (which lies in file3) and write the files */
+            content[160] ^= 1;
+            new File("multiFile/dir1").mkdirs();
+            try (FileOutputStream out = new FileOutputStream("multiFile/file1")) {
+                out.write(content, 0, 7);
+            }
+            try (FileOutputStream out = new FileOutputStream("multiFile/dir1/file2")) {
+                out.write(content, 7, 78);
+            }
+            try (FileOutputStream out = new FileOutputStream("multiFile/file3")) {
+                out.write(content, 85, 215);
+            }
+
+            storage = new Storage(meta);
+            storage.createFiles();
+
+            Bitvector bitfield = storage.getMyBitfield();
+            for (int i=0; i < 6; i++) {
+                assertEquals(i != 3, bitfield.isSet(i));
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void skippedFilesNotCreated() {
+        try {
+            MetadataInfo meta = TestTorrents.multiFile();
+            storage = new Storage(meta);
+            storage.setFilePriority(0, Priority.HIGH);
+            storage.setFilePriority(2, Priority.SKIP);
+
+            /* Piece 1 lies in file2 and file3, pieces 2 to 5 lie only in file3 */
+            Priority[] priorities = storage.getPiecePriorities();
+            assertEquals(Priority.HIGH, priorities[0]);
+            assertEquals(Priority.NORMAL, priorities[1]);
+            for (int i=2; i < 6; i++) {
+                assertEquals(Priority.SKIP, priorities[i]);
+            }
+
+            storage.createFiles();
+            assertFalse(new File("multiFile/file3").exists());
+            assertEquals(78, new File("multiFile/dir1/file2").length());
+
+            /* The bytes of piece 1 in file3 are kept in the part file, and the piece reads back whole */
+            Piece piece = new Piece(1, 50, null);
+            for (int i=0; i < 50; i++) {
+                piece.bytes.put(i, (byte) i);
+            }
+            storage.writePiece(piece);
+            byte[] expected = new byte[50];
+            for (int i=0; i < 50; i++) {
+                expected[i] = (byte) i;
+            }
+            assertArrayEquals(expected, storage.readBlock(1, 0, 50));
+            assertFalse(new File("multiFile/file3").exists());
+
+            try {
+                storage.setFilePriority(2, Priority.NORMAL);
+                fail();
+            } catch (IllegalStateException expectedException) {
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    @Test
+    public void transferBlockAcrossFiles() {
+        try {
+            MetadataInfo meta = createTestMeta();
+            storage = new Storage(meta);
+            storage.createFiles();
+
+            /* Piece 0 lies in file1 and file2 */
+            Piece piece = new Piece(0, 50, null);
+            for (int i=0; i < 50; i++) {
+                piece.bytes.put(i, (byte) i);
+            }
+            assertFalse(storage.canTransferBlock(0));
+            storage.writePiece(piece);
+            assertTrue(storage.canTransferBlock(0));
+            assertFalse(storage.canTransferBlock(1));
+
+            /* A target that takes at most 4 bytes at a time, like a full socket */
+            ByteArrayOutputStream sent = new ByteArrayOutputStream();
+            WritableByteChannel target = new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer src) {
+                    int n = Math.min(4, src.remaining());
+                    for (int i=0; i < n; i++)
+                        sent.write(src.get());
+                    return n;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return true;
+                }
+
+                @Override
+                public void close() {
+                }
+            };
+
+            /* The block from offset 3 of piece 0, picked up where each transfer stopped */
+            int offset = 3;
+            while (offset < 40) {
+                long n = storage.transferBlock(0, 0, 40, offset, target);
+                assertTrue(n > 0);
+                offset += n;
+            }
+            assertEquals(40, offset);
+
+            byte[] expected = new byte[37];
+            for (int i=0; i < expected.length; i++) {
+                expected[i] = (byte) (i + 3);
+            }
+            assertArrayEquals(expected, sent.toByteArray());
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        } finally {
+            cleanup();
+        }
+    }
+
+    private void writeAndReadPieces() {
+        Piece piece1 = new Piece(0, 50, null);
+        Piece piece2 = new Piece(1, 35, null);
+        fill(piece1, (byte) 9);
+        fill(piece2, (byte) 7);
+
+        /* Write piece1 = 50 bytes */
+        storage.writePiece(piece1);
+
+        /* Read 2 blocks of this piece */
+        byte[] block1 = storage.readBlock(0, 0, 25);
+        byte[] block2 = storage.readBlock(0, 25, 25);
+        byte[] block1expected = new byte[25];
+        Arrays.fill(block1expected, (byte) 9);
+        assertArrayEquals(block1expected, block1);
+        assertArrayEquals(block1expected, block2);
+
+        /* Write piece2 = 35 bytes */
+        storage.writePiece(piece2);
+
+        /* Read 2 blocks of this piece */
+        byte[] block3 = storage.readBlock(1, 0, 25);
+        byte[] block4 = storage.readBlock(1, 25, 10);
+        byte[] block3expected = new byte[25];
+        byte[] block4expected = new byte[10];
+        Arrays.fill(block3expected, (byte) 7);
+        Arrays.fill(block4expected, (byte) 7);
+        assertArrayEquals(block3expected, block3);
+        assertArrayEquals(block4expected, block4);
+    }
+
+    private void cleanup() {
+        if (storage != null)
             storage.closeAll();
-            File f1 = new File("multiFile/file1");
-            File f2 = new File("multiFile/dir1/file2");
-            File dir1 = new File("multiFile/dir1");
-            File dirParent = new File("multiFile");
-
-            if (f1.exists())
-                f1.delete();
-            if (f2.exists())
-                f2.delete();
-            if (dir1.exists())
-                dir1.delete();
-            if (dirParent.exists())
-                dirParent.delete();
+        File f1 = new File("multiFile/file1");
+        File f2 = new File("multiFile/dir1/file2");
+        File f3 = new File("multiFile/file3");
+        File resume = new File("multiFile.resume");
+        File parts = new File("multiFile.parts");
+        File dir1 = new File("multiFile/dir1");
+        File dirParent = new File("multiFile");
+
+        if (f1.exists())
+            f1.delete();
+        if (f2.exists())
+            f2.delete();
+        if (f3.exists())
+            f3.delete();
+        if (resume.exists())
+            resume.delete();
+        if (parts.exists())
+            parts.delete();
+        if (dir1.exists())
+            dir1.delete();
+        if (dirParent.exists())
+            dirParent.delete();
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+    }
 
+    private static void fill(Piece piece, byte value) {
+        for (int i=0; i < piece.length; i++) {
+            piece.bytes.put(i, value);
+        }
     }
-}
\ No newline at end of file
+
+    private static final int ROUNDS = 200;
+}
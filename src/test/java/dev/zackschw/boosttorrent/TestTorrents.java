@@ -0,0 +1,48 @@
+package dev.zackschw.boosttorrent;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Torrents shared by the tests and benchmarks.
+ */
+final class TestTorrents {
+
+    private TestTorrents() {
+    }
+
+    /**
+     * Name: blocks
+     * Length: 81920, 3 pieces of 2 blocks except the last piece of 1 block
+     * Piece length: 32768
+     * The piece hashes are placeholders.
+     * @return the meta info of the torrent
+     */
+    static MetadataInfo blocks() throws Exception {
+        String info = "d6:lengthi81920e4:name6:blocks12:piece lengthi32768e6:pieces60:" +
+                "01234567890123456789".repeat(3) + "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+
+        return new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Name: multiFile
+     * File1: multiFile/file1  --  length 7
+     * File2: multiFile/dir1/file2  --  length 78
+     * File3: multiFile/file3  --  length 215
+     * Piece length: 50, 6 pieces
+     * The piece hashes are placeholders.
+     * @return the meta info of the torrent
+     */
+    static MetadataInfo multiFile() throws Exception {
+        String info = "d5:filesld6:lengthi7e4:pathl5:file1eed6:lengthi78e4:pathl4:dir15:file2eed6:lengthi215e4:pathl5:file3eee" +
+                "4:name9:multiFile12:piece lengthi50e6:pieces120:" + "01234567890123456789".repeat(6) + "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceel40:https://ipv6.torrent.ubuntu.com/announceee" +
+                "7:comment29:Ubuntu CD releases.ubuntu.com13:creation datei1571322740e4:info" + info + "e";
+
+        return new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+    }
+}
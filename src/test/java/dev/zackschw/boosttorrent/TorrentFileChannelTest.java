@@ -0,0 +1,101 @@
+package dev.zackschw.boosttorrent;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class TorrentFileChannelTest {
+
+    private MetadataInfo createTestMeta() throws Exception {
+        /* Name: multiFile
+         * File1: multiFile/file1  --  length 7
+         * File2: multiFile/dir1/file2  --  length 78
+         * File3: multiFile/file3  --  length 215
+         * Piece length: 50
+         * Num pieces: 6
+         */
+        String info = "d5:filesld6:lengthi7e4:pathl5:file1eed6:lengthi78e4:pathl4:dir15:file2eed6:lengthi215e4:pathl5:file3eee" +
+                "4:name9:multiFile12:piece lengthi50e6:pieces120:" + "01234567890123456789".repeat(6) + "e";
+        String torrent = "d8:announce35:https://torrent.ubuntu.com/announce13:announce-list" +
+                "ll35:https://torrent.ubuntu.com/announceee4:info" + info + "e";
+
+        return new MetadataInfo(new ByteArrayInputStream(torrent.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Creates piece i filled with the byte i+1.
+     */
+    private static Piece createPiece(MetadataInfo meta, int i) {
+        Piece piece = new Piece(i, meta.getPieceLength(i), null);
+        for (int k=0; k < piece.length; k++) {
+            piece.bytes.put(k, (byte) (i + 1));
+        }
+        return piece;
+    }
+
+    @Test
+    public void readsWhilePiecesArrive() throws Exception {
+        MetadataInfo meta = createTestMeta();
+        Storage storage = new Storage(meta);
+
+        /* Pieces stay readable from the unstarted disk writer, so no files are needed */
+        DiskWriter diskWriter = new DiskWriter(storage, meta.getNumPieces(), 1, 0);
+        PeerCoordinator coordinator = new PeerCoordinator(new byte[20], meta, storage, diskWriter, 0);
+        for (int i=0; i < 3; i++)
+            coordinator.onFinishedPiece(createPiece(meta, i));
+
+        /* File2 is bytes 7 to 84, all in pieces the client has */
+        try (InputStream in = Channels.newInputStream(coordinator.openFile(1, 1000))) {
+            byte[] file = in.readAllBytes();
+            assertEquals(78, file.length);
+            assertEquals(1, file[42]);
+            assertEquals(2, file[43]);
+        }
+
+        /* File3 is bytes 85 to 299, the read blocks at byte 150 until piece 3 arrives */
+        TorrentFileChannel channel = coordinator.openFile(2, 1000);
+        ByteBuffer file = ByteBuffer.allocate(215);
+        AtomicReference<Exception> failure = new AtomicReference<>();
+        Thread reader = new Thread(() -> {
+            try {
+                while (channel.read(file) != -1);
+            } catch (Exception e) {
+                failure.set(e);
+            }
+        });
+        reader.start();
+
+        /* Wait for the reader to wait for piece 3 */
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!(channel.position() == 65 && reader.getState() == Thread.State.TIMED_WAITING)
+                && reader.isAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(failure.get());
+        assertEquals(65, channel.position());
+        assertEquals(Thread.State.TIMED_WAITING, reader.getState());
+        assertTrue(reader.isAlive());
+        assertNotEquals(0, coordinator.getPieceDeadline(3));
+
+        for (int i=3; i < 6; i++)
+            coordinator.onFinishedPiece(createPiece(meta, i));
+        reader.join(5000);
+
+        assertFalse(reader.isAlive());
+        assertNull(failure.get());
+        assertEquals(215, file.position());
+        assertEquals(2, file.get(0));
+        assertEquals(4, file.get(65));
+        assertEquals(6, file.get(214));
+
+        channel.close();
+        assertEquals(0, coordinator.getPieceDeadline(3));
+    }
+}